@@ -17,6 +17,9 @@ package org.openmrs.module.kenyacore;
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.ModuleActivator;
+import org.openmrs.module.kenyacore.calculation.CalculationExecutor;
+import org.openmrs.module.kenyacore.calculation.CalculationProfiler;
+import org.openmrs.module.kenyacore.calculation.DemographicsSnapshot;
 
 /**
  * This class contains the logic that is run every time this module is either started or stopped.
@@ -50,6 +53,9 @@ public class CoreActivator implements ModuleActivator {
 	 * @see ModuleActivator#started()
 	 */
 	public void started() {
+		CalculationProfiler.getInstance().setEnabled(CoreUtils.getBooleanGlobalProperty(CalculationProfiler.GP_ENABLED, false));
+		CalculationProfiler.register();
+
 		log.info("KenyaCore started");
 	}
 	
@@ -64,6 +70,11 @@ public class CoreActivator implements ModuleActivator {
 	 * @see ModuleActivator#stopped()
 	 */
 	public void stopped() {
+		CalculationProfiler.unregister();
+		CalculationProfiler.getInstance().setEnabled(false);
+		CalculationExecutor.shutdown();
+		DemographicsSnapshot.resetInstance();
+
 		log.info("KenyaCore stopped");
 	}
 }
\ No newline at end of file
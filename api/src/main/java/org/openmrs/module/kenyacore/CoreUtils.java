@@ -14,6 +14,10 @@
 
 package org.openmrs.module.kenyacore;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
 import org.openmrs.GlobalProperty;
 import org.openmrs.api.APIAuthenticationException;
 import org.openmrs.api.context.Context;
@@ -34,6 +38,8 @@ import java.util.TreeSet;
  */
 public class CoreUtils {
 
+	protected static final Log log = LogFactory.getLog(CoreUtils.class);
+
 	/**
 	 * Merges multiple collections into a list with natural ordering of elements
 	 * @param collections the collections
@@ -118,4 +124,63 @@ public class CoreUtils {
 		gp.setPropertyValue(value);
 		Context.getAdministrationService().saveGlobalProperty(gp);
 	}
+
+	/**
+	 * Gets an integer global property value
+	 * @param property the property name
+	 * @param defaultValue the value to use if the property is blank or invalid
+	 * @return the property value
+	 * @should return default value if property is blank
+	 * @should return default value if property is not an integer
+	 * @should parse trimmed property value
+	 */
+	public static int getIntegerGlobalProperty(String property, int defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(property);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException ex) {
+			log.warn("Ignoring invalid value for " + property + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Gets a boolean global property value
+	 * @param property the property name
+	 * @param defaultValue the value to use if the property is blank or invalid
+	 * @return the property value
+	 * @should return default value if property is blank
+	 * @should return default value if property is not a boolean
+	 * @should parse trimmed property value ignoring case
+	 */
+	public static boolean getBooleanGlobalProperty(String property, boolean defaultValue) {
+		String value = Context.getAdministrationService().getGlobalProperty(property);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+
+		value = value.trim();
+		if ("true".equalsIgnoreCase(value)) {
+			return true;
+		}
+		else if ("false".equalsIgnoreCase(value)) {
+			return false;
+		}
+
+		log.warn("Ignoring invalid value for " + property + ": " + value);
+		return defaultValue;
+	}
+
+	/**
+	 * Gets the Hibernate session factory
+	 * @return the session factory
+	 */
+	public static SessionFactory getSessionFactory() {
+		return Context.getRegisteredComponents(SessionFactory.class).get(0);
+	}
 }
\ No newline at end of file
@@ -14,16 +14,15 @@
 
 package org.openmrs.module.kenyacore.calculation;
 
-import org.openmrs.api.context.Context;
 import org.openmrs.calculation.BaseCalculation;
 import org.openmrs.calculation.patient.PatientCalculation;
 import org.openmrs.calculation.patient.PatientCalculationContext;
-import org.openmrs.calculation.patient.PatientCalculationService;
 import org.openmrs.calculation.result.CalculationResult;
 import org.openmrs.calculation.result.CalculationResultMap;
 import org.openmrs.calculation.result.ResultUtil;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -39,19 +38,43 @@ public abstract class AbstractPatientCalculation extends BaseCalculation impleme
 	protected static CalculationResultMap passing(CalculationResultMap results) {
 		CalculationResultMap ret = new CalculationResultMap();
 		for (Map.Entry<Integer, CalculationResult> e : results.entrySet()) {
-			ret.put(e.getKey(), new BooleanResult(ResultUtil.isTrue(e.getValue()), null));
+			ret.put(e.getKey(), BooleanResult.valueOf(ResultUtil.isTrue(e.getValue())));
 		}
 		return ret;
 	}
 
 	/**
-	 * Evaluates a given calculation on each patient
+	 * Evaluates a given calculation on each patient. Results are shared through the calculation context so the same
+	 * sub-calculation is only evaluated once (see {@link CalculationGraph}).
 	 * @param calculation the calculation
 	 * @param cohort the patient ids
 	 * @param calculationContext the calculation context
 	 * @return the calculation result map
 	 */
 	protected static CalculationResultMap calculate(PatientCalculation calculation, Collection<Integer> cohort, PatientCalculationContext calculationContext) {
-		return Context.getService(PatientCalculationService.class).evaluate(cohort, calculation, calculationContext);
+		return CalculationGraph.evaluate(calculation, cohort, null, calculationContext);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Evaluates a given calculation with parameter values on each patient
+	 * @param calculation the calculation
+	 * @param cohort the patient ids
+	 * @param parameterValues the parameter values
+	 * @param calculationContext the calculation context
+	 * @return the calculation result map
+	 */
+	protected static CalculationResultMap calculate(PatientCalculation calculation, Collection<Integer> cohort, Map<String, Object> parameterValues, PatientCalculationContext calculationContext) {
+		return CalculationGraph.evaluate(calculation, cohort, parameterValues, calculationContext);
+	}
+
+	/**
+	 * Evaluates several independent calculations on each patient. These may be evaluated concurrently if enabled.
+	 * @param calculations the calculations
+	 * @param cohort the patient ids
+	 * @param calculationContext the calculation context
+	 * @return the calculation result maps in the same order as the calculations
+	 */
+	protected static List<CalculationResultMap> calculateAll(List<? extends PatientCalculation> calculations, Collection<Integer> cohort, PatientCalculationContext calculationContext) {
+		return CalculationGraph.evaluateAll(calculations, cohort, null, calculationContext);
+	}
+}
@@ -25,6 +25,16 @@ import org.openmrs.calculation.result.SimpleResult;
  */
 public class BooleanResult extends SimpleResult {
 
+	/**
+	 * Shared true result with no calculation or context. Can't be modified.
+	 */
+	public static final BooleanResult TRUE = new SharedBooleanResult(true);
+
+	/**
+	 * Shared false result with no calculation or context. Can't be modified.
+	 */
+	public static final BooleanResult FALSE = new SharedBooleanResult(false);
+
 	/**
 	 * Creates a new boolean result
 	 * @param value the result value
@@ -44,6 +54,16 @@ public class BooleanResult extends SimpleResult {
 		super(value, calculation, context);
 	}
 
+	/**
+	 * Gets the shared result for the given value. Shared results have no calculation or context, so calculations whose
+	 * callers need those should create their own results.
+	 * @param value the value
+	 * @return the shared result
+	 */
+	public static BooleanResult valueOf(boolean value) {
+		return value ? TRUE : FALSE;
+	}
+
 	/**
 	 * @see org.openmrs.calculation.result.SimpleResult#isEmpty()
 	 */
@@ -52,4 +72,37 @@ public class BooleanResult extends SimpleResult {
 		return value == null || !((Boolean) value);
 	}
 
+	/**
+	 * Shared result which can't be modified as it is used for many patients
+	 */
+	private static class SharedBooleanResult extends BooleanResult {
+
+		private SharedBooleanResult(boolean value) {
+			super(value, null);
+		}
+
+		/**
+		 * @see org.openmrs.calculation.result.SimpleResult#setValue(Object)
+		 */
+		@Override
+		public void setValue(Object value) {
+			throw new UnsupportedOperationException("Shared boolean results can't be modified");
+		}
+
+		/**
+		 * @see org.openmrs.calculation.result.SimpleResult#setCalculation(org.openmrs.calculation.Calculation)
+		 */
+		@Override
+		public void setCalculation(Calculation calculation) {
+			throw new UnsupportedOperationException("Shared boolean results can't be modified");
+		}
+
+		/**
+		 * @see org.openmrs.calculation.result.SimpleResult#setCalculationContext(org.openmrs.calculation.CalculationContext)
+		 */
+		@Override
+		public void setCalculationContext(CalculationContext calculationContext) {
+			throw new UnsupportedOperationException("Shared boolean results can't be modified");
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared pool of worker threads for concurrent evaluation of calculations. The pool is bounded by the number of
+ * available processors and is created when first used. Each task runs in its own session with the user context of the
+ * thread which submitted it. Tasks submitted from a worker thread are run directly on that thread, so nested concurrent
+ * evaluations can't exhaust the pool.
+ */
+public class CalculationExecutor {
+
+	private static final ThreadLocal<Boolean> workerThread = new ThreadLocal<Boolean>();
+
+	private static ExecutorService executor;
+
+	/**
+	 * Gets the maximum number of tasks which can run concurrently
+	 * @return the number of worker threads
+	 */
+	public static int getMaxThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Gets whether the current thread is a worker thread of this pool
+	 * @return true if current thread is a worker
+	 */
+	public static boolean isWorkerThread() {
+		return Boolean.TRUE.equals(workerThread.get());
+	}
+
+	/**
+	 * Runs the given tasks and waits for them to complete
+	 * @param tasks the tasks
+	 * @return the task results in the same order as the tasks
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws ExecutionException if any task fails
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+		List<T> ret = new ArrayList<T>();
+
+		if (isWorkerThread()) {
+			for (Callable<T> task : tasks) {
+				try {
+					ret.add(task.call());
+				}
+				catch (Exception ex) {
+					throw new ExecutionException(ex);
+				}
+			}
+			return ret;
+		}
+
+		final UserContext userContext = Context.getUserContext();
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		try {
+			for (final Callable<T> task : tasks) {
+				futures.add(getExecutor().submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						Context.openSession();
+						try {
+							Context.setUserContext(userContext);
+							return task.call();
+						}
+						finally {
+							Context.closeSession();
+						}
+					}
+				}));
+			}
+
+			for (Future<T> future : futures) {
+				ret.add(future.get());
+			}
+			return ret;
+		}
+		finally {
+			// Don't leave remaining tasks running if one has failed
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Shuts down the worker threads. A new pool will be created if the executor is used again.
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Gets the executor, creating it if necessary
+	 * @return the executor
+	 */
+	protected static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(getMaxThreads(), new WorkerThreadFactory());
+		}
+		return executor;
+	}
+
+	/**
+	 * Creates daemon worker threads
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		/**
+		 * @see ThreadFactory#newThread(Runnable)
+		 */
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					workerThread.set(Boolean.TRUE);
+					runnable.run();
+				}
+			}, "kenyacore-calculation-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
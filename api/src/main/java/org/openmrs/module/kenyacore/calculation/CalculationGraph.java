@@ -0,0 +1,356 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Session;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.BaseCalculation;
+import org.openmrs.calculation.ConfigurableCalculation;
+import org.openmrs.calculation.patient.PatientCalculation;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.patient.PatientCalculationService;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.CoreUtils;
+
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Evaluates the sub-calculations of a calculation. Each sub-calculation is a node identified by its calculation, its
+ * parameter values, the calculation date and its cohort. Node results are stored in the calculation context so that a
+ * node needed by several calculations is only evaluated once. A result is only softly referenced until it is re-used,
+ * so results which are never needed again can be reclaimed. Calculations which aren't configurable and are either
+ * annotated with {@link StatelessCalculation} or have no instance fields are identified by class, other calculations by
+ * instance.
+ *
+ * Independent nodes can be evaluated concurrently by setting the global property {@link #GP_THREADS}. Each worker uses
+ * its own calculation context, so data indexes and result caches aren't shared between concurrently evaluated nodes.
+ * Their results are re-attached to the current session afterwards, and nodes whose results can't be re-attached are
+ * evaluated again on the current thread.
+ */
+public class CalculationGraph {
+
+	/**
+	 * Global property which specifies the number of threads used to evaluate independent sub-calculations
+	 */
+	public static final String GP_THREADS = "kenyacore.subCalculationThreads";
+
+	protected static final Log log = LogFactory.getLog(CalculationGraph.class);
+
+	private static final Map<Class<?>, Boolean> statelessClasses = new ConcurrentHashMap<Class<?>, Boolean>();
+
+	/**
+	 * Evaluates a single sub-calculation, re-using its results if it has already been evaluated with the given context
+	 * @param calculation the calculation
+	 * @param cohort the patient ids
+	 * @param parameterValues the parameter values (may be null)
+	 * @param calculationContext the calculation context
+	 * @return the calculation results
+	 */
+	public static CalculationResultMap evaluate(PatientCalculation calculation, Collection<Integer> cohort, Map<String, Object> parameterValues, PatientCalculationContext calculationContext) {
+		return evaluateAll(Arrays.asList(calculation), cohort, parameterValues, calculationContext).get(0);
+	}
+
+	/**
+	 * Evaluates several sub-calculations on the same cohort. Duplicate nodes and nodes which have already been evaluated
+	 * with the given context are only evaluated once.
+	 * @param calculations the calculations
+	 * @param cohort the patient ids
+	 * @param parameterValues the parameter values (may be null)
+	 * @param calculationContext the calculation context
+	 * @return the calculation results in the same order as the calculations
+	 */
+	public static List<CalculationResultMap> evaluateAll(List<? extends PatientCalculation> calculations, Collection<Integer> cohort, Map<String, Object> parameterValues, PatientCalculationContext calculationContext) {
+		NodeResults stored = NodeResults.forContext(calculationContext);
+
+		// Plan which distinct nodes still need to be evaluated
+		List<List<Object>> keys = new ArrayList<List<Object>>();
+		Map<List<Object>, PatientCalculation> pending = new LinkedHashMap<List<Object>, PatientCalculation>();
+		Map<List<Object>, CalculationResultMap> results = new HashMap<List<Object>, CalculationResultMap>();
+
+		for (PatientCalculation calculation : calculations) {
+			List<Object> key = key(calculation, cohort, parameterValues, calculationContext.getNow());
+			keys.add(key);
+
+			if (!results.containsKey(key) && !pending.containsKey(key)) {
+				CalculationResultMap existing = stored.get(key);
+				if (existing != null) {
+					results.put(key, existing);
+				}
+				else {
+					pending.put(key, calculation);
+				}
+			}
+		}
+
+		int threads = pending.size() > 1 ? Math.min(CoreUtils.getIntegerGlobalProperty(GP_THREADS, 1), CalculationExecutor.getMaxThreads()) : 1;
+		if (threads > 1) {
+			results.putAll(evaluateConcurrently(pending, cohort, parameterValues, calculationContext));
+		}
+		else {
+			for (Map.Entry<List<Object>, PatientCalculation> node : pending.entrySet()) {
+				results.put(node.getKey(), evaluateNode(node.getValue(), cohort, parameterValues, calculationContext));
+			}
+		}
+
+		for (List<Object> key : pending.keySet()) {
+			stored.put(key, results.get(key));
+		}
+
+		List<CalculationResultMap> ret = new ArrayList<CalculationResultMap>();
+		for (List<Object> key : keys) {
+			// Each caller gets its own copy as result maps are mutable
+			ret.add(CalculationResultCache.copy(results.get(key)));
+		}
+		return ret;
+	}
+
+	/**
+	 * Evaluates nodes concurrently on the shared worker pool. Each worker evaluates its node with its own calculation
+	 * context, as contexts aren't thread safe and the data indexes and caches they hold would otherwise be filled with
+	 * entities from the worker's session. Only the node results are merged back: these are re-attached to the current
+	 * session, and nodes whose results can't be re-attached are evaluated again on the current thread.
+	 * @param nodes the nodes
+	 * @param cohort the patient ids
+	 * @param parameterValues the parameter values (may be null)
+	 * @param calculationContext the calculation context
+	 * @return the results of each node
+	 */
+	protected static Map<List<Object>, CalculationResultMap> evaluateConcurrently(Map<List<Object>, PatientCalculation> nodes, final Collection<Integer> cohort, final Map<String, Object> parameterValues, PatientCalculationContext calculationContext) {
+		final Date now = calculationContext.getNow();
+
+		List<Callable<CalculationResultMap>> tasks = new ArrayList<Callable<CalculationResultMap>>();
+		for (final PatientCalculation calculation : nodes.values()) {
+			tasks.add(new Callable<CalculationResultMap>() {
+				@Override
+				public CalculationResultMap call() throws Exception {
+					PatientCalculationContext workerContext = Context.getService(PatientCalculationService.class).createCalculationContext();
+					workerContext.setNow(now);
+					return evaluateNode(calculation, cohort, parameterValues, workerContext);
+				}
+			});
+		}
+
+		log.debug("Evaluating " + nodes.size() + " sub-calculations concurrently");
+
+		List<CalculationResultMap> workerResults;
+		try {
+			workerResults = CalculationExecutor.invokeAll(tasks);
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new APIException("Interrupted while evaluating sub-calculations", ex);
+		}
+		catch (ExecutionException ex) {
+			throw new APIException("Unable to evaluate sub-calculation", ex.getCause());
+		}
+
+		Session session = CoreUtils.getSessionFactory().getCurrentSession();
+
+		Map<List<Object>, CalculationResultMap> ret = new HashMap<List<Object>, CalculationResultMap>();
+		int index = 0;
+		for (Map.Entry<List<Object>, PatientCalculation> node : nodes.entrySet()) {
+			CalculationResultMap results = new ResultReattacher(session).reattach(workerResults.get(index++));
+			if (results == null) {
+				log.warn("Re-evaluating " + node.getValue().getClass().getName() + " as its results can't be re-attached");
+				results = evaluateNode(node.getValue(), cohort, parameterValues, calculationContext);
+			}
+			ret.put(node.getKey(), results);
+		}
+		return ret;
+	}
+
+	/**
+	 * Evaluates a single node
+	 * @param calculation the calculation
+	 * @param cohort the patient ids
+	 * @param parameterValues the parameter values (may be null)
+	 * @param calculationContext the calculation context
+	 * @return the calculation results
+	 */
+	protected static CalculationResultMap evaluateNode(PatientCalculation calculation, Collection<Integer> cohort, Map<String, Object> parameterValues, PatientCalculationContext calculationContext) {
+		CalculationProfiler.Record record = CalculationProfiler.start("calculation", calculation.getClass().getName(), cohort);
+		CalculationResultMap results = null;
+		try {
+			results = Context.getService(PatientCalculationService.class).evaluate(cohort, calculation, parameterValues, calculationContext);
+			return results;
+		}
+		finally {
+			CalculationProfiler.stop(record, results);
+		}
+	}
+
+	/**
+	 * Creates the key which identifies a node
+	 * @param calculation the calculation
+	 * @param cohort the patient ids
+	 * @param parameterValues the parameter values (may be null)
+	 * @param now the calculation date
+	 * @return the key
+	 */
+	protected static List<Object> key(PatientCalculation calculation, Collection<Integer> cohort, Map<String, Object> parameterValues, Date now) {
+		Map<String, Object> parameters = parameterValues != null ? new HashMap<String, Object>(parameterValues) : null;
+
+		return Arrays.<Object>asList(CalculationGraph.class, identity(calculation), parameters, now, PatientBitmap.of(cohort));
+	}
+
+	/**
+	 * Gets the object which identifies a calculation in keys. This is the class for stateless calculations which aren't
+	 * configurable, and the instance itself for other calculations.
+	 * @param calculation the calculation
+	 * @return the identity
+	 */
+	protected static Object identity(PatientCalculation calculation) {
+		boolean byClass = !(calculation instanceof ConfigurableCalculation) && isStateless(calculation.getClass());
+		return byClass ? calculation.getClass() : new InstanceIdentity(calculation);
+	}
+
+	/**
+	 * Checks whether instances of a calculation class are interchangeable, i.e. it is annotated with
+	 * {@link StatelessCalculation} or it declares no instance fields below {@link BaseCalculation}
+	 * @param calculationClass the calculation class
+	 * @return true if stateless
+	 */
+	protected static boolean isStateless(Class<?> calculationClass) {
+		Boolean stateless = statelessClasses.get(calculationClass);
+		if (stateless == null) {
+			stateless = calculationClass.isAnnotationPresent(StatelessCalculation.class) || !hasInstanceFields(calculationClass);
+			statelessClasses.put(calculationClass, stateless);
+		}
+		return stateless;
+	}
+
+	/**
+	 * Checks whether a calculation class or any of its superclasses below {@link BaseCalculation} declares instance fields
+	 * @param calculationClass the calculation class
+	 * @return true if instance fields are declared
+	 */
+	private static boolean hasInstanceFields(Class<?> calculationClass) {
+		for (Class<?> clazz = calculationClass; clazz != null && !clazz.equals(BaseCalculation.class) && !clazz.equals(Object.class); clazz = clazz.getSuperclass()) {
+			for (Field field : clazz.getDeclaredFields()) {
+				if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Results of evaluated nodes, stored in the calculation context. A result is softly referenced until it is re-used,
+	 * after which it is kept for the lifetime of the context.
+	 */
+	protected static class NodeResults {
+
+		private static final String CONTEXT_CACHE_KEY = "kenyacoreCalculationGraph";
+
+		private Map<List<Object>, Object> results = new HashMap<List<Object>, Object>();
+
+		/**
+		 * Gets the node results stored in the given calculation context, creating and storing them if necessary
+		 * @param calculationContext the calculation context
+		 * @return the node results
+		 */
+		static NodeResults forContext(PatientCalculationContext calculationContext) {
+			synchronized (calculationContext) {
+				NodeResults stored = (NodeResults) calculationContext.getFromCache(CONTEXT_CACHE_KEY);
+				if (stored == null) {
+					stored = new NodeResults();
+					calculationContext.addToCache(CONTEXT_CACHE_KEY, stored);
+				}
+				return stored;
+			}
+		}
+
+		/**
+		 * Gets the result of a node, retaining it strongly from now on as it has been re-used
+		 * @param key the node key
+		 * @return the result or null if it hasn't been evaluated or has been reclaimed
+		 */
+		@SuppressWarnings("unchecked")
+		synchronized CalculationResultMap get(List<Object> key) {
+			Object value = results.get(key);
+			CalculationResultMap result = value instanceof SoftReference ? ((SoftReference<CalculationResultMap>) value).get() : (CalculationResultMap) value;
+
+			if (result != null) {
+				results.put(key, result);
+			}
+			else if (value != null) {
+				results.remove(key);
+			}
+			return result;
+		}
+
+		/**
+		 * Stores the result of a newly evaluated node
+		 * @param key the node key
+		 * @param result the result
+		 */
+		synchronized void put(List<Object> key, CalculationResultMap result) {
+			results.put(key, new SoftReference<CalculationResultMap>(CalculationResultCache.copy(result)));
+		}
+
+		/**
+		 * Gets the number of stored results which are retained strongly
+		 * @return the number of results
+		 */
+		synchronized int getRetainedCount() {
+			int count = 0;
+			for (Object value : results.values()) {
+				if (!(value instanceof SoftReference)) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Wraps an object so that it is compared by identity, regardless of its equals implementation
+	 */
+	private static class InstanceIdentity {
+
+		private final Object instance;
+
+		InstanceIdentity(Object instance) {
+			this.instance = instance;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof InstanceIdentity && ((InstanceIdentity) o).instance == instance;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(instance);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Annotation processor which writes the names of all concrete patient calculation classes being compiled to the
+ * calculation index resource, so that {@link CalculationManager} doesn't have to scan the module's classes. It isn't
+ * registered as a service, so a module opts in by naming it in the annotationProcessors configuration of the
+ * maven-compiler-plugin. No index is written if no calculations are found.
+ * <p/>
+ * An incremental build only compiles some classes, so the index is merged with the one written by the previous build.
+ * Previously indexed classes are kept if they can still be found on the classpath and are still concrete public
+ * calculations, so classes which are deleted without a clean build are only dropped if their class files are too.
+ */
+@SupportedAnnotationTypes("*")
+public class CalculationIndexProcessor extends AbstractProcessor {
+
+	private static final String CALCULATION_CLASS = "org.openmrs.calculation.patient.PatientCalculation";
+
+	private Set<String> classNames = new TreeSet<String>();
+
+	/**
+	 * @see javax.annotation.processing.AbstractProcessor#getSupportedSourceVersion()
+	 */
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	/**
+	 * @see javax.annotation.processing.AbstractProcessor#process(java.util.Set, javax.annotation.processing.RoundEnvironment)
+	 */
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement calculationType = processingEnv.getElementUtils().getTypeElement(CALCULATION_CLASS);
+		if (calculationType == null) {
+			return false;
+		}
+
+		Types types = processingEnv.getTypeUtils();
+		TypeMirror calculationMirror = types.erasure(calculationType.asType());
+
+		if (roundEnv.processingOver()) {
+			if (!classNames.isEmpty()) {
+				mergePreviousIndex(calculationMirror, types);
+				writeIndex();
+			}
+		}
+		else {
+			for (Element element : roundEnv.getRootElements()) {
+				collect(element, calculationMirror, types);
+			}
+		}
+
+		// Never claim annotations so other processors still see them
+		return false;
+	}
+
+	/**
+	 * Collects the given element and its static nested classes if they are concrete public calculation classes
+	 * @param element the element
+	 * @param calculationMirror the erased calculation type
+	 * @param types the type utilities
+	 */
+	protected void collect(Element element, TypeMirror calculationMirror, Types types) {
+		if (element.getKind() != ElementKind.CLASS) {
+			return;
+		}
+
+		if (isIndexable(element, calculationMirror, types)) {
+			classNames.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+		}
+
+		for (Element enclosed : element.getEnclosedElements()) {
+			if (enclosed.getModifiers().contains(Modifier.STATIC)) {
+				collect(enclosed, calculationMirror, types);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the given element is a concrete public calculation class
+	 * @param element the element
+	 * @param calculationMirror the erased calculation type
+	 * @param types the type utilities
+	 * @return true if element should be indexed
+	 */
+	protected boolean isIndexable(Element element, TypeMirror calculationMirror, Types types) {
+		if (element.getKind() != ElementKind.CLASS) {
+			return false;
+		}
+
+		Set<Modifier> modifiers = element.getModifiers();
+		return modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.ABSTRACT) && types.isAssignable(types.erasure(element.asType()), calculationMirror);
+	}
+
+	/**
+	 * Adds the class names from the index written by a previous build, if there is one, which are still calculation
+	 * classes that should be indexed
+	 * @param calculationMirror the erased calculation type
+	 * @param types the type utilities
+	 */
+	protected void mergePreviousIndex(TypeMirror calculationMirror, Types types) {
+		try {
+			FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", CalculationManager.INDEX_RESOURCE);
+			BufferedReader reader = new BufferedReader(file.openReader(true));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (line.length() == 0 || classNames.contains(line)) {
+						continue;
+					}
+
+					TypeElement element = processingEnv.getElementUtils().getTypeElement(line.replace('$', '.'));
+					if (element != null && isIndexable(element, calculationMirror, types)) {
+						classNames.add(line);
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException ex) {
+			// No previous index
+		}
+	}
+
+	/**
+	 * Writes the collected class names to the index resource
+	 */
+	protected void writeIndex() {
+		try {
+			FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", CalculationManager.INDEX_RESOURCE);
+			Writer writer = file.openWriter();
+			try {
+				for (String className : classNames) {
+					writer.write(className);
+					writer.write("\n");
+				}
+			}
+			finally {
+				writer.close();
+			}
+		}
+		catch (IOException ex) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to write calculation index: " + ex.getMessage());
+		}
+	}
+}
@@ -14,8 +14,12 @@
 
 package org.openmrs.module.kenyacore.calculation;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
 import java.util.*;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
@@ -23,7 +27,14 @@ import org.openmrs.calculation.Calculation;
 import org.openmrs.calculation.CalculationProvider;
 import org.openmrs.calculation.InvalidCalculationException;
 import org.openmrs.calculation.patient.PatientCalculation;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.patient.PatientCalculationService;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.Module;
+import org.openmrs.module.ModuleClassLoader;
+import org.openmrs.module.ModuleFactory;
 import org.openmrs.module.kenyacore.ContentManager;
+import org.openmrs.util.OpenmrsClassLoader;
 import org.springframework.beans.factory.config.BeanDefinition;
 import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
 import org.springframework.core.type.filter.AssignableTypeFilter;
@@ -37,9 +48,14 @@ public class CalculationManager implements ContentManager, CalculationProvider {
 	
 	protected static final Log log = LogFactory.getLog(CalculationManager.class);
 
+	/**
+	 * Path of the resources which list calculation classes, one per line
+	 */
+	public static final String INDEX_RESOURCE = "META-INF/kenyacore/calculations";
+
 	private Map<String, Class<? extends PatientCalculation>> calculationClasses = new HashMap<String, Class<? extends PatientCalculation>>();
 	
-	private List<Class<? extends PatientFlagCalculation>> flagCalculationClasses = new ArrayList<Class<? extends PatientFlagCalculation>>();
+	private volatile List<Class<? extends PatientFlagCalculation>> flagCalculationClasses = Collections.emptyList();
 
 	/**
 	 * @see org.openmrs.module.kenyacore.ContentManager#getPriority()
@@ -55,26 +71,118 @@ public class CalculationManager implements ContentManager, CalculationProvider {
 	@Override
 	public synchronized void refresh() {
 		calculationClasses.clear();
-		flagCalculationClasses.clear();
+		CalculationPool.clear();
 
-		ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
-		scanner.addIncludeFilter(new AssignableTypeFilter(PatientCalculation.class));
+		long start = System.currentTimeMillis();
 
-		for (BeanDefinition bd : scanner.findCandidateComponents("org.openmrs.module")) {
+		// Modules without an index are scanned, and if there's no index at all then the whole classpath is scanned
+		Set<String> classNames = readIndex();
+		boolean indexed = classNames != null;
+		if (indexed) {
+			for (String basePackage : getUnindexedPackages()) {
+				log.info("No calculation index found for " + basePackage + " so scanning it for calculations");
+				classNames.addAll(scanClasspath(basePackage));
+			}
+		}
+		else {
+			log.info("No calculation index found so scanning classpath for calculations");
+			classNames = scanClasspath("org.openmrs.module");
+		}
+
+		List<Class<? extends PatientFlagCalculation>> flagClasses = new ArrayList<Class<? extends PatientFlagCalculation>>();
+
+		for (String className : classNames) {
 			try {
-				Class<? extends PatientCalculation> clazz = (Class<? extends PatientCalculation>) Context.loadClass(bd.getBeanClassName());
-				calculationClasses.put(bd.getBeanClassName(), clazz);
+				Class<?> clazz = Context.loadClass(className);
+				if (!PatientCalculation.class.isAssignableFrom(clazz)) {
+					log.warn("Ignoring indexed class " + className + " which is not a patient calculation");
+					continue;
+				}
+
+				calculationClasses.put(className, (Class<? extends PatientCalculation>) clazz);
 
 				if (PatientFlagCalculation.class.isAssignableFrom(clazz)) {
-					flagCalculationClasses.add((Class<? extends PatientFlagCalculation>) clazz);
+					flagClasses.add((Class<? extends PatientFlagCalculation>) clazz);
 				}
 
 			} catch (ClassNotFoundException e) {
 				e.printStackTrace();
 			}
 
-			log.debug("Registered calculation class " + bd.getBeanClassName());
+			log.debug("Registered calculation class " + className);
+		}
+
+		flagCalculationClasses = Collections.unmodifiableList(flagClasses);
+
+		long time = System.currentTimeMillis() - start;
+
+		log.info("Registered " + calculationClasses.size() + " calculation classes from " + (indexed ? "index" : "classpath scan") + " in " + time + "ms");
+	}
+
+	/**
+	 * Reads the names of calculation classes from all calculation index resources (see {@link CalculationIndexProcessor}).
+	 * These may only cover some modules (see {@link #getUnindexedPackages()}).
+	 * @return the class names or null if there are no index resources
+	 */
+	protected Set<String> readIndex() {
+		Set<String> classNames = null;
+		try {
+			Enumeration<URL> resources = OpenmrsClassLoader.getInstance().getResources(INDEX_RESOURCE);
+			while (resources.hasMoreElements()) {
+				if (classNames == null) {
+					classNames = new LinkedHashSet<String>();
+				}
+
+				InputStream in = resources.nextElement().openStream();
+				try {
+					for (String line : (List<String>) IOUtils.readLines(in, "UTF-8")) {
+						line = line.trim();
+						if (line.length() > 0 && !line.startsWith("#")) {
+							classNames.add(line);
+						}
+					}
+				}
+				finally {
+					IOUtils.closeQuietly(in);
+				}
+			}
+		}
+		catch (IOException ex) {
+			log.warn("Unable to read calculation index", ex);
+			return null;
+		}
+		return classNames;
+	}
+
+	/**
+	 * Gets the packages of the started modules which don't contain a calculation index
+	 * @return the package names
+	 */
+	protected Set<String> getUnindexedPackages() {
+		Set<String> packages = new LinkedHashSet<String>();
+		for (Module module : ModuleFactory.getStartedModules()) {
+			ModuleClassLoader classLoader = ModuleFactory.getModuleClassLoader(module);
+			if (classLoader != null && classLoader.findResource(INDEX_RESOURCE) == null) {
+				packages.add(module.getPackageName());
+			}
+		}
+		return packages;
+	}
+
+	/**
+	 * Scans the classpath for calculation classes
+	 * @param basePackage the package to scan
+	 * @return the class names
+	 */
+	protected Set<String> scanClasspath(String basePackage) {
+		ClassPathScanningCandidateComponentProvider scanner = new ClassPathScanningCandidateComponentProvider(false);
+		scanner.addIncludeFilter(new AssignableTypeFilter(PatientCalculation.class));
+
+		Set<String> classNames = new LinkedHashSet<String>();
+		for (BeanDefinition bd : scanner.findCandidateComponents(basePackage)) {
+			classNames.add(bd.getBeanClassName());
 		}
+		return classNames;
 	}
 
 	/**
@@ -86,19 +194,62 @@ public class CalculationManager implements ContentManager, CalculationProvider {
 	}
 
 	/**
-	 * Gets new instances of all patient flag calculations in this module
-	 * @return list of flag calculation instances
+	 * Gets instances of all patient flag calculations. Instances of flag calculations annotated with
+	 * {@link StatelessCalculation} are pooled and shared by all callers until calculations are refreshed, and other
+	 * flag calculations are instantiated on every call.
+	 * @return the unmodifiable list of flag calculation instances
 	 */
 	public List<PatientFlagCalculation> getFlagCalculations() {
 		List<PatientFlagCalculation> ret = new ArrayList<PatientFlagCalculation>();
 
 		for (Class<? extends PatientFlagCalculation> calculationClass : flagCalculationClasses) {
-			ret.add((PatientFlagCalculation) CalculationUtils.instantiateCalculation(calculationClass, null));
+			ret.add((PatientFlagCalculation) CalculationPool.getInstance(calculationClass, null));
 		}
 
-		return ret;
+		return Collections.unmodifiableList(ret);
 	}
 	
+	/**
+	 * Evaluates all patient flag calculations for the given cohort in a single calculation context, so that data
+	 * fetched by one flag can be re-used by the others
+	 * @param cohort the patient ids
+	 * @return the map of patient ids to messages of set flags. Patients with no set flags are not included.
+	 */
+	public Map<Integer, List<String>> evaluateFlags(Collection<Integer> cohort) {
+		PatientCalculationService service = Context.getService(PatientCalculationService.class);
+		return evaluateFlags(cohort, service.createCalculationContext());
+	}
+
+	/**
+	 * Evaluates all patient flag calculations for the given cohort in the given calculation context
+	 * @param cohort the patient ids
+	 * @param calculationContext the calculation context
+	 * @return the map of patient ids to messages of set flags. Patients with no set flags are not included.
+	 */
+	public Map<Integer, List<String>> evaluateFlags(Collection<Integer> cohort, PatientCalculationContext calculationContext) {
+		Map<Integer, List<String>> ret = new HashMap<Integer, List<String>>();
+		if (cohort.isEmpty()) {
+			return ret;
+		}
+
+		PatientCalculationService service = Context.getService(PatientCalculationService.class);
+
+		for (PatientFlagCalculation calculation : getFlagCalculations()) {
+			CalculationResultMap results = service.evaluate(cohort, calculation, calculationContext);
+
+			for (Integer ptId : CalculationUtils.patientIdsThatPass(results, null)) {
+				List<String> messages = ret.get(ptId);
+				if (messages == null) {
+					messages = new ArrayList<String>();
+					ret.put(ptId, messages);
+				}
+				messages.add(calculation.getFlagMessage());
+			}
+		}
+
+		return ret;
+	}
+
 	/**
 	 * @see org.openmrs.calculation.CalculationProvider#getCalculation(java.lang.String, java.lang.String)
 	 */
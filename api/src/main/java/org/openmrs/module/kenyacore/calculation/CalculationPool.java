@@ -0,0 +1,96 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.calculation.ConfigurableCalculation;
+import org.openmrs.calculation.patient.PatientCalculation;
+
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pool of calculation instances. Constructors are resolved once per class, and configured instances of calculations
+ * annotated with {@link StatelessCalculation} are shared by class and configuration. Other calculations get a new
+ * instance on every request.
+ */
+public class CalculationPool {
+
+	private static ConcurrentMap<Class<?>, Constructor<?>> constructors = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+	private static ConcurrentMap<List<Object>, PatientCalculation> instances = new ConcurrentHashMap<List<Object>, PatientCalculation>();
+
+	/**
+	 * Gets a configured instance of a calculation
+	 * @param clazz the calculation class
+	 * @param configuration the configuration (may be null)
+	 * @return the calculation instance
+	 */
+	public static PatientCalculation getInstance(Class<? extends PatientCalculation> clazz, String configuration) {
+		if (!clazz.isAnnotationPresent(StatelessCalculation.class)) {
+			return newInstance(clazz, configuration);
+		}
+
+		List<Object> key = Arrays.<Object>asList(clazz, configuration);
+		PatientCalculation calc = instances.get(key);
+		if (calc == null) {
+			calc = newInstance(clazz, configuration);
+
+			PatientCalculation existing = instances.putIfAbsent(key, calc);
+			if (existing != null) {
+				calc = existing;
+			}
+		}
+		return calc;
+	}
+
+	/**
+	 * Creates and configures a new instance of a calculation
+	 * @param clazz the calculation class
+	 * @param configuration the configuration (may be null)
+	 * @return the calculation instance
+	 */
+	public static PatientCalculation newInstance(Class<? extends PatientCalculation> clazz, String configuration) {
+		try {
+			Constructor<?> constructor = constructors.get(clazz);
+			if (constructor == null) {
+				constructor = clazz.getDeclaredConstructor();
+				constructor.setAccessible(true);
+				constructors.put(clazz, constructor);
+			}
+
+			PatientCalculation calc = (PatientCalculation) constructor.newInstance();
+
+			if (configuration != null && calc instanceof ConfigurableCalculation) {
+				((ConfigurableCalculation) calc).setConfiguration(configuration);
+			}
+
+			return calc;
+		}
+		catch (Exception ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Clears all pooled constructors and instances, e.g. when calculation classes are reloaded
+	 */
+	public static void clear() {
+		constructors.clear();
+		instances.clear();
+	}
+}
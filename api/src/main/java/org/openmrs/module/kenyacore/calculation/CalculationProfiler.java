@@ -0,0 +1,582 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in profiler for calculation and data definition evaluations. When enabled, each evaluation records its wall time,
+ * cohort size, result count and cache accesses, and nested evaluations on the same thread are recorded as children.
+ * Completed top-level evaluations are kept in a ring buffer, and statistics are aggregated by evaluation name. Exposed
+ * over JMX as {@link #OBJECT_NAME}.
+ */
+public class CalculationProfiler implements CalculationProfilerMBean {
+
+	/**
+	 * Global property which enables profiling when set to true. It is read when the module starts, after which profiling
+	 * can be switched on or off over JMX.
+	 */
+	public static final String GP_ENABLED = "kenyacore.calculationProfiling";
+
+	/**
+	 * The JMX object name
+	 */
+	public static final String OBJECT_NAME = "org.openmrs.module.kenyacore:type=CalculationProfiler";
+
+	protected static final Log log = LogFactory.getLog(CalculationProfiler.class);
+
+	private static final CalculationProfiler instance = new CalculationProfiler();
+
+	private volatile boolean enabled = false;
+
+	private int capacity = 1000;
+
+	private final LinkedList<Record> recent = new LinkedList<Record>();
+
+	private final ConcurrentMap<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+
+	private final ThreadLocal<LinkedList<Record>> stack = new ThreadLocal<LinkedList<Record>>() {
+		@Override
+		protected LinkedList<Record> initialValue() {
+			return new LinkedList<Record>();
+		}
+	};
+
+	private final AtomicLong cacheHits = new AtomicLong();
+
+	private final AtomicLong cacheMisses = new AtomicLong();
+
+	/**
+	 * Gets the profiler instance
+	 * @return the instance
+	 */
+	public static CalculationProfiler getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Starts recording an evaluation
+	 * @param type the type of evaluation, e.g. "calculation"
+	 * @param name the name of the calculation or definition
+	 * @param cohort the patient ids
+	 * @return the record, or null if profiling is disabled
+	 */
+	public static Record start(String type, String name, Collection<Integer> cohort) {
+		if (!instance.enabled) {
+			return null;
+		}
+
+		Record record = new Record(type, name, cohort != null ? cohort.size() : 0);
+
+		LinkedList<Record> records = instance.stack.get();
+		if (!records.isEmpty()) {
+			records.getLast().children.add(record);
+		}
+		records.addLast(record);
+		return record;
+	}
+
+	/**
+	 * Stops recording an evaluation
+	 * @param record the record returned by {@link #start(String, String, java.util.Collection)} (may be null)
+	 * @param results the results (may be null)
+	 */
+	public static void stop(Record record, Map<?, ?> results) {
+		if (record == null) {
+			return;
+		}
+
+		record.duration = System.nanoTime() - record.startNanos;
+		record.resultCount = results != null ? results.size() : 0;
+
+		// Pop this record and any children which weren't stopped because of an exception. This happens even if profiling
+		// has since been disabled so that the stack doesn't leak into later evaluations on this thread.
+		LinkedList<Record> records = instance.stack.get();
+		if (records.contains(record)) {
+			Record popped;
+			do {
+				popped = records.removeLast();
+			} while (popped != record);
+		}
+
+		boolean topLevel = records.isEmpty();
+		if (topLevel) {
+			instance.stack.remove();
+		}
+
+		if (instance.enabled) {
+			instance.aggregate(record);
+
+			if (topLevel) {
+				instance.addRecent(record);
+			}
+		}
+	}
+
+	/**
+	 * Records a cache access by the current evaluation
+	 * @param hit true if the access was a hit
+	 */
+	public static void cacheAccess(boolean hit) {
+		if (!instance.enabled) {
+			return;
+		}
+
+		(hit ? instance.cacheHits : instance.cacheMisses).incrementAndGet();
+
+		LinkedList<Record> records = instance.stack.get();
+		if (!records.isEmpty()) {
+			if (hit) {
+				records.getLast().cacheHits++;
+			}
+			else {
+				records.getLast().cacheMisses++;
+			}
+		}
+	}
+
+	/**
+	 * Registers the profiler with the platform MBean server
+	 */
+	public static void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(instance, name);
+			}
+		}
+		catch (Exception ex) {
+			log.warn("Unable to register calculation profiler MBean", ex);
+		}
+	}
+
+	/**
+	 * Unregisters the profiler from the platform MBean server
+	 */
+	public static void unregister() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		}
+		catch (Exception ex) {
+			log.warn("Unable to unregister calculation profiler MBean", ex);
+		}
+	}
+
+	/**
+	 * Gets recent top-level evaluations, most recent first
+	 * @return the records
+	 */
+	public List<Record> getRecent() {
+		synchronized (recent) {
+			List<Record> ret = new ArrayList<Record>(recent);
+			Collections.reverse(ret);
+			return ret;
+		}
+	}
+
+	/**
+	 * Gets the aggregated statistics of each evaluation name
+	 * @return the statistics by name
+	 */
+	public Map<String, Statistics> getStatistics() {
+		return Collections.unmodifiableMap(statistics);
+	}
+
+	/**
+	 * @see CalculationProfilerMBean#isEnabled()
+	 */
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @see CalculationProfilerMBean#setEnabled(boolean)
+	 */
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @see CalculationProfilerMBean#getCapacity()
+	 */
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @see CalculationProfilerMBean#setCapacity(int)
+	 */
+	@Override
+	public void setCapacity(int capacity) {
+		synchronized (recent) {
+			this.capacity = Math.max(capacity, 1);
+			while (recent.size() > this.capacity) {
+				recent.removeFirst();
+			}
+		}
+	}
+
+	/**
+	 * @see CalculationProfilerMBean#getCacheHits()
+	 */
+	@Override
+	public long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @see CalculationProfilerMBean#getCacheMisses()
+	 */
+	@Override
+	public long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * @see CalculationProfilerMBean#getTopByTotalTime(int)
+	 */
+	@Override
+	public String[] getTopByTotalTime(int count) {
+		List<Statistics> sorted = new ArrayList<Statistics>(statistics.values());
+		Collections.sort(sorted, new Comparator<Statistics>() {
+			@Override
+			public int compare(Statistics s1, Statistics s2) {
+				long t1 = s1.getTotalNanos(), t2 = s2.getTotalNanos();
+				return t1 < t2 ? 1 : (t1 > t2 ? -1 : 0);
+			}
+		});
+
+		List<String> ret = new ArrayList<String>();
+		for (Statistics stats : sorted.subList(0, Math.min(count, sorted.size()))) {
+			ret.add(stats.toString());
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	/**
+	 * @see CalculationProfilerMBean#getRecentCallTrees(int)
+	 */
+	@Override
+	public String[] getRecentCallTrees(int count) {
+		List<String> ret = new ArrayList<String>();
+		for (Iterator<Record> it = getRecent().iterator(); it.hasNext() && ret.size() < count; ) {
+			StringBuilder sb = new StringBuilder();
+			it.next().format(sb, 0);
+			ret.add(sb.toString());
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	/**
+	 * @see CalculationProfilerMBean#reset()
+	 */
+	@Override
+	public void reset() {
+		synchronized (recent) {
+			recent.clear();
+		}
+		statistics.clear();
+		cacheHits.set(0);
+		cacheMisses.set(0);
+	}
+
+	/**
+	 * Adds a completed top-level evaluation to the ring buffer
+	 * @param record the record
+	 */
+	private void addRecent(Record record) {
+		synchronized (recent) {
+			recent.addLast(record);
+			if (recent.size() > capacity) {
+				recent.removeFirst();
+			}
+		}
+	}
+
+	/**
+	 * Adds a completed evaluation to the statistics of its name
+	 * @param record the record
+	 */
+	private void aggregate(Record record) {
+		String key = record.type + ": " + record.name;
+		Statistics stats = statistics.get(key);
+		if (stats == null) {
+			stats = new Statistics(key);
+			Statistics existing = statistics.putIfAbsent(key, stats);
+			if (existing != null) {
+				stats = existing;
+			}
+		}
+		stats.add(record);
+	}
+
+	/**
+	 * A single recorded evaluation
+	 */
+	public static class Record {
+
+		private final String type;
+
+		private final String name;
+
+		private final int cohortSize;
+
+		private final Date started = new Date();
+
+		private final long startNanos = System.nanoTime();
+
+		private long duration;
+
+		private int resultCount;
+
+		private int cacheHits;
+
+		private int cacheMisses;
+
+		private final List<Record> children = new ArrayList<Record>();
+
+		Record(String type, String name, int cohortSize) {
+			this.type = type;
+			this.name = name;
+			this.cohortSize = cohortSize;
+		}
+
+		/**
+		 * Gets the type of evaluation
+		 * @return the type
+		 */
+		public String getType() {
+			return type;
+		}
+
+		/**
+		 * Gets the name of the calculation or definition
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the number of patients evaluated
+		 * @return the cohort size
+		 */
+		public int getCohortSize() {
+			return cohortSize;
+		}
+
+		/**
+		 * Gets when the evaluation started
+		 * @return the start date
+		 */
+		public Date getStarted() {
+			return started;
+		}
+
+		/**
+		 * Gets the wall time of the evaluation
+		 * @return the time in milliseconds
+		 */
+		public long getTime() {
+			return duration / 1000000;
+		}
+
+		/**
+		 * Gets the wall time of the evaluation
+		 * @return the time in nanoseconds
+		 */
+		public long getNanos() {
+			return duration;
+		}
+
+		/**
+		 * Gets the number of results
+		 * @return the result count
+		 */
+		public int getResultCount() {
+			return resultCount;
+		}
+
+		/**
+		 * Gets the number of cache hits during the evaluation
+		 * @return the number of hits
+		 */
+		public int getCacheHits() {
+			return cacheHits;
+		}
+
+		/**
+		 * Gets the number of cache misses during the evaluation
+		 * @return the number of misses
+		 */
+		public int getCacheMisses() {
+			return cacheMisses;
+		}
+
+		/**
+		 * Gets the nested evaluations
+		 * @return the child records
+		 */
+		public List<Record> getChildren() {
+			return children;
+		}
+
+		/**
+		 * Formats this record and its children as an indented tree
+		 * @param sb the string builder
+		 * @param depth the depth of this record
+		 */
+		protected void format(StringBuilder sb, int depth) {
+			for (int i = 0; i < depth; i++) {
+				sb.append("  ");
+			}
+			sb.append(this).append("\n");
+			for (Record child : children) {
+				child.format(sb, depth + 1);
+			}
+		}
+
+		/**
+		 * @see Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return type + ": " + name + " (" + getTime() + "ms, " + cohortSize + " patients, " + resultCount + " results, " + cacheHits + "/" + (cacheHits + cacheMisses) + " cache hits)";
+		}
+	}
+
+	/**
+	 * Aggregated statistics of all evaluations with the same name
+	 */
+	public static class Statistics {
+
+		private final String name;
+
+		private long count;
+
+		private long totalNanos;
+
+		private long maxNanos;
+
+		private long totalCohortSize;
+
+		private long totalResultCount;
+
+		Statistics(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Adds an evaluation
+		 * @param record the record
+		 */
+		synchronized void add(Record record) {
+			count++;
+			totalNanos += record.getNanos();
+			maxNanos = Math.max(maxNanos, record.getNanos());
+			totalCohortSize += record.getCohortSize();
+			totalResultCount += record.getResultCount();
+		}
+
+		/**
+		 * Gets the name of the calculation or definition
+		 * @return the name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Gets the number of evaluations
+		 * @return the count
+		 */
+		public synchronized long getCount() {
+			return count;
+		}
+
+		/**
+		 * Gets the total wall time of all evaluations
+		 * @return the time in milliseconds
+		 */
+		public synchronized long getTotalTime() {
+			return totalNanos / 1000000;
+		}
+
+		/**
+		 * Gets the total wall time of all evaluations
+		 * @return the time in nanoseconds
+		 */
+		public synchronized long getTotalNanos() {
+			return totalNanos;
+		}
+
+		/**
+		 * Gets the maximum wall time of a single evaluation
+		 * @return the time in milliseconds
+		 */
+		public synchronized long getMaxTime() {
+			return maxNanos / 1000000;
+		}
+
+		/**
+		 * Gets the total number of patients evaluated
+		 * @return the total cohort size
+		 */
+		public synchronized long getTotalCohortSize() {
+			return totalCohortSize;
+		}
+
+		/**
+		 * Gets the total number of results
+		 * @return the total result count
+		 */
+		public synchronized long getTotalResultCount() {
+			return totalResultCount;
+		}
+
+		/**
+		 * @see Object#toString()
+		 */
+		@Override
+		public synchronized String toString() {
+			return name + " (count " + count + ", total " + getTotalTime() + "ms, mean " + (count > 0 ? totalNanos / count / 1000000 : 0) + "ms, max " + getMaxTime() + "ms, " + totalCohortSize + " patients, " + totalResultCount + " results)";
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+/**
+ * JMX management interface of the {@link CalculationProfiler}
+ */
+public interface CalculationProfilerMBean {
+
+	/**
+	 * Gets whether profiling is enabled
+	 * @return true if enabled
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Sets whether profiling is enabled
+	 * @param enabled true to enable
+	 */
+	void setEnabled(boolean enabled);
+
+	/**
+	 * Gets the maximum number of recent top-level evaluations which are kept
+	 * @return the capacity
+	 */
+	int getCapacity();
+
+	/**
+	 * Sets the maximum number of recent top-level evaluations which are kept
+	 * @param capacity the capacity
+	 */
+	void setCapacity(int capacity);
+
+	/**
+	 * Gets the number of cache hits recorded while profiling
+	 * @return the number of hits
+	 */
+	long getCacheHits();
+
+	/**
+	 * Gets the number of cache misses recorded while profiling
+	 * @return the number of misses
+	 */
+	long getCacheMisses();
+
+	/**
+	 * Gets statistics for the evaluations with the largest total time
+	 * @param count the maximum number of evaluations
+	 * @return a line for each evaluation
+	 */
+	String[] getTopByTotalTime(int count);
+
+	/**
+	 * Gets the call trees of recent top-level evaluations, most recent first
+	 * @param count the maximum number of evaluations
+	 * @return a formatted call tree for each evaluation
+	 */
+	String[] getRecentCallTrees(int count);
+
+	/**
+	 * Clears all recorded evaluations and statistics
+	 */
+	void reset();
+}
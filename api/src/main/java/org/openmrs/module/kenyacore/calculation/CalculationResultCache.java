@@ -0,0 +1,178 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.result.CalculationResultMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memo cache of calculation result maps produced by the {@link Calculations} helper methods. One instance is stored in
+ * each calculation context so that calculations evaluated with the same context can share the results of identical
+ * data fetches.
+ */
+public class CalculationResultCache {
+
+	/**
+	 * Key of the calculation context cache entry which holds this cache
+	 */
+	protected static final String CONTEXT_CACHE_KEY = "kenyacoreResultCache";
+
+	private Map<List<Object>, CalculationResultMap> results = new ConcurrentHashMap<List<Object>, CalculationResultMap>();
+
+	private Map<List<Object>, PatientBitmap> cohorts = new ConcurrentHashMap<List<Object>, PatientBitmap>();
+
+	private AtomicInteger hits = new AtomicInteger();
+
+	private AtomicInteger misses = new AtomicInteger();
+
+	/**
+	 * Gets the cache stored in the given calculation context, creating and storing a new one if necessary
+	 * @param calculationContext the calculation context
+	 * @return the cache
+	 */
+	public static CalculationResultCache forContext(PatientCalculationContext calculationContext) {
+		synchronized (calculationContext) {
+			CalculationResultCache cache = (CalculationResultCache) calculationContext.getFromCache(CONTEXT_CACHE_KEY);
+			if (cache == null) {
+				cache = new CalculationResultCache();
+				calculationContext.addToCache(CONTEXT_CACHE_KEY, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Creates a cache key
+	 * @param definitionType the type of data being fetched, e.g. the data definition class
+	 * @param target the concept, encounter type or program (may be null)
+	 * @param which the time qualifier (may be null)
+	 * @param onOrAfter the lower date bound (may be null)
+	 * @param onOrBefore the upper date bound (may be null)
+	 * @param cohort the patient ids
+	 * @return the key
+	 */
+	public static List<Object> key(Object definitionType, Object target, Object which, Object onOrAfter, Object onOrBefore, Collection<Integer> cohort) {
+		return Arrays.<Object>asList(definitionType, target, which, onOrAfter, onOrBefore, new HashSet<Integer>(cohort));
+	}
+
+	/**
+	 * Gets a cached result map. Returns a copy so that callers are free to modify it.
+	 * @param key the key
+	 * @return the result map or null if nothing is cached for the given key
+	 */
+	public CalculationResultMap get(List<Object> key) {
+		CalculationResultMap cached = results.get(key);
+		CalculationProfiler.cacheAccess(cached != null);
+		if (cached == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return copy(cached);
+	}
+
+	/**
+	 * Stores a result map. A copy is stored so that later changes by the caller don't affect the cache.
+	 * @param key the key
+	 * @param resultMap the result map
+	 */
+	public void put(List<Object> key, CalculationResultMap resultMap) {
+		results.put(new ArrayList<Object>(key), copy(resultMap));
+	}
+
+	/**
+	 * Gets a cached cohort. Returns a copy so that callers are free to modify it.
+	 * @param key the key
+	 * @return the cohort or null if nothing is cached for the given key
+	 */
+	public PatientBitmap getCohort(List<Object> key) {
+		PatientBitmap cached = cohorts.get(key);
+		CalculationProfiler.cacheAccess(cached != null);
+		if (cached == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return cached.copy();
+	}
+
+	/**
+	 * Stores a cohort, e.g. the patients which pass a filter. A copy is stored so that later changes by the caller don't
+	 * affect the cache.
+	 * @param key the key
+	 * @param cohort the cohort
+	 */
+	public void putCohort(List<Object> key, PatientBitmap cohort) {
+		cohorts.put(new ArrayList<Object>(key), cohort.copy());
+	}
+
+	/**
+	 * Copies a result map. Lazy result maps are copied without wrapping their pending values.
+	 * @param resultMap the result map
+	 * @return the copy
+	 */
+	protected static CalculationResultMap copy(CalculationResultMap resultMap) {
+		if (resultMap instanceof LazyResultMap) {
+			return ((LazyResultMap) resultMap).copy();
+		}
+
+		CalculationResultMap copy = new CalculationResultMap();
+		copy.putAll(resultMap);
+		return copy;
+	}
+
+	/**
+	 * Gets the number of cached result maps and cohorts
+	 * @return the number of entries
+	 */
+	public int size() {
+		return results.size() + cohorts.size();
+	}
+
+	/**
+	 * Gets the number of cache hits
+	 * @return the number of hits
+	 */
+	public int getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of cache misses
+	 * @return the number of misses
+	 */
+	public int getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CalculationResultCache{entries=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + "}";
+	}
+}
@@ -18,7 +18,6 @@ import org.openmrs.Cohort;
 import org.openmrs.Obs;
 import org.openmrs.api.APIException;
 import org.openmrs.api.context.Context;
-import org.openmrs.calculation.ConfigurableCalculation;
 import org.openmrs.calculation.patient.PatientCalculation;
 import org.openmrs.calculation.patient.PatientCalculationContext;
 import org.openmrs.calculation.result.CalculationResult;
@@ -37,17 +36,21 @@ import org.openmrs.module.reporting.data.patient.service.PatientDataService;
 import org.openmrs.module.reporting.data.person.EvaluatedPersonData;
 import org.openmrs.module.reporting.data.person.definition.PersonDataDefinition;
 import org.openmrs.module.reporting.data.person.service.PersonDataService;
+import org.openmrs.module.reporting.evaluation.Definition;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.util.OpenmrsUtil;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Calculation utility methods
@@ -55,24 +58,19 @@ import java.util.Set;
 public class CalculationUtils {
 
 	/**
-	 * Instantiates and configures a patient calculation
+	 * Key of the calculation context cache entry which holds reporting evaluation contexts
+	 */
+	protected static final String REPORTING_CONTEXTS_CACHE_KEY = "reportingEvaluationContexts";
+
+	/**
+	 * Instantiates and configures a patient calculation. Calculations annotated with {@link StatelessCalculation} are
+	 * fetched from the {@link CalculationPool} and so may be shared.
 	 * @param clazz the calculation class
 	 * @param configuration the configuration
 	 * @return the calculation instance
 	 */
 	public static PatientCalculation instantiateCalculation(Class<? extends PatientCalculation> clazz, String configuration) {
-		try {
-			PatientCalculation calc = clazz.newInstance();
-
-			if (configuration != null && ConfigurableCalculation.class.isAssignableFrom(clazz)) {
-				((ConfigurableCalculation) calc).setConfiguration(configuration);
-			}
-
-			return calc;
-		}
-		catch (Exception ex) {
-			throw new RuntimeException(ex);
-		}
+		return CalculationPool.getInstance(clazz, configuration);
 	}
 
 	/**
@@ -93,16 +91,43 @@ public class CalculationUtils {
 	public static Set<Integer> patientsThatPass(CalculationResultMap results, Object requiredResult) {
 		Set<Integer> ret = new HashSet<Integer>();
 		for (Map.Entry<Integer, CalculationResult> e : results.entrySet()) {
-			CalculationResult result = e.getValue();
-
-			// If there is no required result, just check trueness of result, otherwise check result matches required result
-			if ((requiredResult == null && ResultUtil.isTrue(result)) || (result != null && result.getValue().equals(requiredResult))) {
+			if (passes(e.getValue(), requiredResult)) {
 				ret.add(e.getKey());
 			}
 		}
 		return ret;
 	}
 
+	/**
+	 * Extracts patients from calculation result map with matching results into a patient bitmap
+	 * @param results calculation result map
+	 * @param requiredResult the required result value (if null then result must be non-false/empty)
+	 * @return the extracted patient ids
+	 */
+	public static PatientBitmap patientIdsThatPass(CalculationResultMap results, Object requiredResult) {
+		PatientBitmap ret = new PatientBitmap();
+		for (Map.Entry<Integer, CalculationResult> e : results.entrySet()) {
+			if (passes(e.getValue(), requiredResult)) {
+				ret.add(e.getKey().intValue());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Checks whether a calculation result passes
+	 * @param result the calculation result
+	 * @param requiredResult the required result value (if null then result must be non-false/empty)
+	 * @return true if result passes
+	 */
+	protected static boolean passes(CalculationResult result, Object requiredResult) {
+		// If there is no required result, just check trueness of result, otherwise check result matches required result
+		if (requiredResult == null) {
+			return ResultUtil.isTrue(result);
+		}
+		return result != null && requiredResult.equals(result.getValue());
+	}
+
 	/**
 	 * Evaluates a data definition on each patient using a reporting context
 	 * @param dataDefinition the data definition
@@ -113,9 +138,10 @@ public class CalculationUtils {
 	 * @return the calculation result map
 	 */
 	public static CalculationResultMap evaluateWithReporting(DataDefinition dataDefinition, Collection<Integer> cohort, Map<String, Object> parameterValues, PatientCalculation calculation, PatientCalculationContext calculationContext) {
+		CalculationProfiler.Record record = CalculationProfiler.start("data definition", getProfilingName(dataDefinition), cohort);
+		Map<Integer, Object> data = null;
 		try {
 			EvaluationContext reportingContext = ensureReportingContext(calculationContext, cohort, parameterValues);
-			Map<Integer, Object> data;
 
 			if (dataDefinition instanceof PersonDataDefinition) {
 				EvaluatedPersonData result = Context.getService(PersonDataService.class).evaluate((PersonDataDefinition) dataDefinition, reportingContext);
@@ -129,16 +155,14 @@ public class CalculationUtils {
 				throw new RuntimeException("Unknown DataDefinition type: " + dataDefinition.getClass());
 			}
 
-			CalculationResultMap ret = new CalculationResultMap();
-			for (Integer ptId : cohort) {
-				Object reportingResult = data.get(ptId);
-				ret.put(ptId, toCalculationResult(reportingResult, calculation, calculationContext));
-			}
-
-			return ret;
+			// Results are only wrapped when they are accessed
+			return new LazyResultMap(data, cohort, calculation, calculationContext);
 		} catch (EvaluationException ex) {
 			throw new APIException(ex);
 		}
+		finally {
+			CalculationProfiler.stop(record, data);
+		}
 	}
 
 	/**
@@ -150,17 +174,31 @@ public class CalculationUtils {
 	 * @return the evaluated cohort
 	 */
 	public static EvaluatedCohort evaluateWithReporting(CohortDefinition cohortDefinition, Collection<Integer> cohort, Map<String, Object> parameterValues, PatientCalculationContext calculationContext) {
+		CalculationProfiler.Record record = CalculationProfiler.start("cohort definition", getProfilingName(cohortDefinition), cohort);
 		try {
-			EvaluationContext reportingContext = ensureReportingContext(calculationContext, cohort, parameterValues);
-			return Context.getService(CohortDefinitionService.class).evaluate(cohortDefinition, reportingContext);
+			return Context.getService(CohortDefinitionService.class).evaluate(cohortDefinition, ensureReportingContext(calculationContext, cohort, parameterValues));
 		}
 		catch (EvaluationException ex) {
 			throw new APIException(ex);
 		}
+		finally {
+			CalculationProfiler.stop(record, null);
+		}
 	}
 
 	/**
-	 * Convenience method to wrap a plain object in the appropriate calculation result subclass
+	 * Gets the name under which evaluations of a definition are profiled
+	 * @param definition the definition
+	 * @return the name
+	 */
+	protected static String getProfilingName(Definition definition) {
+		String name = definition.getClass().getSimpleName();
+		return definition.getName() != null ? name + " (" + definition.getName() + ")" : name;
+	}
+
+	/**
+	 * Convenience method to wrap a plain object in the appropriate calculation result subclass. Boolean values not
+	 * associated with a calculation are wrapped with the shared {@link BooleanResult#TRUE} and {@link BooleanResult#FALSE}
 	 * @param obj the plain object
 	 * @param calculation the calculation (optional)
 	 * @param calculationContext the calculation context
@@ -181,6 +219,9 @@ public class CalculationUtils {
 			return ret;
 		}
 		else if (obj instanceof Boolean) {
+			if (calculation == null) {
+				return BooleanResult.valueOf((Boolean) obj);
+			}
 			return new BooleanResult((Boolean) obj, calculation, calculationContext);
 		}
 		else {
@@ -190,21 +231,37 @@ public class CalculationUtils {
 
 	/**
 	 * Returns the reporting {@link org.openmrs.module.reporting.evaluation.EvaluationContext} stored in calculationContext, creating and storing
-	 * a new one if necessary.
-	 *
-	 * (Note: for now we never store this, and always return a new one)
-	 *
+	 * a new one if necessary. Contexts are keyed by the cohort, the parameter values and the calculation date so that repeated data
+	 * definition evaluations during the same calculation run can use the reporting module's evaluation cache.
 	 * @param calculationContext the calculation context
 	 * @param cohort the patient ids
 	 * @param parameterValues the parameters for the reporting context
 	 * @return the reporting evaluation context
 	 */
 	protected static EvaluationContext ensureReportingContext(PatientCalculationContext calculationContext, Collection<Integer> cohort, Map<String, Object> parameterValues) {
-		EvaluationContext ret = new EvaluationContext();
-		ret.setEvaluationDate(calculationContext.getNow());
-		ret.setBaseCohort(new Cohort(cohort));
-		ret.setParameterValues(parameterValues);
-		calculationContext.addToCache("reportingEvaluationContext", ret);
+		Map<List<Object>, EvaluationContext> contexts;
+		synchronized (calculationContext) {
+			contexts = (Map<List<Object>, EvaluationContext>) calculationContext.getFromCache(REPORTING_CONTEXTS_CACHE_KEY);
+			if (contexts == null) {
+				contexts = new ConcurrentHashMap<List<Object>, EvaluationContext>();
+				calculationContext.addToCache(REPORTING_CONTEXTS_CACHE_KEY, contexts);
+			}
+		}
+
+		// Copy the cohort and parameters so that later changes to the caller's collections can't corrupt the key. No
+		// parameters and empty parameters are equivalent.
+		Set<Integer> memberIds = new HashSet<Integer>(cohort);
+		Map<String, Object> parameters = parameterValues != null ? new HashMap<String, Object>(parameterValues) : new HashMap<String, Object>();
+		List<Object> key = Arrays.<Object>asList(memberIds, parameters, calculationContext.getNow());
+
+		EvaluationContext ret = contexts.get(key);
+		if (ret == null) {
+			ret = new EvaluationContext();
+			ret.setEvaluationDate(calculationContext.getNow());
+			ret.setBaseCohort(new Cohort(memberIds));
+			ret.setParameterValues(new HashMap<String, Object>(parameters));
+			contexts.put(key, ret);
+		}
 		return ret;
 	}
 
@@ -17,31 +17,41 @@ package org.openmrs.module.kenyacore.calculation;
 import org.openmrs.Concept;
 import org.openmrs.EncounterType;
 import org.openmrs.Program;
+import org.openmrs.api.context.Context;
 import org.openmrs.calculation.patient.PatientCalculationContext;
 import org.openmrs.calculation.result.CalculationResultMap;
 import org.openmrs.module.kenyacore.CoreUtils;
 import org.openmrs.module.reporting.common.TimeQualifier;
-import org.openmrs.module.reporting.common.VitalStatus;
+import org.openmrs.module.reporting.data.DataDefinition;
 import org.openmrs.module.reporting.data.patient.definition.EncountersForPatientDataDefinition;
 import org.openmrs.module.reporting.data.patient.definition.ProgramEnrollmentsForPatientDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.AgeDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.GenderDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.ObsForPersonDataDefinition;
 import org.openmrs.module.reporting.data.person.definition.VitalStatusDataDefinition;
+import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.util.OpenmrsUtil;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Utility class of common base calculations
  */
 public class Calculations {
 
-	private static final DateFormat dateFormatter = new SimpleDateFormat("yyyy-MM-dd");
+	/**
+	 * The maximum number of ids passed to a single query
+	 */
+	protected static final int QUERY_BATCH_SIZE = 1000;
+
+	private static final String ALIVE_QUERY = "select p.personId, p.dead, p.deathDate from Person p where p.personId in (:personIds) and p.personVoided = false";
 
 	/**
 	 * Evaluates alive-ness of each patient
@@ -50,21 +60,79 @@ public class Calculations {
 	 * @return the alive-nesses in a calculation result map
 	 */
 	public static CalculationResultMap alive(Collection<Integer> cohort, PatientCalculationContext context) {
-		VitalStatusDataDefinition def = new VitalStatusDataDefinition("alive");
-		CalculationResultMap vitals = CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
+		CalculationResultCache cache = CalculationResultCache.forContext(context);
+		List<Object> key = CalculationResultCache.key(VitalStatusDataDefinition.class, null, null, null, context.getNow(), cohort);
+		CalculationResultMap cached = cache.get(key);
+		if (cached != null) {
+			return cached;
+		}
+
+		PatientBitmap alive = aliveIds(cohort, context);
 
+		// Every result is one of the two shared boolean results
 		CalculationResultMap ret = new CalculationResultMap();
-		for (int ptId : cohort) {
-			boolean alive = false;
-			if (vitals.get(ptId) != null) {
-				VitalStatus vs = (VitalStatus) vitals.get(ptId).getValue();
-				alive = !vs.getDead() || OpenmrsUtil.compareWithNullAsEarliest(vs.getDeathDate(), context.getNow()) > 0;
-			}
-			ret.put(ptId, new BooleanResult(alive, null, context));
+		for (Integer ptId : cohort) {
+			ret.put(ptId, BooleanResult.valueOf(alive.contains(ptId.intValue())));
 		}
+
+		cache.put(key, ret);
 		return ret;
 	}
 
+	/**
+	 * Evaluates which patients are alive, without creating a result for each patient
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 * @return the patients who are alive
+	 */
+	public static PatientBitmap aliveIds(Collection<Integer> cohort, PatientCalculationContext context) {
+		CalculationResultCache cache = CalculationResultCache.forContext(context);
+		List<Object> key = CalculationResultCache.key(PatientBitmap.class, VitalStatusDataDefinition.class, null, null, context.getNow(), cohort);
+		PatientBitmap cached = cache.getCohort(key);
+		if (cached != null) {
+			return cached;
+		}
+
+		PatientBitmap alive = aliveBitmap(cohort, context.getNow());
+		cache.putCohort(key, alive);
+		return alive;
+	}
+
+	/**
+	 * Evaluates which patients are alive on the given date. Voided persons are never alive. Only the dead flag and death
+	 * date of each person are fetched, in batches of {@link #QUERY_BATCH_SIZE} ids.
+	 * @param cohort the patient ids
+	 * @param now the date
+	 * @return the patients who are alive
+	 */
+	protected static PatientBitmap aliveBitmap(Collection<Integer> cohort, Date now) {
+		CalculationProfiler.Record record = CalculationProfiler.start("query", "alive", cohort);
+		PatientBitmap alive = new PatientBitmap();
+
+		try {
+			DataSetQueryService queryService = Context.getService(DataSetQueryService.class);
+			List<Integer> ids = new ArrayList<Integer>(cohort);
+
+			for (int from = 0; from < ids.size(); from += QUERY_BATCH_SIZE) {
+				Map<String, Object> params = new HashMap<String, Object>();
+				params.put("personIds", ids.subList(from, Math.min(from + QUERY_BATCH_SIZE, ids.size())));
+
+				for (Object row : queryService.executeHqlQuery(ALIVE_QUERY, params)) {
+					Object[] values = (Object[]) row;
+					boolean dead = Boolean.TRUE.equals(values[1]);
+					if (!dead || OpenmrsUtil.compareWithNullAsEarliest((Date) values[2], now) > 0) {
+						alive.add(((Integer) values[0]).intValue());
+					}
+				}
+			}
+		}
+		finally {
+			CalculationProfiler.stop(record, null);
+		}
+
+		return alive;
+	}
+
 	/**
 	 * Evaluates genders of each patient
 	 * @param cohort the patient ids
@@ -72,8 +140,16 @@ public class Calculations {
 	 * @return the genders in a calculation result map
 	 */
 	public static CalculationResultMap genders(Collection<Integer> cohort, PatientCalculationContext context) {
-		GenderDataDefinition def = new GenderDataDefinition("gender");
-		return CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
+		CalculationResultCache cache = CalculationResultCache.forContext(context);
+		List<Object> key = CalculationResultCache.key(GenderDataDefinition.class, null, null, null, null, cohort);
+		CalculationResultMap cached = cache.get(key);
+		if (cached != null) {
+			return cached;
+		}
+
+		CalculationResultMap ret = DemographicsSnapshot.getInstance().genders(cohort);
+		cache.put(key, ret);
+		return ret;
 	}
 
 	/**
@@ -83,9 +159,16 @@ public class Calculations {
 	 * @return the ages in a calculation result map
 	 */
 	public static CalculationResultMap ages(Collection<Integer> cohort, PatientCalculationContext context) {
-		AgeDataDefinition def = new AgeDataDefinition("age on");
-		def.setEffectiveDate(context.getNow());
-		return CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
+		CalculationResultCache cache = CalculationResultCache.forContext(context);
+		List<Object> key = CalculationResultCache.key(AgeDataDefinition.class, null, null, null, context.getNow(), cohort);
+		CalculationResultMap cached = cache.get(key);
+		if (cached != null) {
+			return cached;
+		}
+
+		CalculationResultMap ret = DemographicsSnapshot.getInstance().ages(cohort, context.getNow());
+		cache.put(key, ret);
+		return ret;
 	}
 
 	/**
@@ -96,8 +179,7 @@ public class Calculations {
 	 * @return the obss in a calculation result map
 	 */
 	public static CalculationResultMap allObs(Concept concept, Collection<Integer> cohort, PatientCalculationContext context) {
-		ObsForPersonDataDefinition def = new ObsForPersonDataDefinition("all obs", TimeQualifier.ANY, concept, context.getNow(), null);
-		return CalculationUtils.ensureEmptyListResults(CalculationUtils.evaluateWithReporting(def, cohort, null, null, context), cohort);
+		return evaluateObs(concept, TimeQualifier.ANY, null, context.getNow(), cohort, context);
 	}
 
 	/**
@@ -108,8 +190,7 @@ public class Calculations {
 	 * @return the obss in a calculation result map
 	 */
 	public static CalculationResultMap firstObs(Concept concept, Collection<Integer> cohort, PatientCalculationContext context) {
-		ObsForPersonDataDefinition def = new ObsForPersonDataDefinition("first obs", TimeQualifier.FIRST, concept, context.getNow(), null);
-		return CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
+		return evaluateObs(concept, TimeQualifier.FIRST, null, context.getNow(), cohort, context);
 	}
 
 	/**
@@ -120,8 +201,7 @@ public class Calculations {
 	 * @return the obss in a calculation result map
 	 */
 	public static CalculationResultMap firstObsOnOrAfter(Concept concept, Date onOrAfter, Collection<Integer> cohort, PatientCalculationContext context) {
-		ObsForPersonDataDefinition def = new ObsForPersonDataDefinition("first obs on or after", TimeQualifier.FIRST, concept, context.getNow(), onOrAfter);
-		return CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
+		return evaluateObs(concept, TimeQualifier.FIRST, onOrAfter, context.getNow(), cohort, context);
 	}
 
 	/**
@@ -132,8 +212,7 @@ public class Calculations {
 	 * @return the obss in a calculation result map
 	 */
 	public static CalculationResultMap lastObs(Concept concept, Collection<Integer> cohort, PatientCalculationContext context) {
-		ObsForPersonDataDefinition def = new ObsForPersonDataDefinition("last obs", TimeQualifier.LAST, concept, context.getNow(), null);
-		return CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
+		return evaluateObs(concept, TimeQualifier.LAST, null, context.getNow(), cohort, context);
 	}
 
 	/**
@@ -148,8 +227,7 @@ public class Calculations {
 		// Only interested in obs before now
 		onOrBefore = CoreUtils.earliest(onOrBefore, context.getNow());
 
-		ObsForPersonDataDefinition def = new ObsForPersonDataDefinition("last obs on or before", TimeQualifier.LAST, concept, onOrBefore, null);
-		return CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
+		return evaluateObs(concept, TimeQualifier.LAST, null, onOrBefore, cohort, context);
 	}
 
 	/**
@@ -183,8 +261,8 @@ public class Calculations {
 		}
 		def.setWhich(TimeQualifier.ANY);
 		def.setOnOrBefore(context.getNow());
-		CalculationResultMap results = CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
-		return CalculationUtils.ensureEmptyListResults(results, cohort);
+		List<Object> key = CalculationResultCache.key(EncountersForPatientDataDefinition.class, encounterType, TimeQualifier.ANY, null, context.getNow(), cohort);
+		return evaluateCached(def, key, cohort, null, true, context);
 	}
 
 	/**
@@ -205,7 +283,8 @@ public class Calculations {
 		}
 		def.setWhich(TimeQualifier.FIRST);
 		def.setOnOrBefore(context.getNow());
-		return CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
+		List<Object> key = CalculationResultCache.key(EncountersForPatientDataDefinition.class, encounterType, TimeQualifier.FIRST, null, context.getNow(), cohort);
+		return evaluateCached(def, key, cohort, null, false, context);
 	}
 
 	/**
@@ -226,7 +305,8 @@ public class Calculations {
 		}
 		def.setWhich(TimeQualifier.LAST);
 		def.setOnOrBefore(context.getNow());
-		return CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
+		List<Object> key = CalculationResultCache.key(EncountersForPatientDataDefinition.class, encounterType, TimeQualifier.LAST, null, context.getNow(), cohort);
+		return evaluateCached(def, key, cohort, null, false, context);
 	}
 
 	/**
@@ -247,8 +327,8 @@ public class Calculations {
 		}
 		def.setWhich(TimeQualifier.ANY);
 		def.setOnOrAfter(onOrAfter);
-		CalculationResultMap results = CalculationUtils.evaluateWithReporting(def, cohort, null, null, context);
-		return CalculationUtils.ensureEmptyListResults(results, cohort);
+		List<Object> key = CalculationResultCache.key(EncountersForPatientDataDefinition.class, encounterType, TimeQualifier.ANY, onOrAfter, null, cohort);
+		return evaluateCached(def, key, cohort, null, true, context);
 	}
 
 	/**
@@ -264,8 +344,8 @@ public class Calculations {
 		def.setWhichEnrollment(TimeQualifier.ANY);
 		def.setProgram(program);
 		def.setEnrolledOnOrBefore(context.getNow());
-		CalculationResultMap results = CalculationUtils.evaluateWithReporting(def, cohort, new HashMap<String, Object>(), null, context);
-		return CalculationUtils.ensureEmptyListResults(results, cohort);
+		List<Object> key = CalculationResultCache.key(ProgramEnrollmentsForPatientDataDefinition.class, program, TimeQualifier.ANY, null, context.getNow(), cohort);
+		return evaluateCached(def, key, cohort, new HashMap<String, Object>(), true, context);
 	}
 
 	/**
@@ -280,21 +360,45 @@ public class Calculations {
 	}
 
 	/**
-	 * Evaluates the last program enrollment on the specified program
+	 * Evaluates the active program enrollment of the specified program on the specified date
 	 * @param program the program
+	 * @param onDate the date
 	 * @param cohort the patient ids
 	 * @param context the calculation context
 	 * @return the enrollments in a calculation result map
 	 */
 	public static CalculationResultMap activeEnrollmentOn(Program program, Date onDate, Collection<Integer> cohort, PatientCalculationContext context) {
-		ProgramEnrollmentsForPatientDataDefinition def = new ProgramEnrollmentsForPatientDataDefinition();
-		def.setName("active enrollment in " + program.getName() + " on " + dateFormatter.format(onDate));
-		def.setWhichEnrollment(TimeQualifier.LAST);
-		def.setProgram(program);
-		def.setActiveOnDate(onDate);
-		return CalculationUtils.evaluateWithReporting(def, cohort, new HashMap<String, Object>(), null, context);
+		return activeEnrollmentOn(program, Collections.singletonList(onDate), cohort, context).get(onDate);
 	}
 
+	/**
+	 * Evaluates the active program enrollment of the specified program on each of the specified dates. All enrollments
+	 * are fetched once into an {@link EnrollmentIndex} and each date is derived from that in memory.
+	 * @param program the program
+	 * @param onDates the dates
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 * @return the enrollments in a calculation result map for each date
+	 */
+	public static Map<Date, CalculationResultMap> activeEnrollmentOn(Program program, List<Date> onDates, Collection<Integer> cohort, PatientCalculationContext context) {
+		CalculationResultCache cache = CalculationResultCache.forContext(context);
+		EnrollmentIndex index = null;
+
+		Map<Date, CalculationResultMap> ret = new LinkedHashMap<Date, CalculationResultMap>();
+		for (Date onDate : onDates) {
+			List<Object> key = CalculationResultCache.key(ProgramEnrollmentsForPatientDataDefinition.class, program, TimeQualifier.LAST, onDate, onDate, cohort);
+			CalculationResultMap results = cache.get(key);
+			if (results == null) {
+				if (index == null) {
+					index = EnrollmentIndex.forProgram(program, cohort, context);
+				}
+				results = index.evaluate(onDate, cohort, context);
+				cache.put(key, results);
+			}
+			ret.put(onDate, results);
+		}
+		return ret;
+	}
 
 	/**
 	 * Evaluates the first program enrollment of the specified program
@@ -309,7 +413,58 @@ public class Calculations {
 		def.setWhichEnrollment(TimeQualifier.FIRST);
 		def.setProgram(program);
 		def.setEnrolledOnOrBefore(context.getNow());
-		CalculationResultMap results = CalculationUtils.evaluateWithReporting(def, cohort, new HashMap<String, Object>(), null, context);
-		return CalculationUtils.ensureEmptyListResults(results, cohort);
+		List<Object> key = CalculationResultCache.key(ProgramEnrollmentsForPatientDataDefinition.class, program, TimeQualifier.FIRST, null, context.getNow(), cohort);
+		return evaluateCached(def, key, cohort, new HashMap<String, Object>(), true, context);
+	}
+
+	/**
+	 * Evaluates obs of a given type of each patient in a date window. All obs of that type up to the calculation date are
+	 * fetched once into an {@link ObsIndex} and each window is derived from that in memory.
+	 * @param concept the obs' concept
+	 * @param which the time qualifier
+	 * @param onOrAfter the start of the window (inclusive, may be null)
+	 * @param onOrBefore the end of the window (inclusive, not after the calculation date)
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 * @return the obss in a calculation result map
+	 */
+	protected static CalculationResultMap evaluateObs(Concept concept, TimeQualifier which, Date onOrAfter, Date onOrBefore, Collection<Integer> cohort, PatientCalculationContext context) {
+		CalculationResultCache cache = CalculationResultCache.forContext(context);
+		List<Object> key = CalculationResultCache.key(ObsForPersonDataDefinition.class, concept, which, onOrAfter, onOrBefore, cohort);
+		CalculationResultMap results = cache.get(key);
+		if (results != null) {
+			return results;
+		}
+
+		results = ObsIndex.forConcept(concept, cohort, context).evaluate(which, onOrAfter, onOrBefore, cohort, context);
+
+		cache.put(key, results);
+		return results;
+	}
+
+	/**
+	 * Evaluates a data definition using the result cache of the calculation context
+	 * @param def the data definition
+	 * @param key the result cache key
+	 * @param cohort the patient ids
+	 * @param parameterValues the parameters for the reporting context
+	 * @param emptyLists whether missing results should be replaced with empty list results
+	 * @param context the calculation context
+	 * @return the calculation result map
+	 */
+	protected static CalculationResultMap evaluateCached(DataDefinition def, List<Object> key, Collection<Integer> cohort, Map<String, Object> parameterValues, boolean emptyLists, PatientCalculationContext context) {
+		CalculationResultCache cache = CalculationResultCache.forContext(context);
+		CalculationResultMap results = cache.get(key);
+		if (results != null) {
+			return results;
+		}
+
+		results = CalculationUtils.evaluateWithReporting(def, cohort, parameterValues, null, context);
+		if (emptyLists) {
+			CalculationUtils.ensureEmptyListResults(results, cohort);
+		}
+
+		cache.put(key, results);
+		return results;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,491 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.Person;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.calculation.result.SimpleResult;
+import org.openmrs.module.reporting.common.Age;
+import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Snapshot of the birthdate and gender of every person, held as primitive columns keyed by person id. All persons are
+ * loaded with a single query on first use. Changes are applied incrementally by {@link DemographicsSnapshotAdvice}, and
+ * persons who weren't loaded are fetched on demand. Once there are more than {@link #MAX_UPDATES} of these, they are
+ * merged into new columns. Fetched values never replace changes which were applied while they were being queried.
+ */
+@Component
+public class DemographicsSnapshot {
+
+	/**
+	 * The maximum number of ids passed to a single query
+	 */
+	protected static final int QUERY_BATCH_SIZE = 1000;
+
+	/**
+	 * The maximum number of updated or fetched persons held outside of the columns
+	 */
+	protected static final int MAX_UPDATES = 10000;
+
+	private static final long NO_BIRTHDATE = Long.MIN_VALUE;
+
+	private static final String LOAD_QUERY = "select p.personId, p.birthdate, p.gender from Person p order by p.personId";
+
+	private static final String FETCH_QUERY = "select p.personId, p.birthdate, p.gender from Person p where p.personId in (:personIds)";
+
+	/**
+	 * Marks a person who doesn't exist
+	 */
+	private static final Entry MISSING = new Entry(NO_BIRTHDATE, null);
+
+	private static volatile DemographicsSnapshot instance;
+
+	private volatile State state;
+
+	/**
+	 * Incremented whenever persons are changed or removed, or the snapshot is cleared. Guarded by this.
+	 */
+	private long generation = 0;
+
+	/**
+	 * Gets the registered instance, for use by static calculation helpers
+	 * @return the instance
+	 * @throws IllegalArgumentException if no instance is registered
+	 */
+	public static DemographicsSnapshot getInstance() {
+		DemographicsSnapshot ret = instance;
+		if (ret == null) {
+			List<DemographicsSnapshot> all = Context.getRegisteredComponents(DemographicsSnapshot.class);
+			if (all.size() == 0) {
+				throw new IllegalArgumentException("No such object in the application context");
+			}
+			ret = instance = all.get(0);
+		}
+		return ret;
+	}
+
+	/**
+	 * Forgets the registered instance, e.g. when the module is stopped and its application context is discarded
+	 */
+	public static void resetInstance() {
+		instance = null;
+	}
+
+	/**
+	 * Gets the ages of the given patients
+	 * @param cohort the patient ids
+	 * @param onDate the date on which to calculate ages
+	 * @return the ages in a calculation result map
+	 */
+	public CalculationResultMap ages(Collection<Integer> cohort, Date onDate) {
+		State snapshot = ensureLoaded(cohort);
+
+		CalculationResultMap ret = new CalculationResultMap();
+		for (Integer ptId : cohort) {
+			Entry entry = snapshot.get(ptId);
+			ret.put(ptId, entry != null && entry.birthdate != NO_BIRTHDATE ? new SimpleResult(new Age(new Date(entry.birthdate), onDate), null) : null);
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the genders of the given patients
+	 * @param cohort the patient ids
+	 * @return the genders in a calculation result map
+	 */
+	public CalculationResultMap genders(Collection<Integer> cohort) {
+		State snapshot = ensureLoaded(cohort);
+
+		// Results are mutable so each patient gets their own
+		CalculationResultMap ret = new CalculationResultMap();
+		for (Integer ptId : cohort) {
+			Entry entry = snapshot.get(ptId);
+			ret.put(ptId, entry != null && entry.gender != null ? new SimpleResult(entry.gender, null) : null);
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the patients with the given gender
+	 * @param cohort the patient ids
+	 * @param gender the gender
+	 * @return the patient ids
+	 */
+	public PatientBitmap withGender(Collection<Integer> cohort, String gender) {
+		State snapshot = ensureLoaded(cohort);
+
+		PatientBitmap ret = new PatientBitmap();
+		for (Integer ptId : cohort) {
+			Entry entry = snapshot.get(ptId);
+			if (entry != null && gender.equals(entry.gender)) {
+				ret.add(ptId.intValue());
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Updates the snapshot with the current values of a person
+	 * @param person the person
+	 */
+	public void refresh(Person person) {
+		if (person.getPersonId() != null) {
+			long birthdate = person.getBirthdate() != null ? person.getBirthdate().getTime() : NO_BIRTHDATE;
+			update(Collections.singletonMap(person.getPersonId(), new Entry(birthdate, person.getGender())));
+		}
+	}
+
+	/**
+	 * Removes a person from the snapshot
+	 * @param personId the person id
+	 */
+	public void remove(Integer personId) {
+		update(Collections.singletonMap(personId, MISSING));
+	}
+
+	/**
+	 * Clears the snapshot so that it is reloaded on next use
+	 */
+	public synchronized void clear() {
+		generation++;
+		state = null;
+	}
+
+	/**
+	 * Gets the number of updated or fetched persons which haven't yet been merged into the columns
+	 * @return the number of persons
+	 */
+	public int getUpdateCount() {
+		State snapshot = state;
+		return snapshot != null ? snapshot.updates.size() : 0;
+	}
+
+	/**
+	 * Loads the snapshot if necessary and fetches any of the given patients which aren't in it
+	 * @param cohort the patient ids
+	 * @return the loaded state
+	 */
+	protected State ensureLoaded(Collection<Integer> cohort) {
+		State snapshot = state;
+		if (snapshot == null || snapshot.columns == null) {
+			synchronized (this) {
+				if (state == null || state.columns == null) {
+					state = new State(load(), state != null ? state.updates : new HashMap<Integer, Entry>());
+				}
+				snapshot = state;
+			}
+		}
+
+		List<Integer> missing = new ArrayList<Integer>();
+		for (Integer ptId : cohort) {
+			if (!snapshot.contains(ptId)) {
+				missing.add(ptId);
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			fetch(missing);
+			snapshot = state;
+
+			if (snapshot == null || snapshot.columns == null) {
+				// Cleared while fetching
+				return ensureLoaded(cohort);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Applies changed values to the snapshot
+	 * @param entries the changed values by person id
+	 */
+	protected synchronized void update(Map<Integer, Entry> entries) {
+		generation++;
+		apply(entries);
+	}
+
+	/**
+	 * Applies fetched values to the snapshot. If persons were changed or the snapshot was cleared since the values were
+	 * queried, only the values of persons which are still unknown are applied, as the others may be out of date.
+	 * @param fetched the fetched values by person id
+	 * @param fetchGeneration the generation when the values were queried
+	 */
+	protected synchronized void applyFetched(Map<Integer, Entry> fetched, long fetchGeneration) {
+		if (fetchGeneration != generation) {
+			if (state == null || state.columns == null) {
+				return;
+			}
+
+			Map<Integer, Entry> unknown = new HashMap<Integer, Entry>();
+			for (Map.Entry<Integer, Entry> entry : fetched.entrySet()) {
+				if (!state.contains(entry.getKey())) {
+					unknown.put(entry.getKey(), entry.getValue());
+				}
+			}
+			fetched = unknown;
+		}
+		apply(fetched);
+	}
+
+	/**
+	 * Applies values to the snapshot. Readers keep using the state they started with, so each update replaces the state
+	 * rather than modifying it.
+	 * @param entries the values by person id
+	 */
+	private void apply(Map<Integer, Entry> entries) {
+		Columns columns = state != null ? state.columns : null;
+		Map<Integer, Entry> updates = new HashMap<Integer, Entry>();
+		if (state != null) {
+			updates.putAll(state.updates);
+		}
+		updates.putAll(entries);
+
+		if (updates.size() <= MAX_UPDATES) {
+			state = new State(columns, updates);
+		}
+		else if (columns != null) {
+			state = new State(columns.merge(updates), new HashMap<Integer, Entry>());
+		}
+		else {
+			// Nothing is loaded and changes are only applied once committed, so loading will pick them all up
+			state = null;
+		}
+	}
+
+	/**
+	 * Loads all persons
+	 * @return the columns
+	 */
+	protected Columns load() {
+		CalculationProfiler.Record record = CalculationProfiler.start("query", "demographics snapshot", null);
+		try {
+			List<Object> rows = Context.getService(DataSetQueryService.class).executeHqlQuery(LOAD_QUERY, new HashMap<String, Object>());
+
+			Columns ret = new Columns(rows.size());
+			for (Object row : rows) {
+				Object[] values = (Object[]) row;
+				Date birthdate = (Date) values[1];
+				ret.add((Integer) values[0], new Entry(birthdate != null ? birthdate.getTime() : NO_BIRTHDATE, (String) values[2]));
+			}
+			return ret;
+		}
+		finally {
+			CalculationProfiler.stop(record, null);
+		}
+	}
+
+	/**
+	 * Fetches persons which aren't in the snapshot, recording those which don't exist so they aren't fetched again
+	 * @param personIds the person ids
+	 */
+	protected void fetch(List<Integer> personIds) {
+		DataSetQueryService queryService = Context.getService(DataSetQueryService.class);
+
+		for (int from = 0; from < personIds.size(); from += QUERY_BATCH_SIZE) {
+			List<Integer> batch = personIds.subList(from, Math.min(from + QUERY_BATCH_SIZE, personIds.size()));
+
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("personIds", batch);
+
+			long fetchGeneration;
+			synchronized (this) {
+				fetchGeneration = generation;
+			}
+
+			Map<Integer, Entry> fetched = new HashMap<Integer, Entry>();
+			for (Object row : queryService.executeHqlQuery(FETCH_QUERY, params)) {
+				Object[] values = (Object[]) row;
+				Date birthdate = (Date) values[1];
+				fetched.put((Integer) values[0], new Entry(birthdate != null ? birthdate.getTime() : NO_BIRTHDATE, (String) values[2]));
+			}
+
+			for (Integer personId : batch) {
+				if (!fetched.containsKey(personId)) {
+					fetched.put(personId, MISSING);
+				}
+			}
+			applyFetched(fetched, fetchGeneration);
+		}
+	}
+
+	/**
+	 * The values of a single person
+	 */
+	protected static class Entry {
+
+		private final long birthdate;
+
+		private final String gender;
+
+		Entry(long birthdate, String gender) {
+			this.birthdate = birthdate;
+			this.gender = gender;
+		}
+	}
+
+	/**
+	 * Immutable pairing of the loaded columns (null until loaded) and the values which have changed or been fetched since
+	 */
+	protected static class State {
+
+		private final Columns columns;
+
+		private final Map<Integer, Entry> updates;
+
+		State(Columns columns, Map<Integer, Entry> updates) {
+			this.columns = columns;
+			this.updates = updates;
+		}
+
+		/**
+		 * Checks whether the values of a person are known, including knowing that the person doesn't exist
+		 */
+		boolean contains(int personId) {
+			return updates.containsKey(personId) || columns.indexOf(personId) >= 0;
+		}
+
+		/**
+		 * Gets the values of a person, with updates taking precedence over the columns
+		 * @return the values or null if the person doesn't exist
+		 */
+		Entry get(int personId) {
+			Entry entry = updates.get(personId);
+			if (entry == null) {
+				entry = columns.get(personId);
+			}
+			return entry == MISSING ? null : entry;
+		}
+	}
+
+	/**
+	 * Columns of values sorted by person id. Genders are stored as indexes into a table of distinct values. Persons
+	 * known not to exist are kept so that they aren't fetched again.
+	 */
+	protected static class Columns {
+
+		private static final byte NO_GENDER = -1;
+
+		private static final byte MISSING_PERSON = -2;
+
+		private int[] personIds;
+
+		private long[] birthdates;
+
+		private byte[] genders;
+
+		private List<String> genderValues = new ArrayList<String>();
+
+		private int size = 0;
+
+		Columns(int capacity) {
+			personIds = new int[capacity];
+			birthdates = new long[capacity];
+			genders = new byte[capacity];
+		}
+
+		/**
+		 * Adds a person. Persons must be added in order of id.
+		 */
+		void add(int personId, Entry entry) {
+			byte genderIndex = NO_GENDER;
+			if (entry == MISSING) {
+				genderIndex = MISSING_PERSON;
+			}
+			else if (entry.gender != null) {
+				int index = genderValues.indexOf(entry.gender);
+				if (index < 0) {
+					genderValues.add(entry.gender);
+					index = genderValues.size() - 1;
+				}
+				genderIndex = (byte) index;
+			}
+
+			personIds[size] = personId;
+			birthdates[size] = entry.birthdate;
+			genders[size] = genderIndex;
+			size++;
+		}
+
+		/**
+		 * Finds the index of a person
+		 * @return the index or a negative value if not found
+		 */
+		int indexOf(int personId) {
+			return Arrays.binarySearch(personIds, 0, size, personId);
+		}
+
+		/**
+		 * Gets the values of a person
+		 * @return the values, {@link #MISSING} if the person is known not to exist, or null if the person isn't loaded
+		 */
+		Entry get(int personId) {
+			int index = indexOf(personId);
+			if (index < 0) {
+				return null;
+			}
+			return getAt(index);
+		}
+
+		/**
+		 * Gets the values at the given index
+		 */
+		Entry getAt(int index) {
+			byte genderIndex = genders[index];
+			if (genderIndex == MISSING_PERSON) {
+				return MISSING;
+			}
+			return new Entry(birthdates[index], genderIndex >= 0 ? genderValues.get(genderIndex) : null);
+		}
+
+		/**
+		 * Creates new columns which contain these values overwritten by the given updates
+		 * @param updates the updated values by person id
+		 * @return the merged columns
+		 */
+		Columns merge(Map<Integer, Entry> updates) {
+			List<Integer> updatedIds = new ArrayList<Integer>(updates.keySet());
+			Collections.sort(updatedIds);
+
+			Columns ret = new Columns(size + updatedIds.size());
+			int index = 0;
+			for (Integer updatedId : updatedIds) {
+				while (index < size && personIds[index] < updatedId) {
+					ret.add(personIds[index], getAt(index));
+					index++;
+				}
+				if (index < size && personIds[index] == updatedId) {
+					index++;
+				}
+				ret.add(updatedId, updates.get(updatedId));
+			}
+			while (index < size) {
+				ret.add(personIds[index], getAt(index));
+				index++;
+			}
+			return ret;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.Person;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+
+/**
+ * AOP advice for the person and patient services which keeps the {@link DemographicsSnapshot} up to date when a person
+ * is saved or purged. If a transaction is active, changes are only applied once it commits, so a rollback leaves the
+ * snapshot unchanged.
+ */
+public class DemographicsSnapshotAdvice implements AfterReturningAdvice {
+
+	/**
+	 * @see AfterReturningAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)
+	 */
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (args == null || args.length == 0 || !(args[0] instanceof Person)) {
+			return;
+		}
+
+		final Person person = (Person) args[0];
+		if (person.getPersonId() == null) {
+			return;
+		}
+
+		final boolean purged = method.getName().startsWith("purge");
+		if (!purged && !(method.getName().startsWith("save") || method.getName().startsWith("void") || method.getName().startsWith("unvoid"))) {
+			return;
+		}
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					apply(person, purged);
+				}
+			});
+		}
+		else {
+			apply(person, purged);
+		}
+	}
+
+	/**
+	 * Applies a change to the snapshot
+	 * @param person the person
+	 * @param purged whether the person was purged
+	 */
+	protected void apply(Person person, boolean purged) {
+		if (purged) {
+			DemographicsSnapshot.getInstance().remove(person.getPersonId());
+		}
+		else {
+			DemographicsSnapshot.getInstance().refresh(person);
+		}
+	}
+}
\ No newline at end of file
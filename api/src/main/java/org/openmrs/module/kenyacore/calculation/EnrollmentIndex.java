@@ -0,0 +1,227 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.PatientProgram;
+import org.openmrs.Program;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.reporting.common.TimeQualifier;
+import org.openmrs.module.reporting.data.patient.definition.ProgramEnrollmentsForPatientDataDefinition;
+import org.openmrs.module.reporting.data.patient.service.PatientDataService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of all enrollments in a single program for a set of patients. The enrollments are fetched with a single query
+ * and stored per patient as [enrolled, completed) intervals ordered by enrollment date, so that the active enrollment
+ * on any number of dates can be derived in memory. Indexes are stored in the calculation context and extended as
+ * needed when later requests include patients which haven't been fetched yet.
+ */
+public class EnrollmentIndex {
+
+	/**
+	 * Prefix of the calculation context cache entries which hold enrollment indexes
+	 */
+	protected static final String CONTEXT_CACHE_KEY_PREFIX = "kenyacoreEnrollmentIndex:";
+
+	private static final PatientProgram[] NO_ENROLLMENTS = new PatientProgram[0];
+
+	private Program program;
+
+	private Set<Integer> fetched = new HashSet<Integer>();
+
+	private Map<Integer, PatientEnrollments> data = new HashMap<Integer, PatientEnrollments>();
+
+	/**
+	 * Creates a new empty index
+	 * @param program the program
+	 */
+	protected EnrollmentIndex(Program program) {
+		this.program = program;
+	}
+
+	/**
+	 * Gets the enrollment index for the given program stored in the calculation context, creating or extending it so
+	 * that it covers all patients in the given cohort
+	 * @param program the program
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 * @return the enrollment index
+	 */
+	public static EnrollmentIndex forProgram(Program program, Collection<Integer> cohort, PatientCalculationContext context) {
+		String cacheKey = CONTEXT_CACHE_KEY_PREFIX + program.getProgramId();
+
+		EnrollmentIndex index;
+		synchronized (context) {
+			index = (EnrollmentIndex) context.getFromCache(cacheKey);
+			if (index == null) {
+				index = new EnrollmentIndex(program);
+				context.addToCache(cacheKey, index);
+			}
+		}
+
+		index.ensureFetched(cohort, context);
+		return index;
+	}
+
+	/**
+	 * Fetches the enrollments of any patients in the given cohort who haven't been fetched yet
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 */
+	protected synchronized void ensureFetched(Collection<Integer> cohort, PatientCalculationContext context) {
+		List<Integer> missing = new ArrayList<Integer>();
+		for (Integer ptId : cohort) {
+			if (!fetched.contains(ptId)) {
+				missing.add(ptId);
+			}
+		}
+
+		if (missing.isEmpty()) {
+			return;
+		}
+
+		ProgramEnrollmentsForPatientDataDefinition def = new ProgramEnrollmentsForPatientDataDefinition();
+		def.setName("all enrollments in " + program.getName());
+		def.setWhichEnrollment(TimeQualifier.ANY);
+		def.setProgram(program);
+		Map<Integer, Object> fetchedData = null;
+
+		CalculationProfiler.Record record = CalculationProfiler.start("enrollment index", program.getName(), missing);
+		try {
+			EvaluationContext reportingContext = CalculationUtils.ensureReportingContext(context, missing, null);
+			fetchedData = Context.getService(PatientDataService.class).evaluate(def, reportingContext).getData();
+		}
+		catch (EvaluationException ex) {
+			throw new APIException(ex);
+		}
+		finally {
+			CalculationProfiler.stop(record, fetchedData);
+		}
+
+		for (Map.Entry<Integer, Object> entry : fetchedData.entrySet()) {
+			List<PatientProgram> enrollments = (List<PatientProgram>) entry.getValue();
+			if (enrollments != null && !enrollments.isEmpty()) {
+				data.put(entry.getKey(), new PatientEnrollments(enrollments));
+			}
+		}
+
+		fetched.addAll(missing);
+	}
+
+	/**
+	 * Gets the active enrollment of a patient on the given date. If more than one enrollment is active, the one with
+	 * the latest enrollment date is returned.
+	 * @param ptId the patient id
+	 * @param onDate the date
+	 * @return the enrollment or null
+	 */
+	public PatientProgram activeOn(int ptId, Date onDate) {
+		PatientEnrollments patientEnrollments = data.get(ptId);
+		return patientEnrollments != null ? patientEnrollments.activeOn(onDate.getTime()) : null;
+	}
+
+	/**
+	 * Evaluates the active enrollment of each patient on the given date
+	 * @param onDate the date
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 * @return the enrollments in a calculation result map
+	 */
+	public CalculationResultMap evaluate(Date onDate, Collection<Integer> cohort, PatientCalculationContext context) {
+		Map<Integer, Object> values = new HashMap<Integer, Object>();
+		for (Integer ptId : cohort) {
+			values.put(ptId, activeOn(ptId, onDate));
+		}
+		return new LazyResultMap(values, cohort, null, context);
+	}
+
+	/**
+	 * Enrollment intervals of a single patient, ordered by enrollment date
+	 */
+	protected static class PatientEnrollments {
+
+		private long[] enrolled;
+
+		private long[] completed;
+
+		private PatientProgram[] enrollments;
+
+		/**
+		 * Creates new patient enrollments, sorting them by enrollment date
+		 * @param patientPrograms the enrollments
+		 */
+		public PatientEnrollments(List<PatientProgram> patientPrograms) {
+			enrollments = patientPrograms.toArray(NO_ENROLLMENTS);
+
+			Arrays.sort(enrollments, new Comparator<PatientProgram>() {
+				@Override
+				public int compare(PatientProgram pp1, PatientProgram pp2) {
+					return OpenmrsUtil.compareWithNullAsEarliest(pp1.getDateEnrolled(), pp2.getDateEnrolled());
+				}
+			});
+
+			enrolled = new long[enrollments.length];
+			completed = new long[enrollments.length];
+			for (int i = 0; i < enrollments.length; i++) {
+				Date dateEnrolled = enrollments[i].getDateEnrolled();
+				Date dateCompleted = enrollments[i].getDateCompleted();
+				enrolled[i] = dateEnrolled != null ? dateEnrolled.getTime() : Long.MIN_VALUE;
+				completed[i] = dateCompleted != null ? dateCompleted.getTime() : Long.MAX_VALUE;
+			}
+		}
+
+		/**
+		 * Gets the latest enrollment whose interval contains the given time
+		 * @param time the time
+		 * @return the enrollment or null
+		 */
+		protected PatientProgram activeOn(long time) {
+			// Find the index after the last enrollment on or before the time
+			int lo = 0, hi = enrolled.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (enrolled[mid] <= time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+
+			// Intervals can overlap so check each earlier enrollment, latest first
+			for (int i = lo - 1; i >= 0; i--) {
+				if (completed[i] > time) {
+					return enrollments[i];
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -32,7 +32,7 @@ public class Filters {
 	 * @return the filtered cohort
 	 */
 	public static Set<Integer> alive(Collection<Integer> cohort, PatientCalculationContext context) {
-		return CalculationUtils.patientsThatPass(Calculations.alive(cohort, context));
+		return Calculations.aliveIds(cohort, context);
 	}
 
 	/**
@@ -42,7 +42,7 @@ public class Filters {
 	 * @return the filtered cohort
 	 */
 	public static Set<Integer> female(Collection<Integer> cohort, PatientCalculationContext context) {
-		return CalculationUtils.patientsThatPass(Calculations.genders(cohort, context), "F");
+		return DemographicsSnapshot.getInstance().withGender(cohort, "F");
 	}
 
 	/**
@@ -55,4 +55,35 @@ public class Filters {
 	public static Set<Integer> inProgram(Program program, Collection<Integer> cohort, PatientCalculationContext context) {
 		return CalculationUtils.patientsThatPass(Calculations.activeEnrollment(program, cohort, context));
 	}
+
+	/**
+	 * Patients who are alive
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 * @return the filtered cohort
+	 */
+	public static PatientBitmap alive(PatientBitmap cohort, PatientCalculationContext context) {
+		return Calculations.aliveIds(cohort, context);
+	}
+
+	/**
+	 * Patients who are female
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 * @return the filtered cohort
+	 */
+	public static PatientBitmap female(PatientBitmap cohort, PatientCalculationContext context) {
+		return DemographicsSnapshot.getInstance().withGender(cohort, "F");
+	}
+
+	/**
+	 * Patients who are in the specified program
+	 * @param program the program
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 * @return the filtered cohort
+	 */
+	public static PatientBitmap inProgram(Program program, PatientBitmap cohort, PatientCalculationContext context) {
+		return CalculationUtils.patientIdsThatPass(Calculations.activeEnrollment(program, cohort, context), null);
+	}
 }
\ No newline at end of file
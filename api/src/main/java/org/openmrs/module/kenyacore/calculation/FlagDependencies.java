@@ -0,0 +1,44 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation for flag calculations to declare the data they depend on, so that cached flag results are only
+ * invalidated by relevant changes. Flags without this annotation are invalidated by any change to the patient's data.
+ */
+@Target(value = {ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface FlagDependencies {
+
+	/**
+	 * The UUIDs of the concepts of obs which the flag depends on
+	 */
+	String[] concepts() default {};
+
+	/**
+	 * The UUIDs of the encounter types which the flag depends on
+	 */
+	String[] encounterTypes() default {};
+
+	/**
+	 * The UUIDs of the programs which the flag depends on
+	 */
+	String[] programs() default {};
+}
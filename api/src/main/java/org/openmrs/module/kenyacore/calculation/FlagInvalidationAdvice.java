@@ -0,0 +1,181 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Obs;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.PatientProgram;
+import org.openmrs.Person;
+import org.openmrs.Program;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * AOP advice for the obs, encounter, visit, program and patient services which invalidates cached patient flags when a
+ * patient's data is changed. If a transaction is active, flags are only invalidated once it commits, as flags evaluated
+ * before then would be evaluated from the previous data.
+ */
+public class FlagInvalidationAdvice implements AfterReturningAdvice {
+
+	private static final String[] METHOD_PREFIXES = { "save", "void", "unvoid", "purge", "processDeath", "exitFromCare", "discontinue", "undiscontinue", "endVisit" };
+
+	private PatientFlagCache flagCache;
+
+	/**
+	 * @see AfterReturningAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)
+	 */
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (args == null || args.length == 0 || !isModifyingMethod(method)) {
+			return;
+		}
+
+		PatientFlagCache cache = getFlagCache();
+		if (cache == null) {
+			return;
+		}
+
+		Object arg = args[0];
+
+		if (arg instanceof Obs) {
+			Obs obs = (Obs) arg;
+			if (obs.getPerson() != null && obs.getConcept() != null) {
+				invalidate(cache, obs.getPerson(), Arrays.<OpenmrsObject>asList(obs.getConcept()));
+			}
+		}
+		else if (arg instanceof Encounter) {
+			Encounter encounter = (Encounter) arg;
+			if (encounter.getPatient() != null) {
+				// Only load the obs of a saved encounter if the patient's flags are cached. Otherwise all of the patient's
+				// flags are invalidated in case they are cached before the transaction commits.
+				List<OpenmrsObject> changed = null;
+				if (cache.isCached(encounter.getPatient().getPatientId())) {
+					changed = new ArrayList<OpenmrsObject>();
+					if (encounter.getEncounterType() != null) {
+						changed.add(encounter.getEncounterType());
+					}
+					for (Obs obs : encounter.getAllObs(true)) {
+						changed.add(obs.getConcept());
+					}
+				}
+				invalidate(cache, encounter.getPatient(), changed);
+			}
+		}
+		else if (arg instanceof PatientProgram) {
+			PatientProgram patientProgram = (PatientProgram) arg;
+			if (patientProgram.getPatient() != null && patientProgram.getProgram() != null) {
+				invalidate(cache, patientProgram.getPatient(), Arrays.<OpenmrsObject>asList(patientProgram.getProgram()));
+			}
+		}
+		else if (arg instanceof Visit) {
+			// Flags can't declare visits as a dependency
+			invalidate(cache, ((Visit) arg).getPatient(), null);
+		}
+		else if (arg instanceof Person) {
+			// Covers deaths as well as changes to demographics
+			invalidate(cache, (Person) arg, null);
+		}
+	}
+
+	/**
+	 * Invalidates the cached flags of a person, once the current transaction has committed if there is one
+	 * @param cache the flag cache
+	 * @param person the person (may be null)
+	 * @param changed the changed concepts, encounter types and programs (null to invalidate all flags)
+	 */
+	protected void invalidate(final PatientFlagCache cache, Person person, final List<OpenmrsObject> changed) {
+		if (person == null || person.getPersonId() == null) {
+			return;
+		}
+
+		final Integer patientId = person.getPersonId();
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					apply(cache, patientId, changed);
+				}
+			});
+		}
+		else {
+			apply(cache, patientId, changed);
+		}
+	}
+
+	/**
+	 * Invalidates the cached flags of a patient
+	 * @param cache the flag cache
+	 * @param patientId the patient id
+	 * @param changed the changed concepts, encounter types and programs (null to invalidate all flags)
+	 */
+	protected void apply(PatientFlagCache cache, Integer patientId, List<OpenmrsObject> changed) {
+		if (changed == null) {
+			cache.invalidate(patientId);
+			return;
+		}
+
+		for (OpenmrsObject item : changed) {
+			if (item instanceof Concept) {
+				cache.invalidate(patientId, (Concept) item);
+			}
+			else if (item instanceof EncounterType) {
+				cache.invalidate(patientId, (EncounterType) item);
+			}
+			else if (item instanceof Program) {
+				cache.invalidate(patientId, (Program) item);
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the given service method modifies data
+	 * @param method the method
+	 * @return true if method modifies data
+	 */
+	protected static boolean isModifyingMethod(Method method) {
+		for (String prefix : METHOD_PREFIXES) {
+			if (method.getName().startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the flag cache component
+	 * @return the flag cache or null if it isn't available
+	 */
+	protected PatientFlagCache getFlagCache() {
+		if (flagCache == null) {
+			List<PatientFlagCache> all = Context.getRegisteredComponents(PatientFlagCache.class);
+			if (all.size() > 0) {
+				flagCache = all.get(0);
+			}
+		}
+		return flagCache;
+	}
+}
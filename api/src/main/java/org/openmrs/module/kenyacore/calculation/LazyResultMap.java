@@ -0,0 +1,199 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.calculation.patient.PatientCalculation;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.result.CalculationResult;
+import org.openmrs.calculation.result.CalculationResultMap;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Calculation result map which holds raw values (e.g. reporting data) and only wraps each patient's value in a
+ * calculation result when it is first accessed. Every patient in the cohort is present as a key from the start, so
+ * size, key set and contains-key queries don't cause wrapping. Accessing the entry set or values wraps all remaining
+ * values.
+ */
+public class LazyResultMap extends CalculationResultMap {
+
+	private Map<Integer, Object> pending;
+
+	private PatientCalculation calculation;
+
+	private PatientCalculationContext calculationContext;
+
+	/**
+	 * Creates a new lazy result map
+	 * @param data the raw values by patient id
+	 * @param cohort the patient ids
+	 * @param calculation the calculation (optional)
+	 * @param calculationContext the calculation context
+	 */
+	public LazyResultMap(Map<Integer, ?> data, Collection<Integer> cohort, PatientCalculation calculation, PatientCalculationContext calculationContext) {
+		this.calculation = calculation;
+		this.calculationContext = calculationContext;
+		this.pending = new HashMap<Integer, Object>();
+
+		for (Integer ptId : cohort) {
+			Object value = data.get(ptId);
+			super.put(ptId, null);
+			if (value != null) {
+				pending.put(ptId, value);
+			}
+		}
+	}
+
+	/**
+	 * Creates a copy of another lazy result map which shares its raw values
+	 * @param other the other map
+	 */
+	protected LazyResultMap(LazyResultMap other) {
+		this.calculation = other.calculation;
+		this.calculationContext = other.calculationContext;
+		this.pending = new HashMap<Integer, Object>(other.pending);
+
+		for (Integer ptId : other.keySet()) {
+			super.put(ptId, other.getIfMaterialized(ptId));
+		}
+	}
+
+	/**
+	 * Creates a copy of this map. Values which haven't been wrapped yet are not wrapped by copying.
+	 * @return the copy
+	 */
+	public LazyResultMap copy() {
+		return new LazyResultMap(this);
+	}
+
+	/**
+	 * Gets the number of values which haven't been wrapped yet
+	 * @return the number of values
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @see java.util.HashMap#get(Object)
+	 */
+	@Override
+	public CalculationResult get(Object key) {
+		if (pending.containsKey(key)) {
+			Object value = pending.remove(key);
+			super.put((Integer) key, CalculationUtils.toCalculationResult(value, calculation, calculationContext));
+		}
+		return super.get(key);
+	}
+
+	/**
+	 * @see java.util.HashMap#put(Object, Object)
+	 */
+	@Override
+	public CalculationResult put(Integer key, CalculationResult value) {
+		CalculationResult previous = get(key);
+		super.put(key, value);
+		return previous;
+	}
+
+	/**
+	 * @see java.util.HashMap#putAll(java.util.Map)
+	 */
+	@Override
+	public void putAll(Map<? extends Integer, ? extends CalculationResult> m) {
+		for (Integer key : m.keySet()) {
+			pending.remove(key);
+		}
+		super.putAll(m);
+	}
+
+	/**
+	 * @see java.util.HashMap#remove(Object)
+	 */
+	@Override
+	public CalculationResult remove(Object key) {
+		CalculationResult previous = get(key);
+		super.remove(key);
+		return previous;
+	}
+
+	/**
+	 * @see java.util.HashMap#clear()
+	 */
+	@Override
+	public void clear() {
+		pending.clear();
+		super.clear();
+	}
+
+	/**
+	 * @see java.util.HashMap#containsValue(Object)
+	 */
+	@Override
+	public boolean containsValue(Object value) {
+		materializeAll();
+		return super.containsValue(value);
+	}
+
+	/**
+	 * @see java.util.HashMap#entrySet()
+	 */
+	@Override
+	public Set<Map.Entry<Integer, CalculationResult>> entrySet() {
+		materializeAll();
+		return super.entrySet();
+	}
+
+	/**
+	 * @see java.util.HashMap#values()
+	 */
+	@Override
+	public Collection<CalculationResult> values() {
+		materializeAll();
+		return super.values();
+	}
+
+	/**
+	 * @see java.util.HashMap#clone()
+	 */
+	@Override
+	public Object clone() {
+		return copy();
+	}
+
+	/**
+	 * Wraps all remaining values
+	 */
+	protected void materializeAll() {
+		if (!pending.isEmpty()) {
+			for (Map.Entry<Integer, Object> entry : pending.entrySet()) {
+				super.put(entry.getKey(), CalculationUtils.toCalculationResult(entry.getValue(), calculation, calculationContext));
+			}
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Gets a value only if it has already been wrapped
+	 * @param ptId the patient id
+	 * @return the wrapped value or null
+	 */
+	private CalculationResult getIfMaterialized(Integer ptId) {
+		return super.get(ptId);
+	}
+}
@@ -0,0 +1,293 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.api.APIException;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.common.TimeQualifier;
+import org.openmrs.module.reporting.data.person.definition.ObsForPersonDataDefinition;
+import org.openmrs.module.reporting.data.person.service.PersonDataService;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of all obs of a single concept for a set of patients, up to the calculation date. The obs are fetched with a
+ * single query and stored per patient as date-ordered arrays, so that first, last and all obs for any date window can
+ * be derived in memory. Indexes are stored in the calculation context and extended as needed when later requests
+ * include patients which haven't been fetched yet.
+ */
+public class ObsIndex {
+
+	/**
+	 * Prefix of the calculation context cache entries which hold obs indexes
+	 */
+	protected static final String CONTEXT_CACHE_KEY_PREFIX = "kenyacoreObsIndex:";
+
+	private static final Obs[] NO_OBS = new Obs[0];
+
+	private Concept concept;
+
+	private Date onOrBefore;
+
+	private Set<Integer> fetched = new HashSet<Integer>();
+
+	private Map<Integer, PatientObs> data = new HashMap<Integer, PatientObs>();
+
+	/**
+	 * Creates a new empty index
+	 * @param concept the obs concept
+	 * @param onOrBefore the date up to which obs are included
+	 */
+	protected ObsIndex(Concept concept, Date onOrBefore) {
+		this.concept = concept;
+		this.onOrBefore = onOrBefore;
+	}
+
+	/**
+	 * Gets the obs index for the given concept stored in the calculation context, creating or extending it so that it
+	 * covers all patients in the given cohort
+	 * @param concept the obs concept
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 * @return the obs index
+	 */
+	public static ObsIndex forConcept(Concept concept, Collection<Integer> cohort, PatientCalculationContext context) {
+		String cacheKey = CONTEXT_CACHE_KEY_PREFIX + concept.getConceptId() + ":" + (context.getNow() != null ? context.getNow().getTime() : "");
+
+		ObsIndex index;
+		synchronized (context) {
+			index = (ObsIndex) context.getFromCache(cacheKey);
+			if (index == null) {
+				index = new ObsIndex(concept, context.getNow());
+				context.addToCache(cacheKey, index);
+			}
+		}
+
+		index.ensureFetched(cohort, context);
+		return index;
+	}
+
+	/**
+	 * Fetches the obs of any patients in the given cohort who haven't been fetched yet
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 */
+	protected synchronized void ensureFetched(Collection<Integer> cohort, PatientCalculationContext context) {
+		List<Integer> missing = new ArrayList<Integer>();
+		for (Integer ptId : cohort) {
+			if (!fetched.contains(ptId)) {
+				missing.add(ptId);
+			}
+		}
+
+		if (missing.isEmpty()) {
+			return;
+		}
+
+		ObsForPersonDataDefinition def = new ObsForPersonDataDefinition("all obs", TimeQualifier.ANY, concept, onOrBefore, null);
+		Map<Integer, Object> fetchedData = null;
+
+		CalculationProfiler.Record record = CalculationProfiler.start("obs index", concept.getName() != null ? concept.getName().getName() : String.valueOf(concept.getConceptId()), missing);
+		try {
+			EvaluationContext reportingContext = CalculationUtils.ensureReportingContext(context, missing, null);
+			fetchedData = Context.getService(PersonDataService.class).evaluate(def, reportingContext).getData();
+		}
+		catch (EvaluationException ex) {
+			throw new APIException(ex);
+		}
+		finally {
+			CalculationProfiler.stop(record, fetchedData);
+		}
+
+		for (Map.Entry<Integer, Object> entry : fetchedData.entrySet()) {
+			List<Obs> obss = (List<Obs>) entry.getValue();
+			if (obss != null && !obss.isEmpty()) {
+				data.put(entry.getKey(), new PatientObs(obss));
+			}
+		}
+
+		fetched.addAll(missing);
+	}
+
+	/**
+	 * Gets the first obs of a patient in the given date window
+	 * @param ptId the patient id
+	 * @param onOrAfter the start of the window (inclusive, may be null)
+	 * @param onOrBefore the end of the window (inclusive, may be null)
+	 * @return the obs or null
+	 */
+	public Obs first(int ptId, Date onOrAfter, Date onOrBefore) {
+		PatientObs patientObs = data.get(ptId);
+		if (patientObs == null) {
+			return null;
+		}
+		int from = patientObs.lowerBound(onOrAfter);
+		int to = patientObs.upperBound(onOrBefore);
+		return from < to ? patientObs.obs[from] : null;
+	}
+
+	/**
+	 * Gets the last obs of a patient in the given date window
+	 * @param ptId the patient id
+	 * @param onOrAfter the start of the window (inclusive, may be null)
+	 * @param onOrBefore the end of the window (inclusive, may be null)
+	 * @return the obs or null
+	 */
+	public Obs last(int ptId, Date onOrAfter, Date onOrBefore) {
+		PatientObs patientObs = data.get(ptId);
+		if (patientObs == null) {
+			return null;
+		}
+		int from = patientObs.lowerBound(onOrAfter);
+		int to = patientObs.upperBound(onOrBefore);
+		return from < to ? patientObs.obs[to - 1] : null;
+	}
+
+	/**
+	 * Gets all obs of a patient in the given date window, in chronological order
+	 * @param ptId the patient id
+	 * @param onOrAfter the start of the window (inclusive, may be null)
+	 * @param onOrBefore the end of the window (inclusive, may be null)
+	 * @return the obs
+	 */
+	public List<Obs> all(int ptId, Date onOrAfter, Date onOrBefore) {
+		PatientObs patientObs = data.get(ptId);
+		if (patientObs == null) {
+			return new ArrayList<Obs>();
+		}
+		int from = patientObs.lowerBound(onOrAfter);
+		int to = patientObs.upperBound(onOrBefore);
+		return from < to ? new ArrayList<Obs>(Arrays.asList(patientObs.obs).subList(from, to)) : new ArrayList<Obs>();
+	}
+
+	/**
+	 * Evaluates the first, last or all obs of each patient in the given date window
+	 * @param which the time qualifier
+	 * @param onOrAfter the start of the window (inclusive, may be null)
+	 * @param onOrBefore the end of the window (inclusive, may be null)
+	 * @param cohort the patient ids
+	 * @param context the calculation context
+	 * @return the obss in a calculation result map
+	 */
+	public CalculationResultMap evaluate(TimeQualifier which, Date onOrAfter, Date onOrBefore, Collection<Integer> cohort, PatientCalculationContext context) {
+		Map<Integer, Object> values = new HashMap<Integer, Object>();
+		for (Integer ptId : cohort) {
+			Object value;
+			if (which == TimeQualifier.FIRST) {
+				value = first(ptId, onOrAfter, onOrBefore);
+			}
+			else if (which == TimeQualifier.LAST) {
+				value = last(ptId, onOrAfter, onOrBefore);
+			}
+			else {
+				value = all(ptId, onOrAfter, onOrBefore);
+			}
+			values.put(ptId, value);
+		}
+		return new LazyResultMap(values, cohort, null, context);
+	}
+
+	/**
+	 * Date-ordered obs of a single patient
+	 */
+	protected static class PatientObs {
+
+		private long[] times;
+
+		private Obs[] obs;
+
+		/**
+		 * Creates new patient obs, sorting them by date
+		 * @param obss the obs
+		 */
+		public PatientObs(List<Obs> obss) {
+			obs = obss.toArray(NO_OBS);
+
+			Arrays.sort(obs, new Comparator<Obs>() {
+				@Override
+				public int compare(Obs o1, Obs o2) {
+					return OpenmrsUtil.compare(o1.getObsDatetime(), o2.getObsDatetime());
+				}
+			});
+
+			times = new long[obs.length];
+			for (int i = 0; i < obs.length; i++) {
+				times[i] = obs[i].getObsDatetime().getTime();
+			}
+		}
+
+		/**
+		 * Gets the index of the first obs on or after the given date
+		 * @param onOrAfter the date (may be null)
+		 * @return the index
+		 */
+		protected int lowerBound(Date onOrAfter) {
+			if (onOrAfter == null) {
+				return 0;
+			}
+			long time = onOrAfter.getTime();
+			int lo = 0, hi = times.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (times[mid] < time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * Gets the index after the last obs on or before the given date. Like the reporting module, a date without a
+		 * time component is treated as the end of that day.
+		 * @param onOrBefore the date (may be null)
+		 * @return the index
+		 */
+		protected int upperBound(Date onOrBefore) {
+			if (onOrBefore == null) {
+				return times.length;
+			}
+			long time = DateUtil.getEndOfDayIfTimeExcluded(onOrBefore).getTime();
+			int lo = 0, hi = times.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (times[mid] <= time) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+}
@@ -0,0 +1,458 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.Cohort;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of patient ids stored as a chunked bitmap. Ids are split into chunks of 65536, and only chunks which contain at
+ * least one id are allocated, so memory use is proportional to the spread of the ids rather than the largest id.
+ * Intersection, union and difference are performed a word (64 ids) at a time, either returning a new bitmap or in place
+ * through {@link #retainAll(Collection)}, {@link #addAll(Collection)} and {@link #removeAll(Collection)}. Implements
+ * {@link java.util.Set} so it can be passed to anything expecting a collection of patient ids, and iterates in ascending
+ * order.
+ */
+public class PatientBitmap extends AbstractSet<Integer> {
+
+	private static final int CHUNK_BITS = 16;
+
+	private static final int CHUNK_WORDS = (1 << CHUNK_BITS) / 64;
+
+	private int[] keys;
+
+	private long[][] chunks;
+
+	private int size;
+
+	/**
+	 * Creates an empty bitmap
+	 */
+	public PatientBitmap() {
+		this(new int[0], new long[0][], 0);
+	}
+
+	/**
+	 * Creates a bitmap from the given chunks
+	 * @param keys the sorted chunk keys
+	 * @param chunks the chunk words
+	 * @param size the number of ids
+	 */
+	private PatientBitmap(int[] keys, long[][] chunks, int size) {
+		this.keys = keys;
+		this.chunks = chunks;
+		this.size = size;
+	}
+
+	/**
+	 * Creates a bitmap from the given ids
+	 * @param ids the ids
+	 * @return the bitmap
+	 */
+	public static PatientBitmap of(int... ids) {
+		PatientBitmap ret = new PatientBitmap();
+		for (int id : ids) {
+			ret.add(id);
+		}
+		return ret;
+	}
+
+	/**
+	 * Creates a bitmap from a collection of ids
+	 * @param ids the ids
+	 * @return the bitmap
+	 */
+	public static PatientBitmap of(Collection<Integer> ids) {
+		if (ids instanceof PatientBitmap) {
+			return ((PatientBitmap) ids).copy();
+		}
+
+		PatientBitmap ret = new PatientBitmap();
+		for (Integer id : ids) {
+			ret.add(id.intValue());
+		}
+		return ret;
+	}
+
+	/**
+	 * Creates a bitmap from a cohort
+	 * @param cohort the cohort
+	 * @return the bitmap
+	 */
+	public static PatientBitmap of(Cohort cohort) {
+		return of(cohort.getMemberIds());
+	}
+
+	/**
+	 * Adds an id
+	 * @param id the id
+	 * @return true if the id was not already in this bitmap
+	 */
+	public boolean add(int id) {
+		int key = id >>> CHUNK_BITS;
+		int index = Arrays.binarySearch(keys, key);
+		if (index < 0) {
+			index = -index - 1;
+			keys = insert(keys, index, key);
+			chunks = insert(chunks, index, new long[CHUNK_WORDS]);
+		}
+
+		long[] chunk = chunks[index];
+		int bit = id & 0xFFFF;
+		long mask = 1L << (bit & 63);
+		if ((chunk[bit >>> 6] & mask) != 0) {
+			return false;
+		}
+		chunk[bit >>> 6] |= mask;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @see java.util.AbstractCollection#add(Object)
+	 */
+	@Override
+	public boolean add(Integer id) {
+		return add(id.intValue());
+	}
+
+	/**
+	 * Removes an id. The chunk of the id is kept even if it becomes empty, so that iterators remain valid.
+	 * @param id the id
+	 * @return true if the id was in this bitmap
+	 */
+	public boolean remove(int id) {
+		int index = Arrays.binarySearch(keys, id >>> CHUNK_BITS);
+		if (index < 0) {
+			return false;
+		}
+
+		long[] chunk = chunks[index];
+		int bit = id & 0xFFFF;
+		long mask = 1L << (bit & 63);
+		if ((chunk[bit >>> 6] & mask) == 0) {
+			return false;
+		}
+		chunk[bit >>> 6] &= ~mask;
+		size--;
+		return true;
+	}
+
+	/**
+	 * @see java.util.AbstractCollection#remove(Object)
+	 */
+	@Override
+	public boolean remove(Object o) {
+		return (o instanceof Integer) && remove(((Integer) o).intValue());
+	}
+
+	/**
+	 * Adds all ids in the given collection using {@link #or(PatientBitmap)}
+	 * @see java.util.AbstractCollection#addAll(java.util.Collection)
+	 */
+	@Override
+	public boolean addAll(Collection<? extends Integer> c) {
+		return replace(or(toBitmap(c)));
+	}
+
+	/**
+	 * Keeps only the ids in the given collection using {@link #and(PatientBitmap)}
+	 * @see java.util.AbstractSet#retainAll(java.util.Collection)
+	 */
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		return replace(and(toBitmap(c)));
+	}
+
+	/**
+	 * Removes the ids in the given collection using {@link #andNot(PatientBitmap)}
+	 * @see java.util.AbstractSet#removeAll(java.util.Collection)
+	 */
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		return replace(andNot(toBitmap(c)));
+	}
+
+	/**
+	 * @see java.util.AbstractCollection#clear()
+	 */
+	@Override
+	public void clear() {
+		replace(new PatientBitmap());
+	}
+
+	/**
+	 * Checks whether the given id is in this bitmap
+	 * @param id the id
+	 * @return true if id is in this bitmap
+	 */
+	public boolean contains(int id) {
+		int index = Arrays.binarySearch(keys, id >>> CHUNK_BITS);
+		if (index < 0) {
+			return false;
+		}
+		int bit = id & 0xFFFF;
+		return (chunks[index][bit >>> 6] & (1L << (bit & 63))) != 0;
+	}
+
+	/**
+	 * @see java.util.AbstractCollection#contains(Object)
+	 */
+	@Override
+	public boolean contains(Object o) {
+		return (o instanceof Integer) && contains(((Integer) o).intValue());
+	}
+
+	/**
+	 * @see java.util.AbstractCollection#size()
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the intersection of this and another bitmap
+	 * @param other the other bitmap
+	 * @return the intersection
+	 */
+	public PatientBitmap and(PatientBitmap other) {
+		int capacity = Math.min(keys.length, other.keys.length);
+		int[] retKeys = new int[capacity];
+		long[][] retChunks = new long[capacity][];
+		int retSize = 0, k = 0;
+
+		int i = 0, j = 0;
+		while (i < keys.length && j < other.keys.length) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				long[] chunk = new long[CHUNK_WORDS];
+				int count = 0;
+				for (int w = 0; w < CHUNK_WORDS; w++) {
+					chunk[w] = chunks[i][w] & other.chunks[j][w];
+					count += Long.bitCount(chunk[w]);
+				}
+				if (count > 0) {
+					retKeys[k] = keys[i];
+					retChunks[k++] = chunk;
+					retSize += count;
+				}
+				i++;
+				j++;
+			}
+		}
+		return new PatientBitmap(Arrays.copyOf(retKeys, k), Arrays.copyOf(retChunks, k), retSize);
+	}
+
+	/**
+	 * Returns the union of this and another bitmap
+	 * @param other the other bitmap
+	 * @return the union
+	 */
+	public PatientBitmap or(PatientBitmap other) {
+		int capacity = keys.length + other.keys.length;
+		int[] retKeys = new int[capacity];
+		long[][] retChunks = new long[capacity][];
+		int retSize = 0, k = 0;
+
+		int i = 0, j = 0;
+		while (i < keys.length || j < other.keys.length) {
+			long[] chunk;
+			if (j >= other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+				retKeys[k] = keys[i];
+				chunk = chunks[i++].clone();
+			} else if (i >= keys.length || keys[i] > other.keys[j]) {
+				retKeys[k] = other.keys[j];
+				chunk = other.chunks[j++].clone();
+			} else {
+				retKeys[k] = keys[i];
+				chunk = new long[CHUNK_WORDS];
+				for (int w = 0; w < CHUNK_WORDS; w++) {
+					chunk[w] = chunks[i][w] | other.chunks[j][w];
+				}
+				i++;
+				j++;
+			}
+			retSize += cardinality(chunk);
+			retChunks[k++] = chunk;
+		}
+		return new PatientBitmap(Arrays.copyOf(retKeys, k), Arrays.copyOf(retChunks, k), retSize);
+	}
+
+	/**
+	 * Returns the ids in this bitmap which are not in another bitmap
+	 * @param other the other bitmap
+	 * @return the difference
+	 */
+	public PatientBitmap andNot(PatientBitmap other) {
+		int[] retKeys = new int[keys.length];
+		long[][] retChunks = new long[keys.length][];
+		int retSize = 0, k = 0;
+
+		int j = 0;
+		for (int i = 0; i < keys.length; i++) {
+			while (j < other.keys.length && other.keys[j] < keys[i]) {
+				j++;
+			}
+
+			long[] chunk;
+			if (j < other.keys.length && other.keys[j] == keys[i]) {
+				chunk = new long[CHUNK_WORDS];
+				for (int w = 0; w < CHUNK_WORDS; w++) {
+					chunk[w] = chunks[i][w] & ~other.chunks[j][w];
+				}
+			} else {
+				chunk = chunks[i].clone();
+			}
+
+			int count = cardinality(chunk);
+			if (count > 0) {
+				retKeys[k] = keys[i];
+				retChunks[k++] = chunk;
+				retSize += count;
+			}
+		}
+		return new PatientBitmap(Arrays.copyOf(retKeys, k), Arrays.copyOf(retChunks, k), retSize);
+	}
+
+	/**
+	 * Creates a copy of this bitmap
+	 * @return the copy
+	 */
+	public PatientBitmap copy() {
+		long[][] retChunks = new long[chunks.length][];
+		for (int c = 0; c < chunks.length; c++) {
+			retChunks[c] = chunks[c].clone();
+		}
+		return new PatientBitmap(keys.clone(), retChunks, size);
+	}
+
+	/**
+	 * Converts this bitmap to a cohort
+	 * @return the cohort
+	 */
+	public Cohort toCohort() {
+		return new Cohort(this);
+	}
+
+	/**
+	 * @see java.util.AbstractCollection#iterator()
+	 */
+	@Override
+	public Iterator<Integer> iterator() {
+		return new Iterator<Integer>() {
+			private int chunk = 0;
+			private int word = 0;
+			private long bits = chunks.length > 0 ? chunks[0][0] : 0;
+			private Integer last = null;
+
+			@Override
+			public boolean hasNext() {
+				while (bits == 0) {
+					if (chunk >= chunks.length) {
+						return false;
+					}
+					if (++word >= CHUNK_WORDS) {
+						word = 0;
+						if (++chunk >= chunks.length) {
+							return false;
+						}
+					}
+					bits = chunks[chunk][word];
+				}
+				return true;
+			}
+
+			@Override
+			public Integer next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int bit = Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				last = (keys[chunk] << CHUNK_BITS) | (word << 6) | bit;
+				return last;
+			}
+
+			@Override
+			public void remove() {
+				if (last == null) {
+					throw new IllegalStateException();
+				}
+				PatientBitmap.this.remove(last.intValue());
+				last = null;
+			}
+		};
+	}
+
+	/**
+	 * Replaces the contents of this bitmap with those of another
+	 * @param other the other bitmap
+	 * @return true if the number of ids changed
+	 */
+	private boolean replace(PatientBitmap other) {
+		boolean changed = other.size != size;
+		keys = other.keys;
+		chunks = other.chunks;
+		size = other.size;
+		return changed;
+	}
+
+	private static PatientBitmap toBitmap(Collection<?> c) {
+		if (c instanceof PatientBitmap) {
+			return (PatientBitmap) c;
+		}
+
+		PatientBitmap ret = new PatientBitmap();
+		for (Object o : c) {
+			if (o instanceof Integer) {
+				ret.add(((Integer) o).intValue());
+			}
+		}
+		return ret;
+	}
+
+	private static int cardinality(long[] chunk) {
+		int count = 0;
+		for (long word : chunk) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	private static int[] insert(int[] array, int index, int value) {
+		int[] ret = new int[array.length + 1];
+		System.arraycopy(array, 0, ret, 0, index);
+		ret[index] = value;
+		System.arraycopy(array, index, ret, index + 1, array.length - index);
+		return ret;
+	}
+
+	private static long[][] insert(long[][] array, int index, long[] value) {
+		long[][] ret = new long[array.length + 1][];
+		System.arraycopy(array, 0, ret, 0, index);
+		ret[index] = value;
+		System.arraycopy(array, index, ret, index + 1, array.length - index);
+		return ret;
+	}
+}
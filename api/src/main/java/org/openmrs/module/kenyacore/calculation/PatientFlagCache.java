@@ -0,0 +1,268 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.EncounterType;
+import org.openmrs.Program;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.ConfigurableCalculation;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.patient.PatientCalculationService;
+import org.openmrs.calculation.result.CalculationResult;
+import org.openmrs.calculation.result.ResultUtil;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of patient flag results. Each patient's flags are evaluated when first requested and the results are kept
+ * until the end of the day, or until data which a flag depends on (see {@link FlagDependencies}) is changed for that
+ * patient. Invalidation is triggered by {@link FlagInvalidationAdvice}. Only the {@link #MAX_PATIENTS} most recently
+ * requested patients are kept.
+ */
+@Component
+public class PatientFlagCache {
+
+	/**
+	 * The maximum number of patients whose flags are cached
+	 */
+	public static final int MAX_PATIENTS = 5000;
+
+	protected static final Log log = LogFactory.getLog(PatientFlagCache.class);
+
+	@Autowired
+	private CalculationManager calculationManager;
+
+	private Map<Integer, PatientFlags> patientFlags = Collections.synchronizedMap(new LinkedHashMap<Integer, PatientFlags>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, PatientFlags> eldest) {
+			return size() > MAX_PATIENTS;
+		}
+	});
+
+	/**
+	 * Gets the flag calculations which are set for the given patient, evaluating only those flags which aren't cached
+	 * @param patientId the patient id
+	 * @return the set flag calculations
+	 */
+	public List<PatientFlagCalculation> getFlags(Integer patientId) {
+		Date today = OpenmrsUtil.firstSecondOfDay(new Date());
+
+		PatientFlags flags = patientFlags.get(patientId);
+		if (flags == null || !flags.date.equals(today)) {
+			flags = new PatientFlags(today);
+			patientFlags.put(patientId, flags);
+		}
+
+		PatientCalculationContext calculationContext = null;
+		List<PatientFlagCalculation> ret = new ArrayList<PatientFlagCalculation>();
+
+		for (PatientFlagCalculation calculation : calculationManager.getFlagCalculations()) {
+			FlagKey key = new FlagKey(calculation);
+			Boolean set = flags.results.get(key);
+
+			if (set == null) {
+				if (calculationContext == null) {
+					calculationContext = Context.getService(PatientCalculationService.class).createCalculationContext();
+				}
+
+				int version = flags.version;
+				CalculationResult result = Context.getService(PatientCalculationService.class).evaluate(patientId, calculation, calculationContext);
+				set = ResultUtil.isTrue(result);
+
+				// Don't store the result if the patient's data changed during evaluation
+				synchronized (flags) {
+					if (version == flags.version) {
+						flags.results.put(key, set);
+					}
+				}
+			}
+
+			if (set) {
+				ret.add(calculation);
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Checks whether any flags are cached for the given patient
+	 * @param patientId the patient id
+	 * @return true if flags are cached
+	 */
+	public boolean isCached(Integer patientId) {
+		return patientFlags.containsKey(patientId);
+	}
+
+	/**
+	 * Invalidates all cached flags for the given patient
+	 * @param patientId the patient id
+	 */
+	public void invalidate(Integer patientId) {
+		PatientFlags flags = patientFlags.get(patientId);
+		if (flags != null) {
+			synchronized (flags) {
+				flags.version++;
+				flags.results.clear();
+			}
+		}
+	}
+
+	/**
+	 * Invalidates the cached flags for the given patient which depend on the given concept
+	 * @param patientId the patient id
+	 * @param concept the concept
+	 */
+	public void invalidate(Integer patientId, Concept concept) {
+		invalidate(patientId, DependencyType.CONCEPT, concept.getUuid());
+	}
+
+	/**
+	 * Invalidates the cached flags for the given patient which depend on the given encounter type
+	 * @param patientId the patient id
+	 * @param encounterType the encounter type
+	 */
+	public void invalidate(Integer patientId, EncounterType encounterType) {
+		invalidate(patientId, DependencyType.ENCOUNTER_TYPE, encounterType.getUuid());
+	}
+
+	/**
+	 * Invalidates the cached flags for the given patient which depend on the given program
+	 * @param patientId the patient id
+	 * @param program the program
+	 */
+	public void invalidate(Integer patientId, Program program) {
+		invalidate(patientId, DependencyType.PROGRAM, program.getUuid());
+	}
+
+	/**
+	 * Clears all cached flags
+	 */
+	public void clear() {
+		patientFlags.clear();
+	}
+
+	/**
+	 * Invalidates the cached flags for the given patient which depend on the given item
+	 * @param patientId the patient id
+	 * @param type the dependency type
+	 * @param uuid the item UUID
+	 */
+	protected void invalidate(Integer patientId, DependencyType type, String uuid) {
+		PatientFlags flags = patientFlags.get(patientId);
+		if (flags != null) {
+			synchronized (flags) {
+				flags.version++;
+
+				for (Iterator<FlagKey> it = flags.results.keySet().iterator(); it.hasNext(); ) {
+					Class<?> calculationClass = it.next().calculationClass;
+					if (dependsOn(calculationClass, type, uuid)) {
+						it.remove();
+
+						log.debug("Invalidated " + calculationClass.getSimpleName() + " for patient #" + patientId);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the given flag calculation depends on the given item
+	 * @param calculationClass the flag calculation class
+	 * @param type the dependency type
+	 * @param uuid the item UUID
+	 * @return true if the calculation depends on the item, or doesn't declare its dependencies
+	 */
+	protected static boolean dependsOn(Class<?> calculationClass, DependencyType type, String uuid) {
+		FlagDependencies dependencies = calculationClass.getAnnotation(FlagDependencies.class);
+		if (dependencies == null) {
+			return true;
+		}
+
+		switch (type) {
+			case CONCEPT:
+				return Arrays.asList(dependencies.concepts()).contains(uuid);
+			case ENCOUNTER_TYPE:
+				return Arrays.asList(dependencies.encounterTypes()).contains(uuid);
+			default:
+				return Arrays.asList(dependencies.programs()).contains(uuid);
+		}
+	}
+
+	/**
+	 * Types of data which flags can depend on
+	 */
+	protected enum DependencyType {
+		CONCEPT,
+		ENCOUNTER_TYPE,
+		PROGRAM
+	}
+
+	/**
+	 * The cached flag results of a single patient
+	 */
+	private static class PatientFlags {
+
+		private final Date date;
+
+		private final Map<FlagKey, Boolean> results = new ConcurrentHashMap<FlagKey, Boolean>();
+
+		private volatile int version = 0;
+
+		PatientFlags(Date date) {
+			this.date = date;
+		}
+	}
+
+	/**
+	 * Identifies a flag calculation in the cached results. Flags which aren't configurable are identified by class, and
+	 * configurable flags by instance so that differently configured flags of the same class are kept apart.
+	 */
+	private static class FlagKey {
+
+		private final Class<?> calculationClass;
+
+		private final Object identity;
+
+		FlagKey(PatientFlagCalculation calculation) {
+			this.calculationClass = calculation.getClass();
+			this.identity = calculation instanceof ConfigurableCalculation ? calculation : null;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof FlagKey && ((FlagKey) o).calculationClass.equals(calculationClass) && ((FlagKey) o).identity == identity;
+		}
+
+		@Override
+		public int hashCode() {
+			return calculationClass.hashCode() * 31 + System.identityHashCode(identity);
+		}
+	}
+}
@@ -0,0 +1,796 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.ConfigurableCalculation;
+import org.openmrs.calculation.patient.PatientCalculation;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.result.CalculationResult;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.calculation.result.SimpleResult;
+import org.openmrs.module.Module;
+import org.openmrs.module.ModuleClassLoader;
+import org.openmrs.module.kenyacore.CoreUtils;
+import org.openmrs.util.OpenmrsUtil;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Disk-backed cache of calculation results which is shared across report runs. Entries are keyed by the calculation
+ * class, the versions of the modules providing it and this cache, the calculation parameters, the day of the effective
+ * date and a hash of the patient ids. Instances of a class are only interchangeable if the class is stateless as
+ * defined by {@link CalculationGraph}, so results of configurable calculations and of calculations with state are
+ * never stored. Entries with the same
+ * patients share one in-memory copy of their patient ids, and files are only read and written outside of the lock
+ * which guards the entries. Only results which are null or simple/boolean results with null,
+ * boolean, number, string or date values can be stored.
+ *
+ * Entries are evicted after {@link #MAX_AGE_DAYS} days or when there are more than {@link #MAX_ENTRIES}, and are
+ * invalidated by {@link ResultCacheInvalidationAdvice} when a patient's data dated on or before the entry's day is
+ * changed. Each invalidation increments a generation, and results are only stored if none of their patients have been
+ * invalidated since the generation at which their evaluation started. Changes which are made without going through the
+ * API, or through services which aren't advised, are not detected, so the cache is only used if the global property
+ * {@link #GP_ENABLED} is set to true.
+ */
+@Component
+public class PersistentResultCache {
+
+	/**
+	 * Global property which enables the cache
+	 */
+	public static final String GP_ENABLED = "kenyacore.persistentResultCacheEnabled";
+
+	/**
+	 * The maximum number of stored entries
+	 */
+	protected static final int MAX_ENTRIES = 1000;
+
+	/**
+	 * The maximum age in days of stored entries
+	 */
+	protected static final int MAX_AGE_DAYS = 7;
+
+	/**
+	 * The maximum number of patient invalidations which are remembered
+	 */
+	protected static final int MAX_INVALIDATIONS = 10000;
+
+	protected static final Log log = LogFactory.getLog(PersistentResultCache.class);
+
+	private static final int FORMAT_VERSION = 2;
+
+	private static final String FILE_EXTENSION = ".dat";
+
+	private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	private static final byte RESULT_NULL = 0, RESULT_SIMPLE = 1, RESULT_BOOLEAN = 2;
+
+	private static final byte VALUE_NULL = 0, VALUE_BOOLEAN = 1, VALUE_INTEGER = 2, VALUE_LONG = 3, VALUE_DOUBLE = 4, VALUE_STRING = 5, VALUE_DATE = 6;
+
+	private volatile File directory;
+
+	private volatile Map<String, Entry> entries;
+
+	private Map<String, PatientBitmap> cohorts;
+
+	private long generation;
+
+	private long forgottenGeneration;
+
+	private Map<Integer, Long> invalidations = new HashMap<Integer, Long>();
+
+	/**
+	 * Gets the cache component
+	 * @return the cache or null if it isn't available
+	 */
+	public static PersistentResultCache getInstance() {
+		List<PersistentResultCache> all = Context.getRegisteredComponents(PersistentResultCache.class);
+		return all.size() > 0 ? all.get(0) : null;
+	}
+
+	/**
+	 * Checks whether the cache is enabled
+	 * @return true if enabled
+	 */
+	public boolean isEnabled() {
+		return CoreUtils.getBooleanGlobalProperty(GP_ENABLED, false);
+	}
+
+	/**
+	 * Gets the current invalidation generation. Callers should get this before evaluating results to be stored.
+	 * @return the generation
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Gets stored results
+	 * @param calculation the calculation
+	 * @param parameterValues the calculation parameters (may be null)
+	 * @param onDate the effective date
+	 * @param patientIds the patient ids
+	 * @param calculationContext the calculation context for the returned results
+	 * @return the results or null if nothing is stored for the given key
+	 */
+	public CalculationResultMap getResults(PatientCalculation calculation, Map<String, Object> parameterValues, Date onDate, Collection<Integer> patientIds, PatientCalculationContext calculationContext) {
+		String key = key(calculation, parameterValues, onDate, patientIds);
+		if (key == null) {
+			CalculationProfiler.cacheAccess(false);
+			return null;
+		}
+
+		ensureLoaded();
+
+		Entry entry;
+		boolean expired = false;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && isExpired(entry)) {
+				remove(entry);
+				expired = true;
+			}
+		}
+
+		if (entry == null || expired) {
+			if (expired) {
+				entry.file.delete();
+			}
+			CalculationProfiler.cacheAccess(false);
+			return null;
+		}
+
+		try {
+			CalculationResultMap ret = read(entry, calculation, calculationContext);
+			CalculationProfiler.cacheAccess(true);
+			return ret;
+		}
+		catch (IOException ex) {
+			// The entry may have been replaced or removed while reading
+			boolean removed;
+			synchronized (this) {
+				removed = entries.get(key) == entry;
+				if (removed) {
+					remove(entry);
+				}
+			}
+			if (removed) {
+				log.warn("Unable to read stored results from " + entry.file, ex);
+				entry.file.delete();
+			}
+			CalculationProfiler.cacheAccess(false);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores results. Nothing is stored if any result can't be stored, or if any of the patients have been invalidated
+	 * since the given generation, as the results may then have been evaluated from data which has since changed.
+	 * @param calculation the calculation
+	 * @param parameterValues the calculation parameters (may be null)
+	 * @param onDate the effective date
+	 * @param patientIds the patient ids
+	 * @param results the results
+	 * @param generation the generation when evaluation of the results started
+	 */
+	public void putResults(PatientCalculation calculation, Map<String, Object> parameterValues, Date onDate, Collection<Integer> patientIds, CalculationResultMap results, long generation) {
+		String key = key(calculation, parameterValues, onDate, patientIds);
+		if (key == null) {
+			return;
+		}
+
+		for (CalculationResult result : results.values()) {
+			if (!isStorable(result)) {
+				return;
+			}
+		}
+
+		ensureLoaded();
+
+		PatientBitmap ids = PatientBitmap.of(patientIds);
+		synchronized (this) {
+			if (isInvalidatedSince(ids, generation)) {
+				return;
+			}
+		}
+
+		// Each entry has its own file so that files of replaced entries can be deleted without holding the lock
+		File file = new File(getDirectory(), sha1(key) + "-" + UUID.randomUUID() + FILE_EXTENSION);
+		Entry entry = new Entry(file, key, day(onDate).getTime(), System.currentTimeMillis(), cohortHash(ids));
+
+		try {
+			write(entry, ids, results);
+		}
+		catch (IOException ex) {
+			log.warn("Unable to store results in " + entry.file, ex);
+			entry.file.delete();
+			return;
+		}
+
+		List<Entry> removed = new ArrayList<Entry>();
+		synchronized (this) {
+			// Check again as patients may have been invalidated while writing
+			if (isInvalidatedSince(ids, generation)) {
+				removed.add(entry);
+			}
+			else {
+				Entry previous = entries.get(key);
+				if (previous != null) {
+					removed.add(remove(previous));
+				}
+
+				entries.put(key, entry);
+				if (!cohorts.containsKey(entry.cohortHash)) {
+					cohorts.put(entry.cohortHash, ids);
+				}
+
+				while (entries.size() > MAX_ENTRIES) {
+					removed.add(remove(entries.values().iterator().next()));
+				}
+			}
+		}
+
+		deleteFiles(removed);
+	}
+
+	/**
+	 * Removes entries which contain the given patient and whose day is on or after the given date, and records the
+	 * invalidation so that results which are being evaluated for the patient aren't stored
+	 * @param patientId the patient id
+	 * @param effectiveDate the date of the changed data (null to remove entries regardless of their day)
+	 */
+	public void invalidate(Integer patientId, Date effectiveDate) {
+		if (patientId == null) {
+			return;
+		}
+
+		ensureLoaded();
+
+		List<Entry> removed = new ArrayList<Entry>();
+		synchronized (this) {
+			invalidations.put(patientId, ++generation);
+			if (invalidations.size() > MAX_INVALIDATIONS) {
+				// Results whose evaluation started before the forgotten invalidations can no longer be checked
+				invalidations.clear();
+				forgottenGeneration = generation;
+			}
+
+			Set<String> containing = new HashSet<String>();
+			for (Map.Entry<String, PatientBitmap> cohort : cohorts.entrySet()) {
+				if (cohort.getValue().contains(patientId.intValue())) {
+					containing.add(cohort.getKey());
+				}
+			}
+			if (containing.isEmpty()) {
+				return;
+			}
+
+			for (Entry entry : new ArrayList<Entry>(entries.values())) {
+				if (containing.contains(entry.cohortHash) && (effectiveDate == null || effectiveDate.getTime() < entry.day + DAY_MILLIS)) {
+					removed.add(remove(entry));
+				}
+			}
+		}
+
+		deleteFiles(removed);
+	}
+
+	/**
+	 * Removes all entries
+	 */
+	public void clear() {
+		ensureLoaded();
+
+		List<Entry> removed = new ArrayList<Entry>();
+		synchronized (this) {
+			for (Entry entry : new ArrayList<Entry>(entries.values())) {
+				removed.add(remove(entry));
+			}
+		}
+
+		deleteFiles(removed);
+	}
+
+	/**
+	 * Gets the number of stored entries
+	 * @return the number of entries
+	 */
+	public int size() {
+		ensureLoaded();
+
+		synchronized (this) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Gets the number of distinct sets of patient ids held in memory
+	 * @return the number of cohorts
+	 */
+	public int getCohortCount() {
+		ensureLoaded();
+
+		synchronized (this) {
+			return cohorts.size();
+		}
+	}
+
+	/**
+	 * Sets the directory where entries are stored. Entries are reloaded from the new directory.
+	 * @param directory the directory
+	 */
+	public synchronized void setDirectory(File directory) {
+		this.directory = directory;
+		this.entries = null;
+		this.cohorts = null;
+	}
+
+	/**
+	 * Gets the directory where entries are stored
+	 * @return the directory
+	 */
+	protected File getDirectory() {
+		File ret = directory;
+		if (ret == null) {
+			ret = OpenmrsUtil.getDirectoryInApplicationDataDirectory("kenyacore" + File.separator + "resultcache");
+			directory = ret;
+		}
+		return ret;
+	}
+
+	/**
+	 * Loads the entries from the directory if necessary. Files are read without holding the lock.
+	 */
+	protected void ensureLoaded() {
+		if (entries != null) {
+			return;
+		}
+
+		File dir = getDirectory();
+		List<Entry> loaded = new ArrayList<Entry>();
+		Map<String, PatientBitmap> loadedCohorts = new HashMap<String, PatientBitmap>();
+		File[] files = dir.listFiles();
+
+		if (files != null) {
+			for (File file : files) {
+				if (!file.getName().endsWith(FILE_EXTENSION)) {
+					continue;
+				}
+
+				try {
+					PatientBitmap patientIds = new PatientBitmap();
+					Entry entry = readHeader(file, patientIds);
+					if (isExpired(entry)) {
+						file.delete();
+					} else {
+						loaded.add(entry);
+						if (!loadedCohorts.containsKey(entry.cohortHash)) {
+							loadedCohorts.put(entry.cohortHash, patientIds);
+						}
+					}
+				}
+				catch (IOException ex) {
+					log.warn("Removing unreadable stored results " + file, ex);
+					file.delete();
+				}
+			}
+		}
+
+		Collections.sort(loaded, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry e1, Entry e2) {
+				return e1.created < e2.created ? -1 : (e1.created > e2.created ? 1 : 0);
+			}
+		});
+
+		// Later entries replace earlier ones with the same key
+		Map<String, Entry> byKey = new LinkedHashMap<String, Entry>();
+		List<Entry> replaced = new ArrayList<Entry>();
+		for (Entry entry : loaded) {
+			Entry previous = byKey.remove(entry.key);
+			if (previous != null) {
+				replaced.add(previous);
+			}
+			byKey.put(entry.key, entry);
+		}
+
+		synchronized (this) {
+			if (entries == null && dir.equals(directory)) {
+				cohorts = loadedCohorts;
+				entries = byKey;
+				deleteFiles(replaced);
+			}
+		}
+	}
+
+	/**
+	 * Creates a key
+	 * @param calculation the calculation
+	 * @param parameterValues the calculation parameters (may be null)
+	 * @param onDate the effective date
+	 * @param patientIds the patient ids
+	 * @return the key or null if the calculation or parameters can't be represented in a key
+	 */
+	protected static String key(PatientCalculation calculation, Map<String, Object> parameterValues, Date onDate, Collection<Integer> patientIds) {
+		// The configuration of a configurable calculation or the state of other calculations isn't accessible so it
+		// can't be part of the key
+		if (calculation instanceof ConfigurableCalculation || !CalculationGraph.isStateless(calculation.getClass())) {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(calculation.getClass().getName()).append('|');
+		sb.append(moduleVersion(calculation.getClass())).append(';').append(moduleVersion(PersistentResultCache.class)).append('|');
+
+		if (parameterValues != null) {
+			for (Map.Entry<String, Object> param : new TreeMap<String, Object>(parameterValues).entrySet()) {
+				String value = describe(param.getValue());
+				if (value == null) {
+					return null;
+				}
+				sb.append(param.getKey()).append('=').append(value).append(';');
+			}
+		}
+
+		sb.append('|').append(new SimpleDateFormat("yyyy-MM-dd").format(day(onDate)));
+		sb.append('|').append(cohortHash(PatientBitmap.of(patientIds)));
+		return sb.toString();
+	}
+
+	/**
+	 * Creates a hash of a set of patient ids
+	 * @param patientIds the patient ids
+	 * @return the hash
+	 */
+	protected static String cohortHash(PatientBitmap patientIds) {
+		StringBuilder idList = new StringBuilder();
+		for (Integer id : patientIds) {
+			idList.append(id).append(',');
+		}
+		return patientIds.size() + ":" + sha1(idList.toString());
+	}
+
+	/**
+	 * Describes the version of the module which provides a class, so that stored results aren't used after the module
+	 * is upgraded or redeployed
+	 * @param clazz the class
+	 * @return the description, which is empty if the class isn't provided by a module
+	 */
+	protected static String moduleVersion(Class<?> clazz) {
+		ClassLoader loader = clazz.getClassLoader();
+		if (!(loader instanceof ModuleClassLoader)) {
+			return "";
+		}
+
+		Module module = ((ModuleClassLoader) loader).getModule();
+		String ret = module.getModuleId() + "-" + module.getVersion();
+		if (module.getFile() != null) {
+			ret += "@" + module.getFile().lastModified();
+		}
+		return ret;
+	}
+
+	/**
+	 * Describes a parameter value for use in a key
+	 * @param value the value
+	 * @return the description or null if the value has no stable description
+	 */
+	protected static String describe(Object value) {
+		if (value == null) {
+			return "null";
+		}
+		else if (value instanceof OpenmrsObject) {
+			return value.getClass().getSimpleName() + ":" + ((OpenmrsObject) value).getUuid();
+		}
+		else if (value instanceof Date) {
+			return String.valueOf(((Date) value).getTime());
+		}
+		else if (value instanceof Collection) {
+			StringBuilder sb = new StringBuilder("[");
+			for (Object item : (Collection) value) {
+				String itemValue = describe(item);
+				if (itemValue == null) {
+					return null;
+				}
+				sb.append(itemValue).append(',');
+			}
+			return sb.append(']').toString();
+		}
+		else if (value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Enum) {
+			return value.getClass().getSimpleName() + ":" + value;
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether a result can be stored
+	 * @param result the result
+	 * @return true if result can be stored
+	 */
+	protected static boolean isStorable(CalculationResult result) {
+		if (result == null) {
+			return true;
+		}
+		else if (result.getClass().equals(BooleanResult.class)) {
+			return result.getValue() instanceof Boolean;
+		}
+		else if (result.getClass().equals(SimpleResult.class)) {
+			Object value = result.getValue();
+			return value == null || value instanceof Boolean || value instanceof Integer || value instanceof Long
+					|| value instanceof Double || value instanceof String || value instanceof Date;
+		}
+		return false;
+	}
+
+	private static void write(Entry entry, PatientBitmap patientIds, CalculationResultMap results) throws IOException {
+		File temp = new File(entry.file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(entry.key);
+			out.writeLong(entry.day);
+			out.writeLong(entry.created);
+			out.writeInt(patientIds.size());
+			for (Integer id : patientIds) {
+				out.writeInt(id);
+			}
+
+			out.writeInt(results.size());
+			for (Map.Entry<Integer, CalculationResult> result : results.entrySet()) {
+				out.writeInt(result.getKey());
+				writeResult(out, result.getValue());
+			}
+		}
+		finally {
+			out.close();
+		}
+
+		if (!temp.renameTo(entry.file)) {
+			entry.file.delete();
+			if (!temp.renameTo(entry.file)) {
+				temp.delete();
+				throw new IOException("Unable to rename " + temp + " to " + entry.file);
+			}
+		}
+	}
+
+	private static void writeResult(DataOutputStream out, CalculationResult result) throws IOException {
+		if (result == null) {
+			out.writeByte(RESULT_NULL);
+			return;
+		}
+
+		out.writeByte(result instanceof BooleanResult ? RESULT_BOOLEAN : RESULT_SIMPLE);
+
+		Object value = result.getValue();
+		if (value == null) {
+			out.writeByte(VALUE_NULL);
+		} else if (value instanceof Boolean) {
+			out.writeByte(VALUE_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(VALUE_INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(VALUE_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(VALUE_DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof String) {
+			out.writeByte(VALUE_STRING);
+			out.writeUTF((String) value);
+		} else {
+			out.writeByte(VALUE_DATE);
+			out.writeLong(((Date) value).getTime());
+		}
+	}
+
+	private static Entry readHeader(File file, PatientBitmap patientIds) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return readHeader(file, in, patientIds);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static Entry readHeader(File file, DataInputStream in, PatientBitmap patientIds) throws IOException {
+		if (in.readInt() != FORMAT_VERSION) {
+			throw new IOException("Unsupported format version");
+		}
+
+		String key = in.readUTF();
+		long day = in.readLong();
+		long created = in.readLong();
+
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			patientIds.add(in.readInt());
+		}
+
+		return new Entry(file, key, day, created, cohortHash(patientIds));
+	}
+
+	private static CalculationResultMap read(Entry entry, PatientCalculation calculation, PatientCalculationContext calculationContext) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry.file)));
+		try {
+			if (!readHeader(entry.file, in, new PatientBitmap()).key.equals(entry.key)) {
+				throw new IOException("Stored key doesn't match");
+			}
+
+			CalculationResultMap ret = new CalculationResultMap();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				int ptId = in.readInt();
+				ret.put(ptId, readResult(in, calculation, calculationContext));
+			}
+			return ret;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static CalculationResult readResult(DataInputStream in, PatientCalculation calculation, PatientCalculationContext calculationContext) throws IOException {
+		byte resultType = in.readByte();
+		if (resultType == RESULT_NULL) {
+			return null;
+		}
+
+		Object value;
+		byte valueType = in.readByte();
+		switch (valueType) {
+			case VALUE_NULL: value = null; break;
+			case VALUE_BOOLEAN: value = in.readBoolean(); break;
+			case VALUE_INTEGER: value = in.readInt(); break;
+			case VALUE_LONG: value = in.readLong(); break;
+			case VALUE_DOUBLE: value = in.readDouble(); break;
+			case VALUE_STRING: value = in.readUTF(); break;
+			case VALUE_DATE: value = new Date(in.readLong()); break;
+			default: throw new IOException("Unknown value type " + valueType);
+		}
+
+		if (resultType == RESULT_BOOLEAN) {
+			return new BooleanResult((Boolean) value, calculation, calculationContext);
+		}
+		return new SimpleResult(value, calculation, calculationContext);
+	}
+
+	/**
+	 * Checks whether any of the given patients have been invalidated since the given generation. Must be called with
+	 * the lock held.
+	 * @param patientIds the patient ids
+	 * @param since the generation
+	 * @return true if any patient has been invalidated
+	 */
+	private boolean isInvalidatedSince(PatientBitmap patientIds, long since) {
+		if (since < forgottenGeneration) {
+			return true;
+		}
+		for (Map.Entry<Integer, Long> invalidation : invalidations.entrySet()) {
+			if (invalidation.getValue() > since && patientIds.contains(invalidation.getKey().intValue())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isExpired(Entry entry) {
+		return System.currentTimeMillis() - entry.created > MAX_AGE_DAYS * DAY_MILLIS;
+	}
+
+	/**
+	 * Removes an entry, and the patient ids of its cohort if no other entry has them. Must be called with the lock held,
+	 * and the entry's file must be deleted afterwards.
+	 * @param entry the entry
+	 * @return the entry
+	 */
+	private Entry remove(Entry entry) {
+		entries.remove(entry.key);
+
+		boolean shared = false;
+		for (Entry other : entries.values()) {
+			if (other.cohortHash.equals(entry.cohortHash)) {
+				shared = true;
+				break;
+			}
+		}
+		if (!shared) {
+			cohorts.remove(entry.cohortHash);
+		}
+		return entry;
+	}
+
+	private static void deleteFiles(Collection<Entry> removed) {
+		for (Entry entry : removed) {
+			entry.file.delete();
+		}
+	}
+
+	private static Date day(Date date) {
+		return OpenmrsUtil.firstSecondOfDay(date != null ? date : new Date());
+	}
+
+	private static String sha1(String input) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(input.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+			}
+			return sb.toString();
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * A stored entry
+	 */
+	protected static class Entry {
+
+		private File file;
+
+		private String key;
+
+		private long day;
+
+		private long created;
+
+		private String cohortHash;
+
+		private Entry(File file, String key, long day, long created, String cohortHash) {
+			this.file = file;
+			this.key = key;
+			this.day = day;
+			this.created = created;
+			this.cohortHash = cohortHash;
+		}
+	}
+}
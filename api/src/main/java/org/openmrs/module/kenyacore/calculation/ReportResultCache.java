@@ -0,0 +1,153 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.calculation.patient.PatientCalculation;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of calculation results which is shared by the calculation based definitions evaluated in one report evaluation,
+ * so that a row filter and several columns which use the same calculation, parameter values and date only evaluate it
+ * once. One instance is stored in the cache of the reporting evaluation context, which is shared with the child
+ * contexts used to evaluate row filters and columns. Calculations are identified as by {@link CalculationGraph}, so
+ * definitions which create their own instances of a stateless calculation still share results, whereas instances of a
+ * calculation with state, e.g. a concept passed to its constructor, don't. Results are only softly referenced so that
+ * they can be reclaimed during long report evaluations.
+ */
+public class ReportResultCache {
+
+	/**
+	 * Key of the evaluation context cache entry which holds this cache
+	 */
+	protected static final String CONTEXT_CACHE_KEY = "kenyacoreReportResultCache";
+
+	private Map<List<Object>, SoftReference<Node>> nodes = new HashMap<List<Object>, SoftReference<Node>>();
+
+	/**
+	 * Gets the cache stored in the given evaluation context, creating and storing a new one if necessary
+	 * @param context the evaluation context
+	 * @return the cache
+	 */
+	public static ReportResultCache forContext(EvaluationContext context) {
+		synchronized (context) {
+			ReportResultCache cache = (ReportResultCache) context.getFromCache(CONTEXT_CACHE_KEY);
+			if (cache == null) {
+				cache = new ReportResultCache();
+				context.addToCache(CONTEXT_CACHE_KEY, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Gets the results for the given patients if the calculation has already been evaluated on all of them
+	 * @param calculation the calculation
+	 * @param parameterValues the parameter values (may be null)
+	 * @param onDate the calculation date
+	 * @param patientIds the patient ids
+	 * @return the results or null if the calculation hasn't been evaluated on all of the given patients
+	 */
+	public synchronized CalculationResultMap get(PatientCalculation calculation, Map<String, Object> parameterValues, Date onDate, Collection<Integer> patientIds) {
+		Node node = getNode(key(calculation, parameterValues, onDate));
+		if (node == null || !node.patientIds.containsAll(patientIds)) {
+			CalculationProfiler.cacheAccess(false);
+			return null;
+		}
+
+		CalculationResultMap ret = new CalculationResultMap();
+		for (Integer ptId : patientIds) {
+			if (node.results.containsKey(ptId)) {
+				ret.put(ptId, node.results.get(ptId));
+			}
+		}
+
+		CalculationProfiler.cacheAccess(true);
+		return ret;
+	}
+
+	/**
+	 * Stores the results of evaluating a calculation on the given patients
+	 * @param calculation the calculation
+	 * @param parameterValues the parameter values (may be null)
+	 * @param onDate the calculation date
+	 * @param patientIds the patient ids
+	 * @param results the results
+	 */
+	public synchronized void put(PatientCalculation calculation, Map<String, Object> parameterValues, Date onDate, Collection<Integer> patientIds, CalculationResultMap results) {
+		List<Object> key = key(calculation, parameterValues, onDate);
+		Node node = getNode(key);
+		if (node == null) {
+			node = new Node();
+			nodes.put(key, new SoftReference<Node>(node));
+		}
+
+		node.patientIds.addAll(patientIds);
+		node.results.putAll(results);
+	}
+
+	/**
+	 * Gets the number of distinct calculations with stored results
+	 * @return the number of calculations
+	 */
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Gets a node, removing it if its results have been reclaimed
+	 * @param key the key
+	 * @return the node or null
+	 */
+	private Node getNode(List<Object> key) {
+		SoftReference<Node> ref = nodes.get(key);
+		Node node = ref != null ? ref.get() : null;
+		if (ref != null && node == null) {
+			nodes.remove(key);
+		}
+		return node;
+	}
+
+	/**
+	 * Creates a key
+	 * @param calculation the calculation
+	 * @param parameterValues the parameter values (may be null)
+	 * @param onDate the calculation date
+	 * @return the key
+	 */
+	protected static List<Object> key(PatientCalculation calculation, Map<String, Object> parameterValues, Date onDate) {
+		Map<String, Object> parameters = parameterValues != null ? new HashMap<String, Object>(parameterValues) : null;
+		Long time = onDate != null ? onDate.getTime() : null;
+		return Arrays.<Object>asList(CalculationGraph.identity(calculation), parameters, time);
+	}
+
+	/**
+	 * The results of one calculation
+	 */
+	private static class Node {
+
+		private PatientBitmap patientIds = new PatientBitmap();
+
+		private CalculationResultMap results = new CalculationResultMap();
+	}
+}
@@ -0,0 +1,129 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Order;
+import org.openmrs.PatientProgram;
+import org.openmrs.Person;
+import org.openmrs.Relationship;
+import org.openmrs.Visit;
+import org.springframework.aop.AfterReturningAdvice;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.lang.reflect.Method;
+import java.util.Date;
+
+/**
+ * AOP advice for the obs, encounter, visit, order, program, patient and person services which invalidates stored
+ * calculation results when a patient's data is changed. New, voided and purged obs only invalidate results for dates on
+ * or after their own date. Editing an obs voids it and saves a new one, and other data may have been moved, so their
+ * previous dates aren't known and results are invalidated regardless of date. If a transaction is active, results are
+ * only invalidated once it commits, so that results evaluated from the previous data can't be stored afterwards.
+ *
+ * Changes to other data, e.g. patient identifiers or allergies saved through services which aren't advised, are not
+ * detected.
+ */
+public class ResultCacheInvalidationAdvice implements AfterReturningAdvice {
+
+	private PersistentResultCache resultCache;
+
+	/**
+	 * @see AfterReturningAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)
+	 */
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (args == null || args.length == 0 || !FlagInvalidationAdvice.isModifyingMethod(method)) {
+			return;
+		}
+
+		PersistentResultCache cache = getResultCache();
+		if (cache == null) {
+			return;
+		}
+
+		Object arg = args[0];
+
+		if (arg instanceof Obs) {
+			Obs obs = (Obs) arg;
+			if (obs.getPerson() != null) {
+				// Saving an existing obs returns the new obs which replaces it
+				boolean edited = returnValue instanceof Obs && returnValue != obs;
+				invalidate(cache, obs.getPerson(), edited ? null : obs.getObsDatetime());
+			}
+		}
+		else if (arg instanceof Encounter) {
+			invalidate(cache, ((Encounter) arg).getPatient(), null);
+		}
+		else if (arg instanceof Visit) {
+			invalidate(cache, ((Visit) arg).getPatient(), null);
+		}
+		else if (arg instanceof Order) {
+			invalidate(cache, ((Order) arg).getPatient(), null);
+		}
+		else if (arg instanceof PatientProgram) {
+			// Enrollment dates may have been moved so invalidate regardless of date
+			invalidate(cache, ((PatientProgram) arg).getPatient(), null);
+		}
+		else if (arg instanceof Relationship) {
+			Relationship relationship = (Relationship) arg;
+			invalidate(cache, relationship.getPersonA(), null);
+			invalidate(cache, relationship.getPersonB(), null);
+		}
+		else if (arg instanceof Person) {
+			// Covers deaths and person attributes as well as changes to demographics
+			invalidate(cache, (Person) arg, null);
+		}
+	}
+
+	/**
+	 * Invalidates the stored results of a person, once the current transaction has committed if there is one
+	 * @param cache the result cache
+	 * @param person the person (may be null)
+	 * @param effectiveDate the date of the changed data (null to invalidate regardless of date)
+	 */
+	protected void invalidate(final PersistentResultCache cache, Person person, final Date effectiveDate) {
+		if (person == null || person.getPersonId() == null) {
+			return;
+		}
+
+		final Integer personId = person.getPersonId();
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					cache.invalidate(personId, effectiveDate);
+				}
+			});
+		}
+		else {
+			cache.invalidate(personId, effectiveDate);
+		}
+	}
+
+	/**
+	 * Gets the result cache component
+	 * @return the result cache or null if it isn't available
+	 */
+	protected PersistentResultCache getResultCache() {
+		if (resultCache == null) {
+			resultCache = PersistentResultCache.getInstance();
+		}
+		return resultCache;
+	}
+}
@@ -0,0 +1,260 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.hibernate.Session;
+import org.hibernate.proxy.HibernateProxy;
+import org.openmrs.Obs;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.calculation.result.CalculationResult;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.calculation.result.ListResult;
+import org.openmrs.calculation.result.ObsResult;
+import org.openmrs.calculation.result.SimpleResult;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Re-attaches calculation results which were evaluated in another session (e.g. by a worker thread) to a session, so
+ * that the entities they contain can be lazy loaded after the other session has been closed. Entities are re-loaded in
+ * bulk by class and results are rebuilt around the re-loaded instances. Only simple, obs and list results can be rebuilt,
+ * other result types can only be re-attached if they don't contain entities.
+ */
+public class ResultReattacher {
+
+	/**
+	 * The maximum number of ids in a single load query
+	 */
+	protected static final int LOAD_BATCH_SIZE = 1000;
+
+	private final Session session;
+
+	private final Map<Class<?>, Set<Serializable>> entityIds = new HashMap<Class<?>, Set<Serializable>>();
+
+	/**
+	 * Creates a new re-attacher
+	 * @param session the session to attach results to
+	 */
+	public ResultReattacher(Session session) {
+		this.session = session;
+	}
+
+	/**
+	 * Re-attaches the given results to the session
+	 * @param results the results
+	 * @return the re-attached results, or null if some results contain entities but can't be rebuilt
+	 */
+	public CalculationResultMap reattach(CalculationResultMap results) {
+		for (CalculationResult result : results.values()) {
+			if (!collectEntities(result)) {
+				return null;
+			}
+		}
+
+		if (entityIds.isEmpty()) {
+			return results;
+		}
+
+		loadEntities();
+
+		CalculationResultMap ret = new CalculationResultMap();
+		for (Map.Entry<Integer, CalculationResult> entry : results.entrySet()) {
+			ret.put(entry.getKey(), rebuild(entry.getValue()));
+		}
+		return ret;
+	}
+
+	/**
+	 * Records the entities contained in the given result
+	 * @param result the result
+	 * @return false if the result contains entities but can't be rebuilt
+	 */
+	protected boolean collectEntities(CalculationResult result) {
+		if (result == null) {
+			return true;
+		}
+		else if (result.getClass().equals(ListResult.class)) {
+			for (CalculationResult item : (List<CalculationResult>) ((ListResult) result).getValue()) {
+				if (!collectEntities(item)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		else if (result.getClass().equals(ObsResult.class) || result.getClass().equals(SimpleResult.class)) {
+			return collectValueEntities(result.getValue());
+		}
+		else {
+			// Any other result type is only safe if its value isn't or doesn't contain an entity
+			return !containsEntity(result.getValue());
+		}
+	}
+
+	/**
+	 * Records the entities contained in the given result value
+	 * @param value the value
+	 * @return false if the value contains entities but can't be rebuilt
+	 */
+	protected boolean collectValueEntities(Object value) {
+		if (value instanceof Collection) {
+			if (!(value instanceof List || value instanceof Set)) {
+				return !containsEntity(value);
+			}
+			for (Object item : (Collection<?>) value) {
+				if (!collectValueEntities(item)) {
+					return false;
+				}
+			}
+		}
+		else if (isEntity(value)) {
+			Class<?> entityClass = getEntityClass(value);
+			Set<Serializable> ids = entityIds.get(entityClass);
+			if (ids == null) {
+				ids = new HashSet<Serializable>();
+				entityIds.put(entityClass, ids);
+			}
+			ids.add(getEntityId(value));
+		}
+		return true;
+	}
+
+	/**
+	 * Loads all recorded entities into the session
+	 */
+	protected void loadEntities() {
+		for (Map.Entry<Class<?>, Set<Serializable>> entry : entityIds.entrySet()) {
+			List<Serializable> ids = new ArrayList<Serializable>(entry.getValue());
+
+			for (int from = 0; from < ids.size(); from += LOAD_BATCH_SIZE) {
+				session.createQuery("from " + entry.getKey().getName() + " e where e.id in (:ids)")
+						.setParameterList("ids", ids.subList(from, Math.min(from + LOAD_BATCH_SIZE, ids.size())))
+						.list();
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds a result around the entities which have been loaded into the session
+	 * @param result the result
+	 * @return the rebuilt result
+	 */
+	protected CalculationResult rebuild(CalculationResult result) {
+		if (result == null) {
+			return null;
+		}
+		else if (result.getClass().equals(ListResult.class)) {
+			ListResult ret = new ListResult();
+			for (CalculationResult item : (List<CalculationResult>) ((ListResult) result).getValue()) {
+				ret.add(rebuild(item));
+			}
+			return ret;
+		}
+		else if (result.getClass().equals(ObsResult.class)) {
+			return new ObsResult((Obs) attached(result.getValue()), result.getCalculation(), result.getCalculationContext());
+		}
+		else if (result.getClass().equals(SimpleResult.class)) {
+			return new SimpleResult(attached(result.getValue()), result.getCalculation(), result.getCalculationContext());
+		}
+		return result;
+	}
+
+	/**
+	 * Gets the instance of a value which is attached to the session
+	 * @param value the value
+	 * @return the attached value
+	 */
+	protected Object attached(Object value) {
+		if (value instanceof List) {
+			List<Object> ret = new ArrayList<Object>();
+			for (Object item : (List<?>) value) {
+				ret.add(attached(item));
+			}
+			return ret;
+		}
+		else if (value instanceof Set) {
+			Set<Object> ret = new LinkedHashSet<Object>();
+			for (Object item : (Set<?>) value) {
+				ret.add(attached(item));
+			}
+			return ret;
+		}
+		else if (isEntity(value)) {
+			// Entities have been loaded so this doesn't hit the database
+			Object loaded = session.get(getEntityClass(value), getEntityId(value));
+			return loaded != null ? loaded : value;
+		}
+		return value;
+	}
+
+	/**
+	 * Checks whether a value is or contains an entity
+	 * @param value the value
+	 * @return true if value contains an entity
+	 */
+	protected boolean containsEntity(Object value) {
+		if (value instanceof Collection) {
+			for (Object item : (Collection<?>) value) {
+				if (containsEntity(item)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return isEntity(value);
+	}
+
+	/**
+	 * Checks whether a value is a persistent entity
+	 * @param value the value
+	 * @return true if value is an entity
+	 */
+	protected boolean isEntity(Object value) {
+		return value instanceof OpenmrsObject
+				&& session.getSessionFactory().getClassMetadata(getEntityClass(value)) != null
+				&& getEntityId(value) != null;
+	}
+
+	/**
+	 * Gets the persistent class of an entity without initializing it if it's a proxy
+	 * @param entity the entity
+	 * @return the class
+	 */
+	protected static Class<?> getEntityClass(Object entity) {
+		if (entity instanceof HibernateProxy) {
+			return ((HibernateProxy) entity).getHibernateLazyInitializer().getPersistentClass();
+		}
+		return entity.getClass();
+	}
+
+	/**
+	 * Gets the identifier of an entity without initializing it if it's a proxy
+	 * @param entity the entity
+	 * @return the identifier
+	 */
+	protected static Serializable getEntityId(Object entity) {
+		if (entity instanceof HibernateProxy) {
+			return ((HibernateProxy) entity).getHibernateLazyInitializer().getIdentifier();
+		}
+		return ((OpenmrsObject) entity).getId();
+	}
+}
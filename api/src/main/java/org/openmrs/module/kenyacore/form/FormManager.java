@@ -29,8 +29,10 @@ import org.openmrs.module.htmlformentry.handler.TagHandler;
 import org.openmrs.module.kenyacore.ContentManager;
 import org.openmrs.module.kenyacore.CoreUtils;
 import org.openmrs.module.kenyacore.form.FormDescriptor.Gender;
+import org.openmrs.module.kenyacore.program.PatientEnrollmentCache;
 import org.openmrs.module.kenyacore.program.ProgramDescriptor;
 import org.openmrs.module.kenyacore.program.ProgramManager;
+import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -38,7 +40,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -55,6 +59,8 @@ public class FormManager implements ContentManager {
 
 	protected static final String tagHandlerClassSuffix = "TagHandler";
 
+	private static final String COMPLETED_FORMS_QUERY = "select e.visit.visitId, e.form.formId from Encounter e where e.voided = false and e.form is not null and e.visit.visitId in (:visitIds)";
+
 	private Map<String, FormDescriptor> forms = new LinkedHashMap<String, FormDescriptor>();
 
 	private List<FormDescriptor> commonPatientForms = new ArrayList<FormDescriptor>();
@@ -63,6 +69,9 @@ public class FormManager implements ContentManager {
 	@Autowired
 	private ProgramManager programManager;
 
+	@Autowired
+	private PatientEnrollmentCache enrollmentCache;
+
 	/**
 	 * @see org.openmrs.module.kenyacore.ContentManager#getPriority()
 	 */
@@ -253,6 +262,99 @@ public class FormManager implements ContentManager {
 		return filterForms(forms, app, visit.getPatient());
 	}
 
+	/**
+	 * Gets all per-visit forms appropriate for each of the given visits. Enrollments of all the visit patients are
+	 * fetched up front with a single query.
+	 * @param app the current application
+	 * @param visits the visits
+	 * @return the form descriptors for each visit
+	 */
+	public Map<Visit, List<FormDescriptor>> getAllFormsForVisits(AppDescriptor app, List<Visit> visits) {
+		List<Patient> patients = new ArrayList<Patient>();
+		for (Visit visit : visits) {
+			patients.add(visit.getPatient());
+		}
+		enrollmentCache.prefetch(patients);
+
+		Map<Visit, List<FormDescriptor>> forms = new LinkedHashMap<Visit, List<FormDescriptor>>();
+		for (Visit visit : visits) {
+			forms.put(visit, getAllFormsForVisit(app, visit));
+		}
+		return forms;
+	}
+
+	/**
+	 * Gets all uncompleted per-visit forms appropriate for each of the given visits. The forms of all non-voided
+	 * encounters of the visits are fetched with a single query rather than loading each visit's encounters.
+	 * @param app the current application
+	 * @param visits the visits
+	 * @return the form descriptors for each visit
+	 */
+	public Map<Visit, List<FormDescriptor>> getAllUncompletedFormsForVisits(AppDescriptor app, List<Visit> visits) {
+		Map<Visit, List<FormDescriptor>> uncompletedForms = getAllFormsForVisits(app, visits);
+		Map<Integer, Set<Integer>> completedFormIds = getCompletedFormIds(visits);
+
+		for (Map.Entry<Visit, List<FormDescriptor>> entry : uncompletedForms.entrySet()) {
+			Visit visit = entry.getKey();
+			Set<Integer> completed = completedFormIds.get(visit.getVisitId());
+
+			// Unsaved visits can only be checked using their encounters
+			if (visit.getVisitId() == null) {
+				completed = new HashSet<Integer>();
+				if (visit.getEncounters() != null) {
+					for (Encounter encounter : visit.getEncounters()) {
+						if (encounter.getForm() != null && !encounter.isVoided()) {
+							completed.add(encounter.getForm().getFormId());
+						}
+					}
+				}
+			}
+
+			if (completed != null) {
+				for (Iterator<FormDescriptor> it = entry.getValue().iterator(); it.hasNext(); ) {
+					if (completed.contains(it.next().getTarget().getFormId())) {
+						it.remove();
+					}
+				}
+			}
+		}
+		return uncompletedForms;
+	}
+
+	/**
+	 * Gets the ids of the forms of all non-voided encounters of the given saved visits
+	 * @param visits the visits
+	 * @return the form ids by visit id
+	 */
+	protected Map<Integer, Set<Integer>> getCompletedFormIds(List<Visit> visits) {
+		Map<Integer, Set<Integer>> formIds = new HashMap<Integer, Set<Integer>>();
+
+		Set<Integer> visitIds = new HashSet<Integer>();
+		for (Visit visit : visits) {
+			if (visit.getVisitId() != null) {
+				visitIds.add(visit.getVisitId());
+			}
+		}
+
+		if (visitIds.isEmpty()) {
+			return formIds;
+		}
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("visitIds", visitIds);
+
+		for (Object result : Context.getService(DataSetQueryService.class).executeHqlQuery(COMPLETED_FORMS_QUERY, params)) {
+			Object[] row = (Object[]) result;
+			Set<Integer> completed = formIds.get(row[0]);
+			if (completed == null) {
+				completed = new HashSet<Integer>();
+				formIds.put((Integer) row[0], completed);
+			}
+			completed.add((Integer) row[1]);
+		}
+		return formIds;
+	}
+
 	/**
 	 * Gets all completed per-visit forms appropriate for the given visit
 	 * @param app the current application
@@ -0,0 +1,89 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.program;
+
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.api.context.Context;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * AOP advice for the program and patient services which invalidates cached enrollments when a patient's enrollments
+ * may have changed
+ */
+public class EnrollmentCacheAdvice implements AfterReturningAdvice {
+
+	private static final String[] METHOD_PREFIXES = { "save", "void", "unvoid", "purge", "merge", "exitFromCare" };
+
+	private PatientEnrollmentCache enrollmentCache;
+
+	/**
+	 * @see AfterReturningAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)
+	 */
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (args == null || args.length == 0 || !isModifyingMethod(method)) {
+			return;
+		}
+
+		PatientEnrollmentCache cache = getEnrollmentCache();
+		if (cache == null) {
+			return;
+		}
+
+		for (Object arg : args) {
+			if (arg instanceof PatientProgram) {
+				Patient patient = ((PatientProgram) arg).getPatient();
+				if (patient != null) {
+					cache.invalidate(patient.getPatientId());
+				}
+			}
+			else if (arg instanceof Patient) {
+				cache.invalidate(((Patient) arg).getPatientId());
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the given service method modifies data
+	 * @param method the method
+	 * @return true if method modifies data
+	 */
+	protected static boolean isModifyingMethod(Method method) {
+		for (String prefix : METHOD_PREFIXES) {
+			if (method.getName().startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the enrollment cache component
+	 * @return the enrollment cache or null if it isn't available
+	 */
+	protected PatientEnrollmentCache getEnrollmentCache() {
+		if (enrollmentCache == null) {
+			List<PatientEnrollmentCache> all = Context.getRegisteredComponents(PatientEnrollmentCache.class);
+			if (all.size() > 0) {
+				enrollmentCache = all.get(0);
+			}
+		}
+		return enrollmentCache;
+	}
+}
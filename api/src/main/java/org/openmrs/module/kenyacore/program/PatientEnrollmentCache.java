@@ -0,0 +1,165 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.program;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of patient program enrollments which lasts as long as the current Hibernate session, i.e. a single request in
+ * the web application. Each patient's enrollments are fetched once per session, and are invalidated when an enrollment
+ * is changed (see {@link EnrollmentCacheAdvice}). If there is no current session then nothing is cached.
+ */
+@Component
+public class PatientEnrollmentCache {
+
+	private static final String PREFETCH_QUERY = "from PatientProgram pp where pp.voided = false and pp.patient.patientId in (:patientIds)";
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	private final ThreadLocal<Scope> scope = new ThreadLocal<Scope>();
+
+	/**
+	 * Gets all non-voided enrollments of the given patient
+	 * @param patient the patient
+	 * @return the enrollments (a new list which the caller is free to modify)
+	 */
+	public List<PatientProgram> getEnrollments(Patient patient) {
+		Map<Integer, List<PatientProgram>> cached = patient.getPatientId() != null ? getCurrentScope() : null;
+		if (cached == null) {
+			return fetch(patient);
+		}
+
+		List<PatientProgram> enrollments = cached.get(patient.getPatientId());
+		if (enrollments == null) {
+			enrollments = fetch(patient);
+			cached.put(patient.getPatientId(), enrollments);
+		}
+		return new ArrayList<PatientProgram>(enrollments);
+	}
+
+	/**
+	 * Fetches the enrollments of all the given patients which aren't already cached, with a single query. Does nothing
+	 * if there is no current session.
+	 * @param patients the patients
+	 */
+	public void prefetch(Collection<Patient> patients) {
+		Map<Integer, List<PatientProgram>> cached = getCurrentScope();
+		if (cached == null) {
+			return;
+		}
+
+		Set<Integer> missing = new HashSet<Integer>();
+		for (Patient patient : patients) {
+			if (patient.getPatientId() != null && !cached.containsKey(patient.getPatientId())) {
+				missing.add(patient.getPatientId());
+			}
+		}
+
+		if (missing.isEmpty()) {
+			return;
+		}
+
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("patientIds", missing);
+
+		for (Integer patientId : missing) {
+			cached.put(patientId, new ArrayList<PatientProgram>());
+		}
+		for (Object result : Context.getService(DataSetQueryService.class).executeHqlQuery(PREFETCH_QUERY, params)) {
+			PatientProgram enrollment = (PatientProgram) result;
+			cached.get(enrollment.getPatient().getPatientId()).add(enrollment);
+		}
+	}
+
+	/**
+	 * Invalidates the cached enrollments of the given patient
+	 * @param patientId the patient id
+	 */
+	public void invalidate(Integer patientId) {
+		Scope current = scope.get();
+		if (current != null) {
+			current.enrollments.remove(patientId);
+		}
+	}
+
+	/**
+	 * Clears all cached enrollments for the current thread
+	 */
+	public void clear() {
+		scope.remove();
+	}
+
+	/**
+	 * Fetches all non-voided enrollments of the given patient
+	 * @param patient the patient
+	 * @return the enrollments
+	 */
+	protected List<PatientProgram> fetch(Patient patient) {
+		return Context.getProgramWorkflowService().getPatientPrograms(patient, null, null, null, null, null, false);
+	}
+
+	/**
+	 * Gets the cached enrollments for the current session, discarding any left over from a previous session
+	 * @return the cached enrollments or null if there is no current session
+	 */
+	protected Map<Integer, List<PatientProgram>> getCurrentScope() {
+		Session session;
+		try {
+			session = sessionFactory.getCurrentSession();
+		}
+		catch (HibernateException ex) {
+			return null;
+		}
+
+		Scope current = scope.get();
+		if (current == null || current.session.get() != session) {
+			current = new Scope(session);
+			scope.set(current);
+		}
+		return current.enrollments;
+	}
+
+	/**
+	 * Cached enrollments of a single session
+	 */
+	private static class Scope {
+
+		private final WeakReference<Session> session;
+
+		private final Map<Integer, List<PatientProgram>> enrollments = new HashMap<Integer, List<PatientProgram>>();
+
+		Scope(Session session) {
+			this.session = new WeakReference<Session>(session);
+		}
+	}
+}
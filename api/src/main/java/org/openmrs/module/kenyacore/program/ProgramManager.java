@@ -19,15 +19,17 @@ import org.apache.commons.logging.LogFactory;
 import org.openmrs.Patient;
 import org.openmrs.PatientProgram;
 import org.openmrs.Program;
-import org.openmrs.api.ProgramWorkflowService;
 import org.openmrs.api.context.Context;
 import org.openmrs.calculation.patient.PatientCalculation;
+import org.openmrs.calculation.patient.PatientCalculationContext;
 import org.openmrs.calculation.patient.PatientCalculationService;
 import org.openmrs.calculation.result.CalculationResult;
+import org.openmrs.calculation.result.CalculationResultMap;
 import org.openmrs.calculation.result.ResultUtil;
 import org.openmrs.module.kenyacore.ContentManager;
 import org.openmrs.module.kenyacore.calculation.CalculationUtils;
 import org.openmrs.util.OpenmrsUtil;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
@@ -50,6 +52,9 @@ public class ProgramManager implements ContentManager {
 
 	private Map<String, ProgramDescriptor> programs = new LinkedHashMap<String, ProgramDescriptor>();
 
+	@Autowired
+	private PatientEnrollmentCache enrollmentCache;
+
 	/**
 	 * @see org.openmrs.module.kenyacore.ContentManager#getPriority()
 	 */
@@ -106,8 +111,7 @@ public class ProgramManager implements ContentManager {
 	public Collection<ProgramDescriptor> getPatientPrograms(Patient patient) {
 		Collection<ProgramDescriptor> everIn = new LinkedHashSet<ProgramDescriptor>();
 
-		ProgramWorkflowService pws = Context.getProgramWorkflowService();
-		for (PatientProgram pp : pws.getPatientPrograms(patient, null, null, null, null, null, false)) {
+		for (PatientProgram pp : enrollmentCache.getEnrollments(patient)) {
 			ProgramDescriptor descriptor = getProgramDescriptor(pp.getProgram());
 			if (descriptor != null && descriptor.isEnabled()) {
 				everIn.add(descriptor);
@@ -123,11 +127,42 @@ public class ProgramManager implements ContentManager {
 	 * @return the program descriptors
 	 */
 	public Collection<ProgramDescriptor> getPatientEligiblePrograms(Patient patient) {
-		List<ProgramDescriptor> eligibleFor = new ArrayList<ProgramDescriptor>();
+		return getPatientsEligiblePrograms(Collections.singleton(patient.getId())).get(patient.getId());
+	}
+
+	/**
+	 * Gets program descriptors for all programs which each of the given patients is eligible for. Each eligibility
+	 * calculation is evaluated once for the whole cohort, using a shared calculation context. Programs without an
+	 * eligibility calculation are skipped.
+	 * @param patientIds the patient ids
+	 * @return the program descriptors for every patient (empty if not eligible for any program)
+	 */
+	public Map<Integer, List<ProgramDescriptor>> getPatientsEligiblePrograms(Collection<Integer> patientIds) {
+		Map<Integer, List<ProgramDescriptor>> eligibleFor = new LinkedHashMap<Integer, List<ProgramDescriptor>>();
+		for (Integer patientId : patientIds) {
+			eligibleFor.put(patientId, new ArrayList<ProgramDescriptor>());
+		}
+
+		if (patientIds.isEmpty()) {
+			return eligibleFor;
+		}
+
+		PatientCalculationService cs = Context.getService(PatientCalculationService.class);
+		PatientCalculationContext context = cs.createCalculationContext();
 
 		for (ProgramDescriptor descriptor : programs.values()) {
-			if (descriptor.isEnabled() && isPatientEligibleFor(patient, descriptor.getTarget())) {
-				eligibleFor.add(descriptor);
+			if (!descriptor.isEnabled() || descriptor.getEligibilityCalculation() == null) {
+				continue;
+			}
+
+			PatientCalculation calculation = CalculationUtils.instantiateCalculation(descriptor.getEligibilityCalculation(), null);
+			CalculationResultMap results = cs.evaluate(patientIds, calculation, context);
+
+			for (Integer patientId : CalculationUtils.patientIdsThatPass(results, null)) {
+				List<ProgramDescriptor> descriptors = eligibleFor.get(patientId);
+				if (descriptors != null) {
+					descriptors.add(descriptor);
+				}
 			}
 		}
 
@@ -169,8 +204,7 @@ public class ProgramManager implements ContentManager {
 	public Collection<ProgramDescriptor> getPatientActivePrograms(Patient patient, Date onDate) {
 		List<ProgramDescriptor> activeIn = new ArrayList<ProgramDescriptor>();
 
-		ProgramWorkflowService pws = Context.getProgramWorkflowService();
-		for (PatientProgram pp : pws.getPatientPrograms(patient, null, null, null, null, null, false)) {
+		for (PatientProgram pp : enrollmentCache.getEnrollments(patient)) {
 			if (pp.getActive(onDate)) {
 				ProgramDescriptor descriptor = getProgramDescriptor(pp.getProgram());
 				if (descriptor != null && descriptor.isEnabled()) {
@@ -190,7 +224,12 @@ public class ProgramManager implements ContentManager {
 	 * @return the enrollments
 	 */
 	public List<PatientProgram> getPatientEnrollments(Patient patient, Program program) {
-		List<PatientProgram> enrollments = Context.getProgramWorkflowService().getPatientPrograms(patient, program, null, null, null, null, false);
+		List<PatientProgram> enrollments = new ArrayList<PatientProgram>();
+		for (PatientProgram pp : enrollmentCache.getEnrollments(patient)) {
+			if (pp.getProgram().getProgramId().equals(program.getProgramId())) {
+				enrollments.add(pp);
+			}
+		}
 
 		// Sort by enrollment date ascending
 		Collections.sort(enrollments, new Comparator<PatientProgram>() {
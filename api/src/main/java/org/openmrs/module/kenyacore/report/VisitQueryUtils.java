@@ -0,0 +1,85 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.report;
+
+import org.openmrs.VisitType;
+import org.openmrs.module.kenyacore.report.data.patient.definition.VisitsForPatientDataDefinition;
+import org.openmrs.module.reporting.common.DateUtil;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utility methods for building HQL queries of visits, shared by the evaluators which select visits
+ */
+public class VisitQueryUtils {
+
+	/**
+	 * Builds the criteria of a visits definition, using # as a placeholder for the visit alias so that they can be
+	 * repeated in subqueries
+	 * @param def the definition
+	 * @param context the evaluation context
+	 * @param m the map to store parameter values in
+	 * @return the criteria
+	 */
+	public static String buildCriteria(VisitsForPatientDataDefinition def, EvaluationContext context, Map<String, Object> m) {
+		StringBuilder criteria = new StringBuilder("#.voided = false");
+
+		if (context.getBaseCohort() != null) {
+			criteria.append(" and #.patient.patientId in (:patientIds)");
+			m.put("patientIds", context.getBaseCohort().getMemberIds());
+		}
+
+		if (def.getTypes() != null && !def.getTypes().isEmpty()) {
+			List<Integer> ids = new ArrayList<Integer>();
+			for (VisitType visitType : def.getTypes()) {
+				ids.add(visitType.getId());
+			}
+			criteria.append(" and #.visitType.visitTypeId in (:ids)");
+			m.put("ids", ids);
+		}
+
+		if (def.getStartedOnOrAfter() != null) {
+			criteria.append(" and #.startDatetime >= :startedOnOrAfter");
+			m.put("startedOnOrAfter", def.getStartedOnOrAfter());
+		}
+
+		if (def.getStartedOnOrBefore() != null) {
+			criteria.append(" and #.startDatetime <= :startedOnOrBefore");
+			m.put("startedOnOrBefore", DateUtil.getEndOfDayIfTimeExcluded(def.getStartedOnOrBefore()));
+		}
+
+		return criteria.toString();
+	}
+
+	/**
+	 * Builds a condition which only matches the first or last of each patient's visits which match the given criteria.
+	 * Visits with the same start date are resolved by lowest id, so exactly one visit is matched per patient.
+	 * @param alias the alias of the visit in the enclosing query
+	 * @param criteria the criteria built by {@link #buildCriteria(VisitsForPatientDataDefinition, EvaluationContext, java.util.Map)}
+	 * @param last true for the last visit, false for the first
+	 * @return the condition
+	 */
+	public static String firstOrLastVisit(String alias, String criteria, boolean last) {
+		String aggregate = last ? "max" : "min";
+
+		return alias + ".visitId = (select min(v2.visitId) from Visit v2 "
+				+ "where v2.patient = " + alias + ".patient and " + criteria.replace("#", "v2") + " "
+				+ "and v2.startDatetime = (select " + aggregate + "(v3.startDatetime) from Visit v3 "
+				+ "where v3.patient = " + alias + ".patient and " + criteria.replace("#", "v3") + "))";
+	}
+}
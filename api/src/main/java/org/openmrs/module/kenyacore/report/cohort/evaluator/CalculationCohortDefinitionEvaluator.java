@@ -14,13 +14,24 @@
 
 package org.openmrs.module.kenyacore.report.cohort.evaluator;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.engine.EntityKey;
 import org.openmrs.Cohort;
+import org.openmrs.OpenmrsData;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
 import org.openmrs.calculation.patient.PatientCalculationContext;
 import org.openmrs.calculation.patient.PatientCalculationService;
 import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.CoreUtils;
+import org.openmrs.module.kenyacore.calculation.CalculationProfiler;
 import org.openmrs.module.kenyacore.calculation.CalculationUtils;
+import org.openmrs.module.kenyacore.calculation.PatientBitmap;
+import org.openmrs.module.kenyacore.calculation.PersistentResultCache;
+import org.openmrs.module.kenyacore.calculation.ReportResultCache;
 import org.openmrs.module.kenyacore.report.cohort.definition.CalculationCohortDefinition;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
@@ -28,27 +39,93 @@ import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinition
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
- * Evaluator for calculation based cohorts
+ * Evaluator for calculation based cohorts. If the global property {@link #GP_BATCH_SIZE} is set to a positive number,
+ * large cohorts are evaluated in batches of that size to bound memory usage. Results are shared with other calculation
+ * based definitions in the same report evaluation through the {@link ReportResultCache}, and are stored in the
+ * {@link PersistentResultCache} if it is enabled.
  */
 @Handler(supports = CalculationCohortDefinition.class)
 public class CalculationCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
-	
+
+	/**
+	 * Global property which specifies the number of patients to evaluate per batch. Zero or empty disables batching.
+	 */
+	public static final String GP_BATCH_SIZE = "kenyacore.calculationEvaluationBatchSize";
+
+	protected static final Log log = LogFactory.getLog(CalculationCohortDefinitionEvaluator.class);
+
 	/**
 	 * @see org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition,
 	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
 	 */
 	@Override
 	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context) throws EvaluationException {
-		CalculationResultMap map = doCalculation(cohortDefinition, context);
+		int batchSize = CoreUtils.getIntegerGlobalProperty(GP_BATCH_SIZE, 0);
+		Cohort baseCohort = context.getBaseCohort();
 
-		CalculationCohortDefinition cd = (CalculationCohortDefinition) cohortDefinition;
-		Set<Integer> passing = CalculationUtils.patientsThatPass(map, cd.getWithResult());
+		PatientBitmap passing;
+
+		if (batchSize <= 0 || (baseCohort != null && baseCohort.size() <= batchSize)) {
+			List<Integer> memberIds = new ArrayList<Integer>(getCohort(context).getMemberIds());
+			passing = getPassingPatients(cohortDefinition, doSharedCalculation(cohortDefinition, context, memberIds));
+		}
+		else {
+			// Batch results aren't shared as that would keep them all in memory. Without a base cohort, batches of patient
+			// ids are fetched as needed rather than loading all patients.
+			List<Integer> memberIds = baseCohort != null ? new ArrayList<Integer>(baseCohort.getMemberIds()) : null;
+			Session session = CoreUtils.getSessionFactory().getCurrentSession();
+			passing = new PatientBitmap();
+			int evaluated = 0;
+			Integer lastId = null;
 
-		return new EvaluatedCohort(new Cohort(passing), cohortDefinition, context);
+			while (true) {
+				List<Integer> batch;
+				if (memberIds != null) {
+					if (evaluated >= memberIds.size()) {
+						break;
+					}
+					batch = new ArrayList<Integer>(memberIds.subList(evaluated, Math.min(evaluated + batchSize, memberIds.size())));
+				}
+				else {
+					batch = getPatientIds(session, lastId, batchSize);
+					if (batch.isEmpty()) {
+						break;
+					}
+					lastId = batch.get(batch.size() - 1);
+				}
+
+				Set<Object> loadedBefore = new HashSet<Object>(session.getStatistics().getEntityKeys());
+
+				passing.addAll(getPassingPatients(cohortDefinition, doCalculation(cohortDefinition, context, batch)));
+
+				// Release the patient data loaded for this batch before starting the next
+				evictLoadedSince(session, loadedBefore);
+
+				evaluated += batch.size();
+				log.debug("Evaluated " + evaluated + " patients");
+			}
+		}
+
+		return new EvaluatedCohort(passing.toCohort(), cohortDefinition, context);
+	}
+
+	/**
+	 * Extracts the patients who pass the cohort definition from the calculation results
+	 * @param cohortDefinition the cohort definition
+	 * @param results the calculation results
+	 * @return the passing patient ids
+	 */
+	protected PatientBitmap getPassingPatients(CohortDefinition cohortDefinition, CalculationResultMap results) {
+		CalculationCohortDefinition cd = (CalculationCohortDefinition) cohortDefinition;
+		return CalculationUtils.patientIdsThatPass(results, cd.getWithResult());
 	}
 
 	/**
@@ -58,29 +135,136 @@ public class CalculationCohortDefinitionEvaluator implements CohortDefinitionEva
 	 * @return the calculation results
 	 */
 	protected CalculationResultMap doCalculation(CohortDefinition cohortDefinition, EvaluationContext context) {
+		return doCalculation(cohortDefinition, context, getCohort(context).getMemberIds());
+	}
+
+	/**
+	 * Performs the calculation on the given patients, re-using the results of another calculation based definition in
+	 * the same report evaluation if possible
+	 * @param cohortDefinition the cohort definition
+	 * @param context the evaluation context
+	 * @param patientIds the patient ids
+	 * @return the calculation results
+	 */
+	protected CalculationResultMap doSharedCalculation(CohortDefinition cohortDefinition, EvaluationContext context, Collection<Integer> patientIds) {
 		CalculationCohortDefinition cd = (CalculationCohortDefinition) cohortDefinition;
+		Date onDate = getOnDate(cd, context);
+
+		ReportResultCache reportCache = ReportResultCache.forContext(context);
+		CalculationResultMap results = reportCache.get(cd.getCalculation(), cd.getCalculationParameters(), onDate, patientIds);
+		if (results == null) {
+			results = doCalculation(cohortDefinition, context, patientIds);
+			reportCache.put(cd.getCalculation(), cd.getCalculationParameters(), onDate, patientIds, results);
+		}
+		return results;
+	}
 
-		// Use date from cohort definition, or from ${date} or ${endDate} or now
+	/**
+	 * Performs the calculation on the given patients
+	 * @param cohortDefinition the cohort definition
+	 * @param context the evaluation context
+	 * @param patientIds the patient ids
+	 * @return the calculation results
+	 */
+	protected CalculationResultMap doCalculation(CohortDefinition cohortDefinition, EvaluationContext context, Collection<Integer> patientIds) {
+		CalculationCohortDefinition cd = (CalculationCohortDefinition) cohortDefinition;
+		Date onDate = getOnDate(cd, context);
+
+		PatientCalculationService pcs = Context.getService(PatientCalculationService.class);
+		PatientCalculationContext calcContext = pcs.createCalculationContext();
+		calcContext.setNow(onDate);
+
+		// Use results stored by a previous report run if possible
+		PersistentResultCache resultCache = PersistentResultCache.getInstance();
+		boolean useResultCache = resultCache != null && resultCache.isEnabled();
+		long generation = 0;
+		if (useResultCache) {
+			CalculationResultMap stored = resultCache.getResults(cd.getCalculation(), cd.getCalculationParameters(), onDate, patientIds, calcContext);
+			if (stored != null) {
+				return stored;
+			}
+			generation = resultCache.getGeneration();
+		}
+
+		CalculationProfiler.Record record = CalculationProfiler.start("calculation cohort", cd.getCalculation().getClass().getName(), patientIds);
+		CalculationResultMap results = null;
+		try {
+			results = pcs.evaluate(patientIds, cd.getCalculation(), cd.getCalculationParameters(), calcContext);
+			if (useResultCache) {
+				resultCache.putResults(cd.getCalculation(), cd.getCalculationParameters(), onDate, patientIds, results, generation);
+			}
+			return results;
+		}
+		finally {
+			CalculationProfiler.stop(record, results);
+		}
+	}
+
+	/**
+	 * Gets the calculation date, which is the date from the cohort definition, or from ${date} or ${endDate}, or the
+	 * evaluation date. The evaluation date is used rather than now so that it's the same for all definitions in a report
+	 * evaluation.
+	 * @param cd the cohort definition
+	 * @param context the evaluation context
+	 * @return the date
+	 */
+	protected Date getOnDate(CalculationCohortDefinition cd, EvaluationContext context) {
 		Date onDate = cd.getOnDate();
 		if (onDate == null) {
 			onDate = (Date) context.getParameterValue("date");
 			if (onDate == null) {
 				onDate = (Date) context.getParameterValue("endDate");
 				if (onDate == null) {
-					onDate = new Date();
+					onDate = context.getEvaluationDate();
 				}
 			}
 		}
+		return onDate;
+	}
 
-		PatientCalculationService pcs = Context.getService(PatientCalculationService.class);
-		PatientCalculationContext calcContext = pcs.createCalculationContext();
-		calcContext.setNow(onDate);
-
+	/**
+	 * Gets the cohort to evaluate, which is the base cohort or all patients if there is no base cohort
+	 * @param context the evaluation context
+	 * @return the cohort
+	 */
+	protected Cohort getCohort(EvaluationContext context) {
 		Cohort cohort = context.getBaseCohort();
 		if (cohort == null) {
 			cohort = Context.getPatientSetService().getAllPatients();
 		}
+		return cohort;
+	}
 
-		return pcs.evaluate(cohort.getMemberIds(), cd.getCalculation(), cd.getCalculationParameters(), calcContext);
+	/**
+	 * Gets the next batch of ids of non-voided patients
+	 * @param session the session
+	 * @param afterId the id after which to start (null to start from the first patient)
+	 * @param batchSize the maximum number of ids
+	 * @return the patient ids in ascending order
+	 */
+	protected List<Integer> getPatientIds(Session session, Integer afterId, int batchSize) {
+		Query query = session.createQuery("select p.patientId from Patient p where p.voided = false and p.patientId > :afterId order by p.patientId");
+		query.setInteger("afterId", afterId != null ? afterId : Integer.MIN_VALUE);
+		query.setMaxResults(batchSize);
+		return (List<Integer>) query.list();
+	}
+
+	/**
+	 * Evicts the patient data entities which have been loaded into the session since the given entity keys were taken.
+	 * Other entities, e.g. metadata used by the report, and entities which were already in the session are kept, and
+	 * the session isn't flushed.
+	 * @param session the session
+	 * @param loadedBefore the entity keys of the session before
+	 */
+	protected void evictLoadedSince(Session session, Set<Object> loadedBefore) {
+		for (Object k : new ArrayList<Object>(session.getStatistics().getEntityKeys())) {
+			if (!loadedBefore.contains(k)) {
+				EntityKey key = (EntityKey) k;
+				Object entity = session.get(key.getEntityName(), key.getIdentifier());
+				if (entity instanceof OpenmrsData && session.contains(entity)) {
+					session.evict(entity);
+				}
+			}
+		}
 	}
 }
\ No newline at end of file
@@ -15,19 +15,14 @@
 package org.openmrs.module.kenyacore.report.cohort.evaluator;
 
 import java.util.Date;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
-import org.openmrs.Cohort;
 import org.openmrs.annotation.Handler;
 import org.openmrs.calculation.result.CalculationResult;
 import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.calculation.PatientBitmap;
 import org.openmrs.module.kenyacore.report.cohort.definition.DateCalculationCohortDefinition;
-import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
-import org.openmrs.module.reporting.evaluation.EvaluationContext;
-import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.util.OpenmrsUtil;
 
 /**
@@ -37,17 +32,12 @@ import org.openmrs.util.OpenmrsUtil;
 public class DateCalculationCohortDefinitionEvaluator extends CalculationCohortDefinitionEvaluator {
 	
 	/**
-	 * @see org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition,
-	 *      org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 * @see CalculationCohortDefinitionEvaluator#getPassingPatients(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.calculation.result.CalculationResultMap)
 	 */
 	@Override
-	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context) throws EvaluationException {
-		CalculationResultMap map = doCalculation(cohortDefinition, context);
-
+	protected PatientBitmap getPassingPatients(CohortDefinition cohortDefinition, CalculationResultMap results) {
 		DateCalculationCohortDefinition cd = (DateCalculationCohortDefinition) cohortDefinition;
-		Set<Integer> passing = datesWithinRange(map, cd.getOnOrAfter(), cd.getOnOrBefore());
-
-		return new EvaluatedCohort(new Cohort(passing), cohortDefinition, context);
+		return datesWithinRange(results, cd.getOnOrAfter(), cd.getOnOrBefore());
 	}
 
 	/**
@@ -57,8 +47,8 @@ public class DateCalculationCohortDefinitionEvaluator extends CalculationCohortD
 	 * @param maxDateInclusive the maximum date (inclusive)
 	 * @return the extracted patient ids
 	 */
-	protected static Set<Integer> datesWithinRange(CalculationResultMap results, Date minDateInclusive, Date maxDateInclusive) {
-		Set<Integer> ret = new HashSet<Integer>();
+	protected static PatientBitmap datesWithinRange(CalculationResultMap results, Date minDateInclusive, Date maxDateInclusive) {
+		PatientBitmap ret = new PatientBitmap();
 		for (Map.Entry<Integer, CalculationResult> e : results.entrySet()) {
 			Date result = null;
 			try {
@@ -69,7 +59,7 @@ public class DateCalculationCohortDefinitionEvaluator extends CalculationCohortD
 			if (result != null) {
 				if (OpenmrsUtil.compareWithNullAsEarliest(result, minDateInclusive) >= 0 &&
 						OpenmrsUtil.compareWithNullAsLatest(result, maxDateInclusive) <= 0) {
-					ret.add(e.getKey());
+					ret.add(e.getKey().intValue());
 				}
 			}
 		}
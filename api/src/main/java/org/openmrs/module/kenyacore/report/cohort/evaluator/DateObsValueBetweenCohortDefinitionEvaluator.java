@@ -15,23 +15,34 @@
 package org.openmrs.module.kenyacore.report.cohort.evaluator;
 
 import org.openmrs.Cohort;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
 import org.openmrs.annotation.Handler;
-import org.openmrs.api.PatientSetService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.kenyacore.report.cohort.definition.DateObsValueBetweenCohortDefinition;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinitionEvaluator;
-import org.openmrs.module.reporting.cohort.query.service.CohortQueryService;
-import org.openmrs.module.reporting.common.RangeComparator;
+import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
- * Evaluates a DateObsValueBetweenCohortDefinition and produces a Cohort
+ * Evaluates a DateObsValueBetweenCohortDefinition and produces a Cohort. If the context has a base cohort, it is
+ * applied in the query in batches of {@link #QUERY_BATCH_SIZE} ids, so that only obs of those patients are scanned.
  */
 @Handler(supports={DateObsValueBetweenCohortDefinition.class})
 public class DateObsValueBetweenCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
+	/**
+	 * The maximum number of ids passed to a single query
+	 */
+	protected static final int QUERY_BATCH_SIZE = 1000;
+
 	/**
 	 * @see CohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
 	 * @should test any with many properties specified
@@ -40,13 +51,77 @@ public class DateObsValueBetweenCohortDefinitionEvaluator implements CohortDefin
 	public EvaluatedCohort evaluate(CohortDefinition cohortDefinition, EvaluationContext context) {
 		DateObsValueBetweenCohortDefinition cd = (DateObsValueBetweenCohortDefinition) cohortDefinition;
 
-		Cohort c = Context.getService(CohortQueryService.class).getPatientsHavingRangedObs(
-				PatientSetService.TimeModifier.ANY, cd.getQuestion(), cd.getGroupingConcept(),
-				null, null,
-				cd.getLocationList(), cd.getEncounterTypeList(),
-				RangeComparator.GREATER_EQUAL, cd.getOnOrAfter(),
-				RangeComparator.LESS_EQUAL, cd.getOnOrBefore());
+		Map<String, Object> m = new HashMap<String, Object>();
+
+		StringBuilder hql = new StringBuilder();
+		hql.append("select distinct o.person.personId ");
+		hql.append("from 		Obs o, Patient p ");
+		hql.append("where 		p.patientId = o.person.personId ");
+		hql.append("and 		p.voided = false ");
+		hql.append("and 		o.voided = false ");
+		hql.append("and 		o.concept.conceptId = :questionId ");
+		m.put("questionId", cd.getQuestion().getConceptId());
+
+		if (cd.getGroupingConcept() != null) {
+			hql.append("and 		o.obsGroup.concept.conceptId = :groupingConceptId ");
+			m.put("groupingConceptId", cd.getGroupingConcept().getConceptId());
+		}
+
+		if (cd.getLocationList() != null && !cd.getLocationList().isEmpty()) {
+			List<Integer> ids = new ArrayList<Integer>();
+			for (Location location : cd.getLocationList()) {
+				ids.add(location.getLocationId());
+			}
+			hql.append("and 		o.location.locationId in (:locationIds) ");
+			m.put("locationIds", ids);
+		}
+
+		if (cd.getEncounterTypeList() != null && !cd.getEncounterTypeList().isEmpty()) {
+			List<Integer> ids = new ArrayList<Integer>();
+			for (EncounterType encounterType : cd.getEncounterTypeList()) {
+				ids.add(encounterType.getEncounterTypeId());
+			}
+			hql.append("and 		o.encounter.encounterType.encounterTypeId in (:encounterTypeIds) ");
+			m.put("encounterTypeIds", ids);
+		}
+
+		if (cd.getOnOrAfter() != null) {
+			hql.append("and 		o.valueDatetime >= :onOrAfter ");
+			m.put("onOrAfter", cd.getOnOrAfter());
+		}
+
+		if (cd.getOnOrBefore() != null) {
+			hql.append("and 		o.valueDatetime <= :onOrBefore ");
+			m.put("onOrBefore", cd.getOnOrBefore());
+		}
+
+		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
+		Cohort c = new Cohort();
+
+		if (context.getBaseCohort() == null) {
+			addResults(c, qs.executeHqlQuery(hql.toString(), m));
+		}
+		else {
+			hql.append("and 		o.person.personId in (:patientIds) ");
+
+			List<Integer> patientIds = new ArrayList<Integer>(context.getBaseCohort().getMemberIds());
+			for (int from = 0; from < patientIds.size(); from += QUERY_BATCH_SIZE) {
+				m.put("patientIds", patientIds.subList(from, Math.min(from + QUERY_BATCH_SIZE, patientIds.size())));
+				addResults(c, qs.executeHqlQuery(hql.toString(), m));
+			}
+		}
 
 		return new EvaluatedCohort(c, cohortDefinition, context);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Adds the patient ids returned by a query to a cohort
+	 * @param cohort the cohort
+	 * @param results the query results
+	 */
+	protected void addResults(Cohort cohort, List<Object> results) {
+		for (Object result : results) {
+			cohort.addMember((Integer) result);
+		}
+	}
+}
@@ -19,31 +19,45 @@ import org.openmrs.Obs;
 import org.openmrs.Visit;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.kenyacore.CoreUtils;
+import org.openmrs.module.kenyacore.report.VisitQueryUtils;
 import org.openmrs.module.kenyacore.report.cohort.definition.ObsInLastVisitCohortDefinition;
 import org.openmrs.module.kenyacore.report.data.patient.definition.VisitsForPatientDataDefinition;
 import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.cohort.definition.CohortDefinition;
 import org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinitionEvaluator;
+import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.module.reporting.common.TimeQualifier;
 import org.openmrs.module.reporting.data.patient.PatientData;
 import org.openmrs.module.reporting.data.patient.service.PatientDataService;
 import org.openmrs.module.reporting.data.person.PersonData;
 import org.openmrs.module.reporting.data.person.definition.ObsForPersonDataDefinition;
 import org.openmrs.module.reporting.data.person.service.PersonDataService;
+import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.util.OpenmrsUtil;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
- * Evaluator for {@link ObsInLastVisitCohortDefinition}
+ * Evaluator for {@link ObsInLastVisitCohortDefinition}. By default the cohort is computed by a single query which joins
+ * each patient's last visit with obs inside that visit. If the global property {@link #GP_SET_BASED} is set to false,
+ * the last visits and all obs are loaded and compared in memory instead. Both resolve last visits which start at the
+ * same time by lowest id.
  */
 @Handler(supports = ObsInLastVisitCohortDefinition.class)
 public class ObsInLastVisitCohortDefinitionEvaluator implements CohortDefinitionEvaluator {
 
+	/**
+	 * Global property which can be set to false to disable the set-based query
+	 */
+	public static final String GP_SET_BASED = "kenyacore.obsInLastVisitSetBased";
+
 	/**
 	 * @see org.openmrs.module.reporting.cohort.definition.evaluator.CohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
 	 */
@@ -52,6 +66,60 @@ public class ObsInLastVisitCohortDefinitionEvaluator implements CohortDefinition
 
 		ObsInLastVisitCohortDefinition cd = (ObsInLastVisitCohortDefinition) cohortDefinition;
 
+		if (context.getBaseCohort() != null && context.getBaseCohort().isEmpty()) {
+			return new EvaluatedCohort(new Cohort(), cd, context);
+		}
+
+		Set<Integer> patientIds = CoreUtils.getBooleanGlobalProperty(GP_SET_BASED, true) ? evaluateWithQuery(cd, context) : evaluateInMemory(cd, context);
+
+		return new EvaluatedCohort(new Cohort(patientIds), cd, context);
+	}
+
+	/**
+	 * Evaluates the cohort with a single query which only returns patient ids
+	 * @param cd the cohort definition
+	 * @param context the evaluation context
+	 * @return the patient ids
+	 */
+	protected Set<Integer> evaluateWithQuery(ObsInLastVisitCohortDefinition cd, EvaluationContext context) {
+		VisitsForPatientDataDefinition visitsDef = new VisitsForPatientDataDefinition();
+		visitsDef.setStartedOnOrBefore(cd.getOnOrBefore());
+		visitsDef.setStartedOnOrAfter(cd.getOnOrAfter());
+
+		Map<String, Object> m = new HashMap<String, Object>();
+		String criteria = VisitQueryUtils.buildCriteria(visitsDef, context, m);
+
+		StringBuilder hql = new StringBuilder();
+		hql.append("select distinct v.patient.patientId ");
+		hql.append("from 		Visit v, Obs o ");
+		hql.append("where 		" + criteria.replace("#", "v") + " ");
+		hql.append("and 		" + VisitQueryUtils.firstOrLastVisit("v", criteria, true) + " ");
+		hql.append("and 		o.person.personId = v.patient.patientId ");
+		hql.append("and 		o.voided = false ");
+		hql.append("and 		o.concept.conceptId = :conceptId ");
+		hql.append("and 		o.obsDatetime >= v.startDatetime ");
+		hql.append("and 		(v.stopDatetime is null or o.obsDatetime < v.stopDatetime) ");
+		m.put("conceptId", cd.getQuestion().getConceptId());
+
+		if (cd.getOnOrBefore() != null) {
+			hql.append("and 		o.obsDatetime <= :obsOnOrBefore ");
+			m.put("obsOnOrBefore", DateUtil.getEndOfDayIfTimeExcluded(cd.getOnOrBefore()));
+		}
+
+		Set<Integer> patientIds = new HashSet<Integer>();
+		for (Object result : Context.getService(DataSetQueryService.class).executeHqlQuery(hql.toString(), m)) {
+			patientIds.add((Integer) result);
+		}
+		return patientIds;
+	}
+
+	/**
+	 * Evaluates the cohort by loading last visits and all obs, and comparing them in memory
+	 * @param cd the cohort definition
+	 * @param context the evaluation context
+	 * @return the patient ids
+	 */
+	protected Set<Integer> evaluateInMemory(ObsInLastVisitCohortDefinition cd, EvaluationContext context) throws EvaluationException {
 		// Get all last visits before the onOrBefore date
 		VisitsForPatientDataDefinition visitsDef = new VisitsForPatientDataDefinition();
 		visitsDef.setWhich(TimeQualifier.LAST);
@@ -83,7 +151,7 @@ public class ObsInLastVisitCohortDefinitionEvaluator implements CohortDefinition
 			}
 		}
 
-		return new EvaluatedCohort(new Cohort(patientIds), cd, context);
+		return patientIds;
 	}
 
 	/**
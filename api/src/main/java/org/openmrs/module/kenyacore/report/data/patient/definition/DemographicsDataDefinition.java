@@ -0,0 +1,101 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.report.data.patient.definition;
+
+import org.openmrs.module.reporting.common.Age;
+import org.openmrs.module.reporting.data.BaseDataDefinition;
+import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
+import org.openmrs.module.reporting.definition.configuration.ConfigurationProperty;
+import org.openmrs.module.reporting.definition.configuration.ConfigurationPropertyCachingStrategy;
+import org.openmrs.module.reporting.evaluation.caching.Caching;
+
+import java.util.Date;
+
+/**
+ * Demographics Data Definition. Reads ages or genders from the demographics snapshot rather than loading persons.
+ */
+@Caching(strategy=ConfigurationPropertyCachingStrategy.class)
+public class DemographicsDataDefinition extends BaseDataDefinition implements PatientDataDefinition {
+
+	/**
+	 * The demographic fields which can be evaluated
+	 */
+	public enum Field {
+		AGE, GENDER
+	}
+
+	//***** PROPERTIES *****
+
+	@ConfigurationProperty(required = true)
+	private Field field;
+
+	@ConfigurationProperty
+	private Date effectiveDate;
+
+	//****** CONSTRUCTORS ******
+
+	/**
+	 * Default Constructor
+	 */
+	public DemographicsDataDefinition() {
+		super();
+	}
+
+	/**
+	 * Field Constructor
+	 */
+	public DemographicsDataDefinition(Field field) {
+		this.field = field;
+	}
+
+	//***** INSTANCE METHODS *****
+
+	/**
+	 * @see org.openmrs.module.reporting.data.DataDefinition#getDataType()
+	 */
+	public Class<?> getDataType() {
+		return field == Field.AGE ? Age.class : String.class;
+	}
+
+	//****** PROPERTY ACCESS ******
+
+	/**
+	 * @return the field
+	 */
+	public Field getField() {
+		return field;
+	}
+
+	/**
+	 * @param field the field to set
+	 */
+	public void setField(Field field) {
+		this.field = field;
+	}
+
+	/**
+	 * @return the effectiveDate
+	 */
+	public Date getEffectiveDate() {
+		return effectiveDate;
+	}
+
+	/**
+	 * @param effectiveDate the effectiveDate to set
+	 */
+	public void setEffectiveDate(Date effectiveDate) {
+		this.effectiveDate = effectiveDate;
+	}
+}
@@ -14,12 +14,21 @@
 
 package org.openmrs.module.kenyacore.report.data.patient.evaluator;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
 import org.openmrs.calculation.patient.PatientCalculationContext;
 import org.openmrs.calculation.patient.PatientCalculationService;
 import org.openmrs.calculation.result.CalculationResult;
 import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.CoreUtils;
+import org.openmrs.module.kenyacore.calculation.CalculationExecutor;
+import org.openmrs.module.kenyacore.calculation.CalculationProfiler;
+import org.openmrs.module.kenyacore.calculation.PersistentResultCache;
+import org.openmrs.module.kenyacore.calculation.ReportResultCache;
+import org.openmrs.module.kenyacore.calculation.ResultReattacher;
+import org.openmrs.module.kenyacore.calculation.StatelessCalculation;
 import org.openmrs.module.kenyacore.report.data.patient.definition.CalculationDataDefinition;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
 import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
@@ -27,15 +36,38 @@ import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 /**
- * Evaluates a {@link org.openmrs.module.kenyacore.report.data.patient.definition.CalculationDataDefinition} to produce a PatientData
+ * Evaluates a {@link org.openmrs.module.kenyacore.report.data.patient.definition.CalculationDataDefinition} to produce a PatientData.
+ * If the global property {@link #GP_THREADS} is set to a number greater than one, the cohort is split into slices which
+ * are evaluated concurrently by the {@link CalculationExecutor}, each in its own session. Only stateless calculations (see
+ * {@link StatelessCalculation}) are evaluated concurrently as the calculation instance is shared by the slices. Results are shared with other calculation based definitions in
+ * the same report evaluation through the {@link ReportResultCache}, and are stored in the {@link PersistentResultCache}
+ * if it is enabled.
  */
 @Handler(supports = CalculationDataDefinition.class, order = 50)
 public class CalculationDataEvaluator implements PatientDataEvaluator {
 
+	/**
+	 * Global property which specifies the number of slices to evaluate concurrently. Zero, one or empty disables parallel
+	 * evaluation, and the number of slices is never more than the number of worker threads in the shared pool.
+	 */
+	public static final String GP_THREADS = "kenyacore.calculationEvaluationThreads";
+
+	/**
+	 * The minimum number of patients per slice when evaluating in parallel
+	 */
+	protected static final int MIN_SLICE_SIZE = 100;
+
+	protected static final Log log = LogFactory.getLog(CalculationDataEvaluator.class);
+
 	/**
 	 * @see PatientDataEvaluator#evaluate(org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
 	 */
@@ -49,22 +81,34 @@ public class CalculationDataEvaluator implements PatientDataEvaluator {
 			return c;
 		}
 
-		// Use date from cohort definition, or from ${date} or ${endDate} or now
+		// Use date from cohort definition, or from ${date} or ${endDate} or the evaluation date
 		Date onDate = def.getOnDate();
 		if (onDate == null) {
 			onDate = (Date) context.getParameterValue("date");
 			if (onDate == null) {
 				onDate = (Date) context.getParameterValue("endDate");
 				if (onDate == null) {
-					onDate = new Date();
+					onDate = context.getEvaluationDate();
 				}
 			}
 		}
-		// evaluate the calculation
-		PatientCalculationService service = Context.getService(PatientCalculationService.class);
-		PatientCalculationContext calcContext = service.createCalculationContext();
-		calcContext.setNow(onDate);
-		CalculationResultMap resultMap = service.evaluate(context.getBaseCohort().getMemberIds(), def.getCalculation(), def.getCalculationParameters(), calcContext);
+
+		// evaluate the calculation, unless another definition in the same report evaluation has already evaluated it
+		List<Integer> memberIds = new ArrayList<Integer>(context.getBaseCohort().getMemberIds());
+		ReportResultCache reportCache = ReportResultCache.forContext(context);
+		CalculationResultMap resultMap = reportCache.get(def.getCalculation(), def.getCalculationParameters(), onDate, memberIds);
+
+		if (resultMap == null) {
+			int threads = Math.min(CoreUtils.getIntegerGlobalProperty(GP_THREADS, 1), CalculationExecutor.getMaxThreads());
+			if (threads > 1 && memberIds.size() >= MIN_SLICE_SIZE * 2 && isParallelizable(def)) {
+				resultMap = calculateInParallel(memberIds, def, onDate, threads);
+			}
+			else {
+				resultMap = calculate(memberIds, def, onDate);
+			}
+
+			reportCache.put(def.getCalculation(), def.getCalculationParameters(), onDate, memberIds, resultMap);
+		}
 
 		// move data into return object
 		for (Map.Entry<Integer, CalculationResult> entry : resultMap.entrySet()) {
@@ -73,4 +117,102 @@ public class CalculationDataEvaluator implements PatientDataEvaluator {
 
 		return c;
 	}
+
+	/**
+	 * Evaluates the calculation on the given patients
+	 * @param patientIds the patient ids
+	 * @param def the calculation data definition
+	 * @param onDate the calculation date
+	 * @return the calculation results
+	 */
+	protected CalculationResultMap calculate(Collection<Integer> patientIds, CalculationDataDefinition def, Date onDate) {
+		PatientCalculationService service = Context.getService(PatientCalculationService.class);
+		PatientCalculationContext calcContext = service.createCalculationContext();
+		calcContext.setNow(onDate);
+
+		// Use results stored by a previous report run if possible
+		PersistentResultCache resultCache = PersistentResultCache.getInstance();
+		boolean useResultCache = resultCache != null && resultCache.isEnabled();
+		long generation = 0;
+		if (useResultCache) {
+			CalculationResultMap stored = resultCache.getResults(def.getCalculation(), def.getCalculationParameters(), onDate, patientIds, calcContext);
+			if (stored != null) {
+				return stored;
+			}
+			generation = resultCache.getGeneration();
+		}
+
+		CalculationProfiler.Record record = CalculationProfiler.start("calculation data", def.getCalculation().getClass().getName(), patientIds);
+		CalculationResultMap results = null;
+		try {
+			results = service.evaluate(patientIds, def.getCalculation(), def.getCalculationParameters(), calcContext);
+			if (useResultCache) {
+				resultCache.putResults(def.getCalculation(), def.getCalculationParameters(), onDate, patientIds, results, generation);
+			}
+			return results;
+		}
+		finally {
+			CalculationProfiler.stop(record, results);
+		}
+	}
+
+	/**
+	 * Evaluates the calculation on slices of the given patients using the shared pool of worker threads. The results
+	 * are re-attached to the current session once all slices have been evaluated. Evaluation falls back to a single
+	 * thread if the results contain entities which can't be re-attached.
+	 * @param patientIds the patient ids
+	 * @param def the calculation data definition
+	 * @param onDate the calculation date
+	 * @param threads the number of slices
+	 * @return the merged calculation results
+	 * @throws EvaluationException if evaluation of any slice fails
+	 */
+	protected CalculationResultMap calculateInParallel(List<Integer> patientIds, final CalculationDataDefinition def, final Date onDate, int threads) throws EvaluationException {
+		int sliceSize = Math.max(MIN_SLICE_SIZE, (patientIds.size() + threads - 1) / threads);
+
+		List<Callable<CalculationResultMap>> tasks = new ArrayList<Callable<CalculationResultMap>>();
+		for (int from = 0; from < patientIds.size(); from += sliceSize) {
+			final List<Integer> slice = new ArrayList<Integer>(patientIds.subList(from, Math.min(from + sliceSize, patientIds.size())));
+
+			tasks.add(new Callable<CalculationResultMap>() {
+				@Override
+				public CalculationResultMap call() throws Exception {
+					return calculate(slice, def, onDate);
+				}
+			});
+		}
+
+		log.debug("Evaluating " + patientIds.size() + " patients in " + tasks.size() + " slices");
+
+		CalculationResultMap merged = new CalculationResultMap();
+		try {
+			for (CalculationResultMap sliceResults : CalculationExecutor.invokeAll(tasks)) {
+				merged.putAll(sliceResults);
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new EvaluationException("Interrupted while evaluating " + def.getName(), ex);
+		}
+		catch (ExecutionException ex) {
+			throw new EvaluationException("Unable to evaluate " + def.getName(), ex.getCause());
+		}
+
+		CalculationResultMap ret = new ResultReattacher(CoreUtils.getSessionFactory().getCurrentSession()).reattach(merged);
+		if (ret == null) {
+			log.warn("Results of " + def.getCalculation().getClass().getName() + " can't be re-attached to the session so it will be evaluated on a single thread");
+			return calculate(patientIds, def, onDate);
+		}
+		return ret;
+	}
+
+	/**
+	 * Checks whether the calculation of the given definition can be evaluated in parallel. A calculation instance is
+	 * shared between the worker threads, so it must be stateless.
+	 * @param def the calculation data definition
+	 * @return true if calculation can be evaluated in parallel
+	 */
+	protected boolean isParallelizable(CalculationDataDefinition def) {
+		return def.getCalculation().getClass().isAnnotationPresent(StatelessCalculation.class);
+	}
 }
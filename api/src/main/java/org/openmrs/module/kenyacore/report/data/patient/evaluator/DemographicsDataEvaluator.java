@@ -0,0 +1,74 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.report.data.patient.evaluator;
+
+import org.openmrs.annotation.Handler;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.result.CalculationResult;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.calculation.DemographicsSnapshot;
+import org.openmrs.module.kenyacore.report.data.patient.definition.DemographicsDataDefinition;
+import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
+import org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition;
+import org.openmrs.module.reporting.data.patient.evaluator.PatientDataEvaluator;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Evaluates a DemographicsDataDefinition to produce a PatientData
+ */
+@Handler(supports = DemographicsDataDefinition.class, order = 50)
+public class DemographicsDataEvaluator implements PatientDataEvaluator {
+
+	/**
+	 * @see PatientDataEvaluator#evaluate(org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	public EvaluatedPatientData evaluate(PatientDataDefinition definition, EvaluationContext context) throws EvaluationException {
+
+		DemographicsDataDefinition def = (DemographicsDataDefinition) definition;
+		EvaluatedPatientData c = new EvaluatedPatientData(def, context);
+
+		Collection<Integer> cohort = context.getBaseCohort() != null
+				? context.getBaseCohort().getMemberIds()
+				: Context.getPatientSetService().getAllPatients().getMemberIds();
+
+		if (cohort.isEmpty()) {
+			return c;
+		}
+
+		DemographicsSnapshot snapshot = DemographicsSnapshot.getInstance();
+		CalculationResultMap results;
+
+		if (def.getField() == DemographicsDataDefinition.Field.AGE) {
+			Date effectiveDate = def.getEffectiveDate() != null ? def.getEffectiveDate() : context.getEvaluationDate();
+			results = snapshot.ages(cohort, effectiveDate);
+		}
+		else {
+			results = snapshot.genders(cohort);
+		}
+
+		for (Map.Entry<Integer, CalculationResult> entry : results.entrySet()) {
+			if (entry.getValue() != null) {
+				c.addData(entry.getKey(), entry.getValue().getValue());
+			}
+		}
+
+		return c;
+	}
+}
@@ -15,11 +15,10 @@
 package org.openmrs.module.kenyacore.report.data.patient.evaluator;
 
 import org.openmrs.Visit;
-import org.openmrs.VisitType;
 import org.openmrs.annotation.Handler;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.kenyacore.report.VisitQueryUtils;
 import org.openmrs.module.kenyacore.report.data.patient.definition.VisitsForPatientDataDefinition;
-import org.openmrs.module.reporting.common.DateUtil;
 import org.openmrs.module.reporting.common.ListMap;
 import org.openmrs.module.reporting.common.TimeQualifier;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
@@ -29,13 +28,14 @@ import org.openmrs.module.reporting.dataset.query.service.DataSetQueryService;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Evaluates an EncountersForPatientDataDefinition to produce a PatientData
+ * Evaluates a VisitsForPatientDataDefinition to produce a PatientData. For FIRST and LAST, only the first or last visit
+ * of each patient is selected by the query, with visits which start at the same time resolved by lowest id. For ANY,
+ * all matching visits are returned.
  */
 @Handler(supports = VisitsForPatientDataDefinition.class, order = 50)
 public class VisitsForPatientDataEvaluator implements PatientDataEvaluator {
@@ -52,58 +52,39 @@ public class VisitsForPatientDataEvaluator implements PatientDataEvaluator {
 			return c;
 		}
 
-		DataSetQueryService qs = Context.getService(DataSetQueryService.class);
-
-		StringBuilder hql = new StringBuilder();
 		Map<String, Object> m = new HashMap<String, Object>();
+		String criteria = VisitQueryUtils.buildCriteria(def, context, m);
 
-		hql.append("from 		Visit ");
-		hql.append("where 		voided = false ");
+		if (def.getWhich() == TimeQualifier.LAST || def.getWhich() == TimeQualifier.FIRST) {
+			StringBuilder hql = new StringBuilder();
+			hql.append("from 		Visit v ");
+			hql.append("where 		" + criteria.replace("#", "v") + " ");
+			hql.append("and 		" + VisitQueryUtils.firstOrLastVisit("v", criteria, def.getWhich() == TimeQualifier.LAST));
 
-		if (context.getBaseCohort() != null) {
-			hql.append("and 		patient.patientId in (:patientIds) ");
-			m.put("patientIds", context.getBaseCohort());
-		}
+			List<Object> queryResult = Context.getService(DataSetQueryService.class).executeHqlQuery(hql.toString(), m);
 
-		if (def.getTypes() != null && !def.getTypes().isEmpty()) {
-			List<Integer> ids = new ArrayList<Integer>();
-			for (VisitType visitType : def.getTypes()) {
-				ids.add(visitType.getId());
+			for (Object o : queryResult) {
+				Visit v = (Visit) o;
+				c.addData(v.getPatient().getId(), v);
 			}
-			hql.append("and		visitType.visitTypeId in (:ids) ");
-			m.put("ids", ids);
-		}
-
-		if (def.getStartedOnOrAfter() != null) {
-			hql.append("and		startDatetime >= :startedOnOrAfter ");
-			m.put("startedOnOrAfter", def.getStartedOnOrAfter());
-		}
-
-		if (def.getStartedOnOrBefore() != null) {
-			hql.append("and		startDatetime <= :startedOnOrBefore ");
-			m.put("startedOnOrBefore", DateUtil.getEndOfDayIfTimeExcluded(def.getStartedOnOrBefore()));
 		}
+		else {
+			// Every visit is kept in the result, so there would be nothing to gain from reading them through a cursor
+			String hql = "from Visit v where " + criteria.replace("#", "v") + " order by v.startDatetime asc";
 
-		hql.append("order by 	startDatetime " + (def.getWhich() == TimeQualifier.LAST ? "desc" : "asc"));
-
-		List<Object> queryResult = qs.executeHqlQuery(hql.toString(), m);
+			List<Object> queryResult = Context.getService(DataSetQueryService.class).executeHqlQuery(hql, m);
 
-		ListMap<Integer, Visit> visitsForPatients = new ListMap<Integer, Visit>();
-		for (Object o : queryResult) {
-			Visit v = (Visit) o;
-			visitsForPatients.putInList(v.getPatient().getId(), v);
-		}
-
-		for (Integer pId : visitsForPatients.keySet()) {
-			List<Visit> l = visitsForPatients.get(pId);
-			if (def.getWhich() == TimeQualifier.LAST || def.getWhich() == TimeQualifier.FIRST) {
-				c.addData(pId, l.get(0));
+			ListMap<Integer, Visit> visitsForPatients = new ListMap<Integer, Visit>();
+			for (Object o : queryResult) {
+				Visit v = (Visit) o;
+				visitsForPatients.putInList(v.getPatient().getId(), v);
 			}
-			else {
-				c.addData(pId, l);
+
+			for (Integer pId : visitsForPatients.keySet()) {
+				c.addData(pId, visitsForPatients.get(pId));
 			}
 		}
 
 		return c;
 	}
-}
\ No newline at end of file
+}
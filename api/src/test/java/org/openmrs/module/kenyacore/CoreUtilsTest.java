@@ -173,4 +173,75 @@ public class CoreUtilsTest extends BaseModuleContextSensitiveTest {
 
 		Assert.assertThat(Context.getAdministrationService().getGlobalProperty("core.test"), is("123"));
 	}
+
+	/**
+	 * @see CoreUtils#getIntegerGlobalProperty(String, int)
+	 * @verifies return default value if property is blank
+	 */
+	@Test
+	public void getIntegerGlobalProperty_shouldReturnDefaultValueIfPropertyIsBlank() {
+		Assert.assertThat(CoreUtils.getIntegerGlobalProperty("core.test", 3), is(3));
+
+		CoreUtils.setGlobalProperty("core.test", " ");
+
+		Assert.assertThat(CoreUtils.getIntegerGlobalProperty("core.test", 3), is(3));
+	}
+
+	/**
+	 * @see CoreUtils#getIntegerGlobalProperty(String, int)
+	 * @verifies return default value if property is not an integer
+	 */
+	@Test
+	public void getIntegerGlobalProperty_shouldReturnDefaultValueIfPropertyIsNotAnInteger() {
+		CoreUtils.setGlobalProperty("core.test", "xxx");
+
+		Assert.assertThat(CoreUtils.getIntegerGlobalProperty("core.test", 3), is(3));
+	}
+
+	/**
+	 * @see CoreUtils#getIntegerGlobalProperty(String, int)
+	 * @verifies parse trimmed property value
+	 */
+	@Test
+	public void getIntegerGlobalProperty_shouldParseTrimmedPropertyValue() {
+		CoreUtils.setGlobalProperty("core.test", " 12 ");
+
+		Assert.assertThat(CoreUtils.getIntegerGlobalProperty("core.test", 3), is(12));
+	}
+
+	/**
+	 * @see CoreUtils#getBooleanGlobalProperty(String, boolean)
+	 * @verifies return default value if property is blank
+	 */
+	@Test
+	public void getBooleanGlobalProperty_shouldReturnDefaultValueIfPropertyIsBlank() {
+		Assert.assertThat(CoreUtils.getBooleanGlobalProperty("core.test", true), is(true));
+		Assert.assertThat(CoreUtils.getBooleanGlobalProperty("core.test", false), is(false));
+	}
+
+	/**
+	 * @see CoreUtils#getBooleanGlobalProperty(String, boolean)
+	 * @verifies return default value if property is not a boolean
+	 */
+	@Test
+	public void getBooleanGlobalProperty_shouldReturnDefaultValueIfPropertyIsNotABoolean() {
+		CoreUtils.setGlobalProperty("core.test", "yes");
+
+		Assert.assertThat(CoreUtils.getBooleanGlobalProperty("core.test", false), is(false));
+	}
+
+	/**
+	 * @see CoreUtils#getBooleanGlobalProperty(String, boolean)
+	 * @verifies parse trimmed property value ignoring case
+	 */
+	@Test
+	public void getBooleanGlobalProperty_shouldParseTrimmedPropertyValueIgnoringCase() {
+		CoreUtils.setGlobalProperty("core.test", " TRUE ");
+
+		Assert.assertThat(CoreUtils.getBooleanGlobalProperty("core.test", false), is(true));
+
+		CoreUtils.setGlobalProperty("core.test", "False");
+
+		Assert.assertThat(CoreUtils.getBooleanGlobalProperty("core.test", true), is(false));
+	}
 }
\ No newline at end of file
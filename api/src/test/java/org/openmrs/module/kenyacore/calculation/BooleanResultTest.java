@@ -43,4 +43,23 @@ public class BooleanResultTest {
 		Assert.assertThat(new BooleanResult(Boolean.FALSE, null).isEmpty(), is(true));
 		Assert.assertThat(new BooleanResult(Boolean.TRUE, null).isEmpty(), is(false));
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @see BooleanResult#valueOf(boolean)
+	 */
+	@Test
+	public void valueOf() {
+		Assert.assertThat(BooleanResult.valueOf(true), sameInstance(BooleanResult.TRUE));
+		Assert.assertThat(BooleanResult.valueOf(false), sameInstance(BooleanResult.FALSE));
+		Assert.assertThat(BooleanResult.TRUE.getValue(), is((Object) Boolean.TRUE));
+		Assert.assertThat(BooleanResult.FALSE.isEmpty(), is(true));
+	}
+
+	/**
+	 * @see BooleanResult#TRUE
+	 */
+	@Test(expected = UnsupportedOperationException.class)
+	public void sharedResults_shouldNotBeModifiable() {
+		BooleanResult.TRUE.setValue(Boolean.FALSE);
+	}
+}
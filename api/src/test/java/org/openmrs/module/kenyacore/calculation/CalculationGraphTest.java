@@ -0,0 +1,159 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.patient.PatientCalculation;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.patient.PatientCalculationService;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.test.TestCalculation;
+import org.openmrs.module.kenyacore.test.TestCalculationWithParams;
+import org.openmrs.module.kenyacore.test.TestFlagCalculation;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link CalculationGraph}
+ */
+public class CalculationGraphTest extends BaseModuleContextSensitiveTest {
+
+	private List<Integer> cohort = Arrays.asList(2, 6, 7);
+
+	private PatientCalculationContext context;
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() {
+		context = Context.getService(PatientCalculationService.class).createCalculationContext();
+		context.setNow(TestUtils.date(2012, 6, 1));
+	}
+
+	/**
+	 * @see CalculationGraph#evaluateAll(java.util.List, java.util.Collection, java.util.Map, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void evaluateAll_shouldEvaluateIdenticalNodesOnlyOnce() {
+		int evaluations = TestFlagCalculation.getEvaluations();
+
+		List<PatientCalculation> calculations = Arrays.<PatientCalculation>asList(new TestFlagCalculation(), new TestCalculation(), new TestFlagCalculation());
+		List<CalculationResultMap> results = CalculationGraph.evaluateAll(calculations, cohort, null, context);
+
+		Assert.assertThat(results, hasSize(3));
+		Assert.assertThat(results.get(0).keySet(), containsInAnyOrder(2, 6, 7));
+		Assert.assertThat(results.get(2).keySet(), containsInAnyOrder(2, 6, 7));
+		Assert.assertThat(results.get(0), not(sameInstance(results.get(2))));
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations + 1));
+
+		// Results should be re-used by later evaluations with the same context
+		CalculationGraph.evaluate(new TestFlagCalculation(), cohort, null, context);
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations + 1));
+
+		// But not for a different cohort
+		CalculationGraph.evaluate(new TestFlagCalculation(), Arrays.asList(2), null, context);
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations + 2));
+	}
+
+	/**
+	 * @see CalculationGraph#evaluateAll(java.util.List, java.util.Collection, java.util.Map, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void evaluateAll_shouldOnlyRetainResultsWhichAreReused() {
+		CalculationGraph.NodeResults stored = CalculationGraph.NodeResults.forContext(context);
+
+		CalculationGraph.evaluate(new TestCalculation(), cohort, null, context);
+		Assert.assertThat(stored.getRetainedCount(), is(0));
+
+		CalculationGraph.evaluate(new TestCalculation(), cohort, null, context);
+		Assert.assertThat(stored.getRetainedCount(), is(1));
+	}
+
+	/**
+	 * @see CalculationGraph#evaluateAll(java.util.List, java.util.Collection, java.util.Map, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void evaluateAll_shouldNotAffectResultCacheStatistics() {
+		CalculationResultCache cache = CalculationResultCache.forContext(context);
+
+		CalculationGraph.evaluate(new TestCalculation(), cohort, null, context);
+		CalculationGraph.evaluate(new TestCalculation(), cohort, null, context);
+
+		Assert.assertThat(cache.getHits(), is(0));
+		Assert.assertThat(cache.getMisses(), is(0));
+	}
+
+	/**
+	 * @see CalculationGraph#evaluateConcurrently(java.util.Map, java.util.Collection, java.util.Map, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void evaluateConcurrently_shouldEvaluateEachNodeWithItsOwnContext() {
+		PatientCalculation calc1 = new TestCalculation();
+		PatientCalculation calc2 = new TestCalculationWithParams();
+
+		Map<List<Object>, PatientCalculation> nodes = new LinkedHashMap<List<Object>, PatientCalculation>();
+		nodes.put(CalculationGraph.key(calc1, cohort, null, context.getNow()), calc1);
+		nodes.put(CalculationGraph.key(calc2, cohort, null, context.getNow()), calc2);
+
+		Map<List<Object>, CalculationResultMap> results = CalculationGraph.evaluateConcurrently(nodes, cohort, null, context);
+
+		Assert.assertThat(results.size(), is(2));
+		for (CalculationResultMap result : results.values()) {
+			Assert.assertThat(CalculationUtils.patientsThatPass(result), containsInAnyOrder(2, 6, 7));
+			PatientCalculationContext workerContext = (PatientCalculationContext) result.get(2).getCalculationContext();
+			Assert.assertThat(workerContext, not(sameInstance(context)));
+			Assert.assertThat(workerContext.getNow(), is(context.getNow()));
+		}
+
+		// Nothing should have been stored in the caller's context by the workers
+		Assert.assertThat(CalculationResultCache.forContext(context).size(), is(0));
+	}
+
+	/**
+	 * @see CalculationGraph#identity(org.openmrs.calculation.patient.PatientCalculation)
+	 */
+	@Test
+	public void identity_shouldIdentifyCalculationsWithoutStateByClass() {
+		Assert.assertThat(CalculationGraph.identity(new TestCalculation()), is((Object) TestCalculation.class));
+		Assert.assertThat(CalculationGraph.identity(new TestFlagCalculation()), is((Object) TestFlagCalculation.class));
+
+		PatientCalculation stateful = new StatefulCalculation();
+		Assert.assertThat(CalculationGraph.identity(stateful), is(CalculationGraph.identity(stateful)));
+		Assert.assertThat(CalculationGraph.identity(stateful), not(CalculationGraph.identity(new StatefulCalculation())));
+	}
+
+	/**
+	 * Calculation with an instance field, so instances can't be assumed to be interchangeable
+	 */
+	public static class StatefulCalculation extends TestCalculation {
+
+		private int threshold = 1;
+
+		public int getThreshold() {
+			return threshold;
+		}
+	}
+}
@@ -0,0 +1,151 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link CalculationIndexProcessor} which compile sample sources with the processor. The samples declare their
+ * own copy of the calculation interface so that they can be compiled without a classpath.
+ */
+public class CalculationIndexProcessorTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private JavaCompiler compiler;
+
+	private File sourceDir;
+
+	private File outputDir;
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() throws IOException {
+		compiler = ToolProvider.getSystemJavaCompiler();
+		Assume.assumeNotNull(compiler);
+
+		sourceDir = folder.newFolder("src");
+		outputDir = folder.newFolder("classes");
+
+		writeSource("org.openmrs.calculation.patient.PatientCalculation", "package org.openmrs.calculation.patient; public interface PatientCalculation {}");
+	}
+
+	/**
+	 * @see CalculationIndexProcessor#process(java.util.Set, javax.annotation.processing.RoundEnvironment)
+	 */
+	@Test
+	public void process_shouldIndexConcretePublicCalculationClasses() throws IOException {
+		compile(
+				writeSource("sample.PublicCalculation", "package sample; import org.openmrs.calculation.patient.PatientCalculation; public class PublicCalculation implements PatientCalculation { public static class Nested extends PublicCalculation {} private static class Hidden extends PublicCalculation {} }"),
+				writeSource("sample.AbstractCalculation", "package sample; import org.openmrs.calculation.patient.PatientCalculation; public abstract class AbstractCalculation implements PatientCalculation {}"),
+				writeSource("sample.PackageCalculation", "package sample; class PackageCalculation extends PublicCalculation {}"),
+				writeSource("sample.NotACalculation", "package sample; public class NotACalculation {}")
+		);
+
+		Assert.assertThat(readIndex(), contains("sample.PublicCalculation", "sample.PublicCalculation$Nested"));
+	}
+
+	/**
+	 * @see CalculationIndexProcessor#process(java.util.Set, javax.annotation.processing.RoundEnvironment)
+	 */
+	@Test
+	public void process_shouldNotWriteIndexIfNoCalculationsFound() throws IOException {
+		compile(writeSource("sample.NotACalculation", "package sample; public class NotACalculation {}"));
+
+		Assert.assertThat(new File(outputDir, CalculationManager.INDEX_RESOURCE).exists(), is(false));
+	}
+
+	/**
+	 * @see CalculationIndexProcessor#mergePreviousIndex(javax.lang.model.type.TypeMirror, javax.lang.model.util.Types)
+	 */
+	@Test
+	public void mergePreviousIndex_shouldKeepPreviouslyIndexedClassesWithoutDuplicates() throws IOException {
+		File first = writeSource("sample.FirstCalculation", "package sample; import org.openmrs.calculation.patient.PatientCalculation; public class FirstCalculation implements PatientCalculation {}");
+		File second = writeSource("sample.SecondCalculation", "package sample; import org.openmrs.calculation.patient.PatientCalculation; public class SecondCalculation implements PatientCalculation {}");
+		compile(first, second);
+
+		// Incremental build which only recompiles one of the classes, with a stale entry in the previous index
+		FileUtils.writeStringToFile(new File(outputDir, CalculationManager.INDEX_RESOURCE), "sample.FirstCalculation\nsample.SecondCalculation\nsample.DeletedCalculation\n", "UTF-8");
+		File third = writeSource("sample.ThirdCalculation", "package sample; import org.openmrs.calculation.patient.PatientCalculation; public class ThirdCalculation implements PatientCalculation {}");
+		compile(second, third);
+
+		Assert.assertThat(readIndex(), contains("sample.FirstCalculation", "sample.SecondCalculation", "sample.ThirdCalculation"));
+	}
+
+	/**
+	 * Writes a sample source file
+	 * @param className the class name
+	 * @param source the source code
+	 * @return the file
+	 */
+	private File writeSource(String className, String source) throws IOException {
+		File file = new File(sourceDir, className.replace('.', File.separatorChar) + ".java");
+		FileUtils.writeStringToFile(file, source, "UTF-8");
+		return file;
+	}
+
+	/**
+	 * Compiles the given sample source files with the processor, along with the calculation interface. Previously
+	 * compiled classes are on the classpath as they would be in an incremental build.
+	 * @param sources the source files
+	 */
+	private void compile(File... sources) throws IOException {
+		List<File> files = new ArrayList<File>(Arrays.asList(sources));
+		files.add(new File(sourceDir, "org/openmrs/calculation/patient/PatientCalculation.java"));
+
+		StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+		try {
+			Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+			List<String> options = Arrays.asList("-d", outputDir.getPath(), "-classpath", outputDir.getPath());
+
+			JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null, options, null, units);
+			task.setProcessors(Arrays.asList(new CalculationIndexProcessor()));
+
+			Assert.assertThat(task.call(), is(true));
+		}
+		finally {
+			fileManager.close();
+		}
+	}
+
+	/**
+	 * Reads the index written to the output directory
+	 * @return the lines of the index
+	 */
+	private List<String> readIndex() throws IOException {
+		return (List<String>) FileUtils.readLines(new File(outputDir, CalculationManager.INDEX_RESOURCE), "UTF-8");
+	}
+}
@@ -18,9 +18,23 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.test.TestCalculation;
+import org.openmrs.module.kenyacore.test.TestFlagCalculation;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.*;
+
 /**
  * Tests for {@link org.openmrs.module.kenyacore.calculation.CalculationManager}
  */
@@ -44,4 +58,170 @@ public class CalculationManagerTest extends BaseModuleContextSensitiveTest {
 	public void getAlertCalculations_shouldReturnAllAlertCalculations() {
 		Assert.assertNotNull(calculationManager.getFlagCalculations());
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @see CalculationManager#getFlagCalculations()
+	 */
+	@Test
+	public void getFlagCalculations_shouldShareInstancesOfStatelessFlagsUntilRefreshed() {
+		PatientFlagCalculation flag = getFlag(calculationManager.getFlagCalculations(), TestFlagCalculation.class);
+		Assert.assertThat(flag, notNullValue());
+		Assert.assertThat(getFlag(calculationManager.getFlagCalculations(), TestFlagCalculation.class), sameInstance(flag));
+
+		calculationManager.refresh();
+		Assert.assertThat(getFlag(calculationManager.getFlagCalculations(), TestFlagCalculation.class), not(sameInstance(flag)));
+	}
+
+	/**
+	 * @see CalculationManager#getFlagCalculations()
+	 */
+	@Test
+	public void getFlagCalculations_shouldCreateNewInstancesOfFlagsWithState() {
+		CalculationManager indexedManager = new CalculationManager() {
+			@Override
+			protected Set<String> readIndex() {
+				return new HashSet<String>(Arrays.asList(TestFlagCalculation.class.getName(), StatefulFlagCalculation.class.getName()));
+			}
+
+			@Override
+			protected Set<String> getUnindexedPackages() {
+				return Collections.emptySet();
+			}
+		};
+		indexedManager.refresh();
+
+		List<PatientFlagCalculation> flags = indexedManager.getFlagCalculations();
+		Assert.assertThat(flags, hasSize(2));
+
+		PatientFlagCalculation stateful = getFlag(flags, StatefulFlagCalculation.class);
+		Assert.assertThat(stateful, notNullValue());
+		Assert.assertThat(getFlag(indexedManager.getFlagCalculations(), StatefulFlagCalculation.class), not(sameInstance(stateful)));
+	}
+
+	/**
+	 * @see CalculationManager#getFlagCalculations()
+	 */
+	@Test(expected = UnsupportedOperationException.class)
+	public void getFlagCalculations_shouldReturnUnmodifiableList() {
+		calculationManager.getFlagCalculations().clear();
+	}
+
+	/**
+	 * @see CalculationManager#refresh()
+	 */
+	@Test
+	public void refresh_shouldScanClasspathIfThereIsNoIndex() {
+		Assert.assertThat(calculationManager.readIndex(), is(nullValue()));
+		Assert.assertThat(calculationManager.getAllCalculationClasses(), hasItem(TestCalculation.class));
+	}
+
+	/**
+	 * @see CalculationManager#refresh()
+	 */
+	@Test
+	public void refresh_shouldOnlyRegisterIndexedCalculationsIfThereIsAnIndex() {
+		CalculationManager indexedManager = new CalculationManager() {
+			@Override
+			protected Set<String> readIndex() {
+				return new HashSet<String>(Collections.singleton(TestCalculation.class.getName()));
+			}
+
+			@Override
+			protected Set<String> getUnindexedPackages() {
+				return Collections.emptySet();
+			}
+		};
+		indexedManager.refresh();
+
+		Assert.assertThat(indexedManager.getAllCalculationClasses(), contains((Object) TestCalculation.class));
+		Assert.assertThat(indexedManager.getFlagCalculations(), hasSize(0));
+	}
+
+	/**
+	 * @see CalculationManager#refresh()
+	 */
+	@Test
+	public void refresh_shouldScanModulesWithoutAnIndex() {
+		CalculationManager partlyIndexedManager = new CalculationManager() {
+			@Override
+			protected Set<String> readIndex() {
+				return new HashSet<String>(Collections.singleton(TestCalculation.class.getName()));
+			}
+
+			@Override
+			protected Set<String> getUnindexedPackages() {
+				return Collections.singleton("org.openmrs.module.kenyacore.test");
+			}
+		};
+		partlyIndexedManager.refresh();
+
+		Assert.assertThat(partlyIndexedManager.getAllCalculationClasses(), hasItem(TestCalculation.class));
+		Assert.assertThat(partlyIndexedManager.getAllCalculationClasses(), hasItem(TestFlagCalculation.class));
+		Assert.assertThat(partlyIndexedManager.getFlagCalculations(), hasSize(1));
+	}
+
+	/**
+	 * @see CalculationManager#evaluateFlags(java.util.Collection)
+	 */
+	@Test
+	public void evaluateFlags_shouldReturnMessagesOfSetFlagsForEachPatient() {
+		Map<Integer, List<String>> flags = calculationManager.evaluateFlags(Arrays.asList(2, 7));
+
+		Assert.assertThat(flags.keySet(), containsInAnyOrder(2, 7));
+		Assert.assertThat(flags.get(7), hasItem("Test flag"));
+		Assert.assertThat(calculationManager.evaluateFlags(Collections.<Integer>emptyList()).size(), is(0));
+	}
+
+	/**
+	 * Gets the instance of a flag calculation class from a list of flag calculations
+	 * @param flags the flag calculations
+	 * @param calculationClass the flag calculation class
+	 * @return the instance or null if list doesn't contain one
+	 */
+	private PatientFlagCalculation getFlag(List<PatientFlagCalculation> flags, Class<? extends PatientFlagCalculation> calculationClass) {
+		for (PatientFlagCalculation flag : flags) {
+			if (flag.getClass().equals(calculationClass)) {
+				return flag;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Flag calculation with state, which is set for nobody
+	 */
+	public static class StatefulFlagCalculation extends AbstractPatientCalculation implements PatientFlagCalculation {
+
+		private int evaluations;
+
+		/**
+		 * @see PatientFlagCalculation#getFlagMessage()
+		 */
+		@Override
+		public String getFlagMessage() {
+			return "Stateful flag";
+		}
+
+		/**
+		 * @see org.openmrs.calculation.patient.PatientCalculation#evaluate(java.util.Collection, java.util.Map, org.openmrs.calculation.patient.PatientCalculationContext)
+		 */
+		@Override
+		public CalculationResultMap evaluate(Collection<Integer> cohort, Map<String, Object> parameterValues, PatientCalculationContext context) {
+			evaluations++;
+
+			CalculationResultMap ret = new CalculationResultMap();
+			for (int ptId : cohort) {
+				ret.put(ptId, new BooleanResult(false, this, context));
+			}
+			return ret;
+		}
+
+		/**
+		 * Gets the number of times this instance has been evaluated
+		 * @return the number of evaluations
+		 */
+		public int getEvaluations() {
+			return evaluations;
+		}
+	}
+}
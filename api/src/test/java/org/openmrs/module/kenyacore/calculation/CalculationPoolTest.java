@@ -0,0 +1,66 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.calculation.patient.PatientCalculation;
+import org.openmrs.module.kenyacore.test.TestCalculation;
+import org.openmrs.module.kenyacore.test.TestFlagCalculation;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link CalculationPool}
+ */
+public class CalculationPoolTest {
+
+	/**
+	 * @see CalculationPool#getInstance(Class, String)
+	 */
+	@Test
+	public void getInstance_shouldShareInstancesOfStatelessCalculations() {
+		PatientCalculation calc1 = CalculationPool.getInstance(TestFlagCalculation.class, null);
+		PatientCalculation calc2 = CalculationPool.getInstance(TestFlagCalculation.class, null);
+		PatientCalculation calc3 = CalculationPool.getInstance(TestFlagCalculation.class, "config");
+
+		Assert.assertThat(calc1, instanceOf(TestFlagCalculation.class));
+		Assert.assertThat(calc2, sameInstance(calc1));
+		Assert.assertThat(calc3, not(sameInstance(calc1)));
+	}
+
+	/**
+	 * @see CalculationPool#getInstance(Class, String)
+	 */
+	@Test
+	public void getInstance_shouldCreateNewInstancesOfOtherCalculations() {
+		PatientCalculation calc1 = CalculationPool.getInstance(TestCalculation.class, null);
+		PatientCalculation calc2 = CalculationPool.getInstance(TestCalculation.class, null);
+
+		Assert.assertThat(calc1, instanceOf(TestCalculation.class));
+		Assert.assertThat(calc2, not(sameInstance(calc1)));
+	}
+
+	/**
+	 * @see CalculationPool#clear()
+	 */
+	@Test
+	public void clear_shouldRemovePooledInstances() {
+		PatientCalculation calc1 = CalculationPool.getInstance(TestFlagCalculation.class, null);
+		CalculationPool.clear();
+
+		Assert.assertThat(CalculationPool.getInstance(TestFlagCalculation.class, null), not(sameInstance(calc1)));
+	}
+}
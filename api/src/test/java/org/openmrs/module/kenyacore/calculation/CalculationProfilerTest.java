@@ -0,0 +1,163 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link CalculationProfiler}
+ */
+public class CalculationProfilerTest {
+
+	private CalculationProfiler profiler = CalculationProfiler.getInstance();
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() {
+		profiler.reset();
+		profiler.setEnabled(true);
+	}
+
+	/**
+	 * Cleanup after each test
+	 */
+	@After
+	public void cleanup() {
+		profiler.setEnabled(false);
+		profiler.setCapacity(1000);
+		profiler.reset();
+	}
+
+	/**
+	 * @see CalculationProfiler#start(String, String, java.util.Collection)
+	 */
+	@Test
+	public void start_shouldReturnNullIfDisabled() {
+		profiler.setEnabled(false);
+
+		CalculationProfiler.Record record = CalculationProfiler.start("calculation", "test", Arrays.asList(1, 2));
+		Assert.assertThat(record, is(nullValue()));
+
+		CalculationProfiler.stop(record, null);
+		Assert.assertThat(profiler.getRecent(), hasSize(0));
+	}
+
+	/**
+	 * @see CalculationProfiler#stop(org.openmrs.module.kenyacore.calculation.CalculationProfiler.Record, java.util.Map)
+	 */
+	@Test
+	public void stop_shouldRecordNestedEvaluationsAsCallTree() {
+		CalculationProfiler.Record parent = CalculationProfiler.start("calculation", "parent", Arrays.asList(1, 2, 3));
+		CalculationProfiler.Record child = CalculationProfiler.start("data definition", "child", Arrays.asList(1, 2, 3));
+		CalculationProfiler.cacheAccess(true);
+		CalculationProfiler.cacheAccess(false);
+		CalculationProfiler.stop(child, Collections.singletonMap(1, "x"));
+		CalculationProfiler.stop(parent, null);
+
+		List<CalculationProfiler.Record> recent = profiler.getRecent();
+		Assert.assertThat(recent, contains(parent));
+		Assert.assertThat(parent.getChildren(), contains(child));
+		Assert.assertThat(parent.getCohortSize(), is(3));
+		Assert.assertThat(child.getResultCount(), is(1));
+		Assert.assertThat(child.getCacheHits(), is(1));
+		Assert.assertThat(child.getCacheMisses(), is(1));
+		Assert.assertThat(profiler.getCacheHits(), is(1L));
+
+		Assert.assertThat(profiler.getStatistics().get("calculation: parent").getCount(), is(1L));
+		Assert.assertThat(profiler.getStatistics().get("data definition: child").getTotalCohortSize(), is(3L));
+		Assert.assertThat(profiler.getTopByTotalTime(10).length, is(2));
+		Assert.assertThat(profiler.getRecentCallTrees(10)[0], containsString("  data definition: child"));
+	}
+
+	/**
+	 * @see CalculationProfiler#stop(org.openmrs.module.kenyacore.calculation.CalculationProfiler.Record, java.util.Map)
+	 */
+	@Test
+	public void stop_shouldPopRecordIfDisabledDuringEvaluation() {
+		CalculationProfiler.Record parent = CalculationProfiler.start("calculation", "parent", null);
+		profiler.setEnabled(false);
+		CalculationProfiler.stop(parent, null);
+
+		profiler.setEnabled(true);
+		CalculationProfiler.Record next = CalculationProfiler.start("calculation", "next", null);
+		CalculationProfiler.stop(next, null);
+
+		// Next evaluation should be top-level rather than a child of the disabled one
+		Assert.assertThat(profiler.getRecent(), contains(next));
+		Assert.assertThat(parent.getChildren(), hasSize(0));
+	}
+
+	/**
+	 * @see CalculationProfiler.Statistics#getTotalNanos()
+	 */
+	@Test
+	public void statistics_shouldAccumulateNanoseconds() {
+		long total = 0;
+		for (int i = 0; i < 10; i++) {
+			CalculationProfiler.Record record = CalculationProfiler.start("calculation", "quick", null);
+			CalculationProfiler.stop(record, null);
+			total += record.getNanos();
+		}
+
+		CalculationProfiler.Statistics stats = profiler.getStatistics().get("calculation: quick");
+		Assert.assertThat(stats.getTotalNanos(), is(total));
+		Assert.assertThat(stats.getTotalNanos(), greaterThan(0L));
+		Assert.assertThat(stats.getTotalTime(), is(total / 1000000));
+	}
+
+	/**
+	 * @see CalculationProfiler#setCapacity(int)
+	 */
+	@Test
+	public void setCapacity_shouldLimitRecentEvaluations() {
+		profiler.setCapacity(2);
+
+		for (int i = 0; i < 3; i++) {
+			CalculationProfiler.stop(CalculationProfiler.start("calculation", "test" + i, null), null);
+		}
+
+		List<CalculationProfiler.Record> recent = profiler.getRecent();
+		Assert.assertThat(recent, hasSize(2));
+		Assert.assertThat(recent.get(0).getName(), is("test2"));
+		Assert.assertThat(recent.get(1).getName(), is("test1"));
+	}
+
+	/**
+	 * @see CalculationProfiler#register()
+	 */
+	@Test
+	public void register_shouldRegisterMBean() throws Exception {
+		ObjectName name = new ObjectName(CalculationProfiler.OBJECT_NAME);
+
+		CalculationProfiler.register();
+		Assert.assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(name), is(true));
+
+		CalculationProfiler.unregister();
+		Assert.assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(name), is(false));
+	}
+}
@@ -0,0 +1,63 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.reporting.common.TimeQualifier;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link CalculationResultCache}
+ */
+public class CalculationResultCacheTest {
+
+	/**
+	 * @see CalculationResultCache#get(java.util.List)
+	 * @see CalculationResultCache#put(java.util.List, org.openmrs.calculation.result.CalculationResultMap)
+	 */
+	@Test
+	public void getAndPut_shouldCacheResultMapsAndCountHitsAndMisses() {
+		CalculationResultCache cache = new CalculationResultCache();
+
+		List<Object> key1 = CalculationResultCache.key("test", null, TimeQualifier.LAST, null, null, Arrays.asList(1, 2));
+		List<Object> key2 = CalculationResultCache.key("test", null, TimeQualifier.LAST, null, null, Arrays.asList(2, 1));
+		List<Object> key3 = CalculationResultCache.key("test", null, TimeQualifier.FIRST, null, null, Arrays.asList(1, 2));
+
+		Assert.assertThat(cache.get(key1), is(nullValue()));
+
+		CalculationResultMap results = new CalculationResultMap();
+		results.put(1, new BooleanResult(true, null));
+		cache.put(key1, results);
+
+		// Key cohort is order-independent
+		CalculationResultMap cached = cache.get(key2);
+		Assert.assertThat(cached.keySet(), contains(1));
+		Assert.assertThat(cache.get(key3), is(nullValue()));
+
+		// Modifying a returned map shouldn't modify the cache
+		cached.put(2, null);
+		Assert.assertThat(cache.get(key1).keySet(), contains(1));
+
+		Assert.assertThat(cache.size(), is(1));
+		Assert.assertThat(cache.getHits(), is(2));
+		Assert.assertThat(cache.getMisses(), is(2));
+	}
+}
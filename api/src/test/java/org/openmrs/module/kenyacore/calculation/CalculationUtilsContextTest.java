@@ -0,0 +1,101 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.patient.PatientCalculationService;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for the methods of {@link CalculationUtils} which require a calculation context
+ */
+public class CalculationUtilsContextTest extends BaseModuleContextSensitiveTest {
+
+	private PatientCalculationContext calcContext;
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() {
+		calcContext = Context.getService(PatientCalculationService.class).createCalculationContext();
+		calcContext.setNow(TestUtils.date(2012, 6, 1));
+	}
+
+	/**
+	 * @see CalculationUtils#ensureReportingContext(org.openmrs.calculation.patient.PatientCalculationContext, java.util.Collection, java.util.Map)
+	 */
+	@Test
+	public void ensureReportingContext_shouldReuseContextForSameCohortAndParameters() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("test", 123);
+
+		EvaluationContext context1 = CalculationUtils.ensureReportingContext(calcContext, Arrays.asList(6, 7), params);
+		EvaluationContext context2 = CalculationUtils.ensureReportingContext(calcContext, Arrays.asList(7, 6), params);
+		EvaluationContext context3 = CalculationUtils.ensureReportingContext(calcContext, Arrays.asList(6, 7, 8), params);
+		EvaluationContext context4 = CalculationUtils.ensureReportingContext(calcContext, Arrays.asList(6, 7), null);
+
+		Assert.assertThat(context1.getEvaluationDate(), is(TestUtils.date(2012, 6, 1)));
+		Assert.assertThat(context1.getBaseCohort().getMemberIds(), containsInAnyOrder(6, 7));
+		Assert.assertThat((Integer) context1.getParameterValue("test"), is(123));
+		Assert.assertThat(context2, sameInstance(context1));
+		Assert.assertThat(context3, not(sameInstance(context1)));
+		Assert.assertThat(context4, not(sameInstance(context1)));
+	}
+
+	/**
+	 * @see CalculationUtils#ensureReportingContext(org.openmrs.calculation.patient.PatientCalculationContext, java.util.Collection, java.util.Map)
+	 */
+	@Test
+	public void ensureReportingContext_shouldTreatNoParametersAsEmptyParameters() {
+		EvaluationContext context1 = CalculationUtils.ensureReportingContext(calcContext, Arrays.asList(6, 7), null);
+		EvaluationContext context2 = CalculationUtils.ensureReportingContext(calcContext, Arrays.asList(6, 7), new HashMap<String, Object>());
+
+		Assert.assertThat(context2, sameInstance(context1));
+	}
+
+	/**
+	 * @see CalculationUtils#ensureReportingContext(org.openmrs.calculation.patient.PatientCalculationContext, java.util.Collection, java.util.Map)
+	 */
+	@Test
+	public void ensureReportingContext_shouldNotBeAffectedByLaterChangesToParameters() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("test", 123);
+
+		EvaluationContext context1 = CalculationUtils.ensureReportingContext(calcContext, Arrays.asList(6, 7), params);
+		params.put("test", 456);
+		EvaluationContext context2 = CalculationUtils.ensureReportingContext(calcContext, Arrays.asList(6, 7), params);
+
+		params.put("test", 123);
+		EvaluationContext context3 = CalculationUtils.ensureReportingContext(calcContext, Arrays.asList(6, 7), params);
+
+		Assert.assertThat((Integer) context1.getParameterValue("test"), is(123));
+		Assert.assertThat((Integer) context2.getParameterValue("test"), is(456));
+		Assert.assertThat(context2, not(sameInstance(context1)));
+		Assert.assertThat(context3, sameInstance(context1));
+	}
+}
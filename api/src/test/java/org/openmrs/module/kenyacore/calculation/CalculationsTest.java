@@ -21,6 +21,7 @@ import org.openmrs.Concept;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
 import org.openmrs.Obs;
+import org.openmrs.PatientProgram;
 import org.openmrs.Program;
 import org.openmrs.api.context.Context;
 import org.openmrs.calculation.patient.PatientCalculationContext;
@@ -33,8 +34,11 @@ import org.openmrs.module.metadatadeploy.MetadataUtils;
 import org.openmrs.module.reporting.common.Age;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.Matchers.*;
 
@@ -81,6 +85,55 @@ public class CalculationsTest extends BaseModuleContextSensitiveTest {
 		Assert.assertThat(((Boolean) results.get(8).getValue()), is(true));
 	}
 
+	/**
+	 * @see Calculations#aliveBitmap(java.util.Collection, java.util.Date)
+	 */
+	@Test
+	public void aliveBitmap_shouldQueryLargeCohortsInBatches() {
+		TestUtils.getPatient(6).setDead(true);
+		TestUtils.getPatient(6).setDeathDate(TestUtils.date(2012, 1, 1));
+
+		List<Integer> largeCohort = new ArrayList<Integer>();
+		for (int ptId = 1; ptId <= Calculations.QUERY_BATCH_SIZE * 2 + 1; ptId++) {
+			largeCohort.add(ptId);
+		}
+
+		PatientBitmap alive = Calculations.aliveBitmap(largeCohort, context.getNow());
+
+		Assert.assertThat(alive, hasItems(2, 7, 8));
+		Assert.assertThat(alive, not(hasItem(6)));
+		Assert.assertThat(alive, not(hasItem(Calculations.QUERY_BATCH_SIZE * 2 + 1)));
+	}
+
+	/**
+	 * @see Calculations#aliveBitmap(java.util.Collection, java.util.Date)
+	 */
+	@Test
+	public void aliveBitmap_shouldExcludeVoidedPersons() {
+		TestUtils.getPatient(8).setPersonVoided(true);
+
+		PatientBitmap alive = Calculations.aliveBitmap(cohort, context.getNow());
+
+		Assert.assertThat(alive, hasItems(2, 7));
+		Assert.assertThat(alive, not(hasItem(8)));
+	}
+
+	/**
+	 * @see Calculations#aliveIds(java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void aliveIds_shouldReuseCachedCohort() {
+		CalculationResultCache cache = CalculationResultCache.forContext(context);
+
+		PatientBitmap alive1 = Calculations.aliveIds(cohort, context);
+		alive1.remove(2);
+		PatientBitmap alive2 = Calculations.aliveIds(cohort, context);
+
+		Assert.assertThat(alive2, hasItems(2, 7, 8));
+		Assert.assertThat(cache.getHits(), is(1));
+		Assert.assertThat(cache.getMisses(), is(1));
+	}
+
 	/**
 	 * @see Calculations#genders(java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
 	 */
@@ -157,6 +210,22 @@ public class CalculationsTest extends BaseModuleContextSensitiveTest {
 		Assert.assertThat(((Obs) resultMap.get(7).getValue()).getId(), is(16));
 	}
 
+	/**
+	 * @see Calculations#lastObs(org.openmrs.Concept, java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void lastObs_shouldReuseCachedResultsForSameContext() throws Exception {
+		Concept weight = MetadataUtils.existing(Concept.class, StandardTestData._Concept.WEIGHT_KG);
+		CalculationResultMap resultMap1 = Calculations.lastObs(weight, cohort, context);
+		CalculationResultMap resultMap2 = Calculations.lastObs(weight, cohort, context);
+
+		Assert.assertThat(resultMap2, is(resultMap1));
+
+		CalculationResultCache cache = CalculationResultCache.forContext(context);
+		Assert.assertThat(cache.getMisses(), is(1));
+		Assert.assertThat(cache.getHits(), is(1));
+	}
+
 	/**
 	 * @see Calculations#lastObsOnOrBefore(org.openmrs.Concept, java.util.Date, java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
 	 */
@@ -253,4 +322,26 @@ public class CalculationsTest extends BaseModuleContextSensitiveTest {
 		Assert.assertThat(((ListResult) resultMap.get(6)).getValues(), hasSize(0));
 		Assert.assertThat(((ListResult) resultMap.get(7)).getValues(), hasSize(0));
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @see Calculations#activeEnrollmentOn(org.openmrs.Program, java.util.List, java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void activeEnrollmentOn_shouldReturnResultsForEachDate() throws Exception {
+		Program hivProgram = MetadataUtils.existing(Program.class, StandardTestData._Program.HIV);
+		PatientProgram enrollment6 = TestUtils.enrollInProgram(TestUtils.getPatient(6), hivProgram, TestUtils.date(2012, 2, 1), TestUtils.date(2012, 4, 1));
+
+		Date jan = TestUtils.date(2012, 1, 31), feb = TestUtils.date(2012, 2, 29), mar = TestUtils.date(2012, 3, 31), apr = TestUtils.date(2012, 4, 30);
+		Map<Date, CalculationResultMap> results = Calculations.activeEnrollmentOn(hivProgram, Arrays.asList(jan, feb, mar, apr), cohort, context);
+
+		Assert.assertThat(results.keySet(), contains(jan, feb, mar, apr));
+		Assert.assertThat(results.get(jan).get(6), nullValue());
+		Assert.assertThat((PatientProgram) results.get(feb).get(6).getValue(), is(enrollment6));
+		Assert.assertThat((PatientProgram) results.get(mar).get(6).getValue(), is(enrollment6));
+		Assert.assertThat(results.get(apr).get(6), nullValue());
+		Assert.assertThat(results.get(apr).get(7), nullValue());
+
+		// Single date variant should agree
+		Assert.assertThat((PatientProgram) Calculations.activeEnrollmentOn(hivProgram, feb, cohort, context).get(6).getValue(), is(enrollment6));
+	}
+}
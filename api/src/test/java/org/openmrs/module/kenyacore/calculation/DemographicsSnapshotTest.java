@@ -0,0 +1,195 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.Person;
+import org.openmrs.api.PersonService;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.module.reporting.common.Age;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link DemographicsSnapshot}
+ */
+public class DemographicsSnapshotTest extends BaseModuleContextSensitiveTest {
+
+	private List<Integer> cohort = Arrays.asList(2, 6, 7, 8, 999);
+
+	private DemographicsSnapshot snapshot;
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() {
+		snapshot = DemographicsSnapshot.getInstance();
+		snapshot.clear();
+	}
+
+	/**
+	 * @see DemographicsSnapshot#ages(java.util.Collection, java.util.Date)
+	 */
+	@Test
+	public void ages_shouldReturnAgesOnDate() {
+		CalculationResultMap results = snapshot.ages(cohort, TestUtils.date(2012, 6, 1));
+
+		Age patient6Age = new Age(TestUtils.date(2007, 5, 27), TestUtils.date(2012, 6, 1));
+
+		Assert.assertThat(((Age) results.get(6).getValue()).getFullYears(), is(patient6Age.getFullYears()));
+		Assert.assertThat(((Age) results.get(6).getValue()).getFullMonths(), is(patient6Age.getFullMonths()));
+		Assert.assertThat(results.keySet(), containsInAnyOrder(2, 6, 7, 8, 999));
+		Assert.assertThat(results.get(999), nullValue());
+	}
+
+	/**
+	 * @see DemographicsSnapshot#genders(java.util.Collection)
+	 */
+	@Test
+	public void genders_shouldReturnGendersWithResultForEachPatient() {
+		CalculationResultMap results = snapshot.genders(cohort);
+
+		Assert.assertThat(((String) results.get(6).getValue()), is("M"));
+		Assert.assertThat(((String) results.get(7).getValue()), is("F"));
+		Assert.assertThat(((String) results.get(8).getValue()), is("F"));
+		Assert.assertThat(results.get(7), not(sameInstance(results.get(8))));
+		Assert.assertThat(results.get(999), nullValue());
+	}
+
+	/**
+	 * @see DemographicsSnapshot#withGender(java.util.Collection, String)
+	 */
+	@Test
+	public void withGender_shouldReturnPatientsWithGender() {
+		Assert.assertThat(snapshot.withGender(cohort, "F"), contains(7, 8));
+		Assert.assertThat(snapshot.withGender(cohort, "M"), contains(2, 6));
+	}
+
+	/**
+	 * @see DemographicsSnapshot#refresh(org.openmrs.Person)
+	 */
+	@Test
+	public void refresh_shouldUpdateSnapshotWithoutReloading() {
+		Assert.assertThat(snapshot.withGender(cohort, "F"), contains(7, 8));
+
+		Patient patient6 = TestUtils.getPatient(6);
+		patient6.setGender("F");
+		patient6.setBirthdate(null);
+		snapshot.refresh(patient6);
+
+		Assert.assertThat(snapshot.withGender(cohort, "F"), contains(6, 7, 8));
+		Assert.assertThat(snapshot.ages(cohort, TestUtils.date(2012, 6, 1)).get(6), nullValue());
+	}
+
+	/**
+	 * @see DemographicsSnapshot#remove(Integer)
+	 */
+	@Test
+	public void remove_shouldExcludePerson() {
+		snapshot.remove(7);
+
+		Assert.assertThat(snapshot.withGender(cohort, "F"), contains(8));
+		Assert.assertThat(snapshot.genders(cohort).get(7), nullValue());
+	}
+
+	/**
+	 * @see DemographicsSnapshot#update(java.util.Map)
+	 */
+	@Test
+	public void update_shouldMergeUpdatesIntoColumnsWhenLimitExceeded() {
+		List<Integer> unknown = new ArrayList<Integer>();
+		for (int ptId = 100000; ptId <= 100000 + DemographicsSnapshot.MAX_UPDATES; ptId++) {
+			unknown.add(ptId);
+		}
+
+		Assert.assertThat(snapshot.withGender(unknown, "F"), hasSize(0));
+		Assert.assertThat(snapshot.getUpdateCount(), is(0));
+
+		// Merged persons, including those which don't exist, shouldn't be fetched again
+		snapshot.withGender(unknown, "F");
+		Assert.assertThat(snapshot.getUpdateCount(), is(0));
+
+		Assert.assertThat(snapshot.withGender(cohort, "F"), contains(7, 8));
+	}
+
+	/**
+	 * @see DemographicsSnapshot#applyFetched(java.util.Map, long)
+	 */
+	@Test
+	public void applyFetched_shouldNotOverwriteChangesMadeWhileFetching() {
+		final Person person6 = new Person(6);
+		person6.setGender("F");
+
+		// Loads no persons so all are fetched, and changes person #6 after the fetch query
+		DemographicsSnapshot racing = new DemographicsSnapshot() {
+			@Override
+			protected Columns load() {
+				return new Columns(0);
+			}
+
+			@Override
+			protected void applyFetched(Map<Integer, Entry> fetched, long fetchGeneration) {
+				refresh(person6);
+				super.applyFetched(fetched, fetchGeneration);
+			}
+		};
+
+		Assert.assertThat(racing.withGender(cohort, "F"), contains(6, 7, 8));
+		Assert.assertThat(racing.withGender(cohort, "M"), contains(2));
+	}
+
+	/**
+	 * @see DemographicsSnapshotAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)
+	 */
+	@Test
+	public void advice_shouldOnlyApplyChangesAfterCommit() throws Exception {
+		Assert.assertThat(snapshot.withGender(cohort, "F"), contains(7, 8));
+
+		Patient patient6 = TestUtils.getPatient(6);
+		patient6.setGender("F");
+		new DemographicsSnapshotAdvice().afterReturning(patient6, PersonService.class.getMethod("savePerson", Person.class), new Object[] { patient6 }, null);
+
+		Assert.assertThat(snapshot.withGender(cohort, "F"), contains(7, 8));
+
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			synchronization.afterCommit();
+		}
+
+		Assert.assertThat(snapshot.withGender(cohort, "F"), contains(6, 7, 8));
+	}
+
+	/**
+	 * @see DemographicsSnapshot#resetInstance()
+	 */
+	@Test
+	public void resetInstance_shouldReturnRegisteredComponentAgain() {
+		DemographicsSnapshot.resetInstance();
+
+		Assert.assertThat(DemographicsSnapshot.getInstance(), sameInstance(snapshot));
+	}
+}
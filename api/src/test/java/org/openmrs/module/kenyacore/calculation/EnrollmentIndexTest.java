@@ -0,0 +1,107 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.PatientProgram;
+import org.openmrs.Program;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.patient.PatientCalculationService;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.test.StandardTestData;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.module.metadatadeploy.MetadataUtils;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link EnrollmentIndex}
+ */
+public class EnrollmentIndexTest extends BaseModuleContextSensitiveTest {
+
+	private List<Integer> cohort = Arrays.asList(2, 6, 7, 8, 999);
+
+	private PatientCalculationContext context;
+
+	private Program hivProgram;
+
+	private PatientProgram enrollment6, enrollment7a, enrollment7b;
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() {
+		context = Context.getService(PatientCalculationService.class).createCalculationContext();
+		context.setNow(TestUtils.date(2012, 6, 1));
+
+		hivProgram = MetadataUtils.existing(Program.class, StandardTestData._Program.HIV);
+
+		enrollment6 = TestUtils.enrollInProgram(TestUtils.getPatient(6), hivProgram, TestUtils.date(2012, 1, 1));
+		enrollment7a = TestUtils.enrollInProgram(TestUtils.getPatient(7), hivProgram, TestUtils.date(2011, 1, 1), TestUtils.date(2011, 6, 1));
+		enrollment7b = TestUtils.enrollInProgram(TestUtils.getPatient(7), hivProgram, TestUtils.date(2012, 3, 1), TestUtils.date(2012, 5, 1));
+	}
+
+	/**
+	 * @see EnrollmentIndex#forProgram(org.openmrs.Program, java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void forProgram_shouldReuseIndexForSameProgramAndContext() {
+		EnrollmentIndex index1 = EnrollmentIndex.forProgram(hivProgram, Arrays.asList(6, 7), context);
+		EnrollmentIndex index2 = EnrollmentIndex.forProgram(hivProgram, cohort, context);
+
+		Assert.assertThat(index2, sameInstance(index1));
+	}
+
+	/**
+	 * @see EnrollmentIndex#activeOn(int, java.util.Date)
+	 */
+	@Test
+	public void activeOn_shouldTreatIntervalsAsEnrolledInclusiveCompletedExclusive() {
+		EnrollmentIndex index = EnrollmentIndex.forProgram(hivProgram, cohort, context);
+
+		Assert.assertThat(index.activeOn(6, TestUtils.date(2011, 12, 31)), nullValue());
+		Assert.assertThat(index.activeOn(6, TestUtils.date(2012, 1, 1)), is(enrollment6));
+		Assert.assertThat(index.activeOn(6, TestUtils.date(2020, 1, 1)), is(enrollment6));
+
+		Assert.assertThat(index.activeOn(7, TestUtils.date(2011, 1, 1)), is(enrollment7a));
+		Assert.assertThat(index.activeOn(7, TestUtils.date(2011, 6, 1)), nullValue());
+		Assert.assertThat(index.activeOn(7, TestUtils.date(2012, 4, 1)), is(enrollment7b));
+		Assert.assertThat(index.activeOn(7, TestUtils.date(2012, 5, 1)), nullValue());
+
+		Assert.assertThat(index.activeOn(8, TestUtils.date(2012, 1, 1)), nullValue());
+		Assert.assertThat(index.activeOn(999, TestUtils.date(2012, 1, 1)), nullValue());
+	}
+
+	/**
+	 * @see EnrollmentIndex#evaluate(java.util.Date, java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void evaluate_shouldReturnResultForEveryPatient() {
+		CalculationResultMap results = EnrollmentIndex.forProgram(hivProgram, cohort, context).evaluate(TestUtils.date(2012, 4, 1), cohort, context);
+
+		Assert.assertThat(results.keySet(), containsInAnyOrder(2, 6, 7, 8, 999));
+		Assert.assertThat((PatientProgram) results.get(6).getValue(), is(enrollment6));
+		Assert.assertThat((PatientProgram) results.get(7).getValue(), is(enrollment7b));
+		Assert.assertThat(results.get(8), nullValue());
+	}
+}
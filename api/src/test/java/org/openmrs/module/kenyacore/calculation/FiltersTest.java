@@ -86,4 +86,28 @@ public class FiltersTest extends BaseModuleContextSensitiveTest {
 
 		Assert.assertThat(Filters.inProgram(hiv, cohort, context), contains(2, 7));
 	}
+
+	/**
+	 * @see Filters#alive(PatientBitmap, org.openmrs.calculation.patient.PatientCalculationContext)
+	 * @see Filters#female(PatientBitmap, org.openmrs.calculation.patient.PatientCalculationContext)
+	 * @see Filters#inProgram(org.openmrs.Program, PatientBitmap, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void bitmapFilters() {
+		Program hiv = MetadataUtils.existing(Program.class, StandardTestData._Program.HIV);
+		TestUtils.enrollInProgram(TestUtils.getPatient(7), hiv, TestUtils.date(2012, 1, 1));
+
+		TestUtils.getPatient(8).setDead(true);
+		TestUtils.getPatient(8).setDeathDate(TestUtils.date(2012, 1, 1));
+
+		PatientBitmap all = PatientBitmap.of(cohort);
+		PatientBitmap alive = Filters.alive(all, context);
+		PatientBitmap female = Filters.female(all, context);
+		PatientBitmap inHiv = Filters.inProgram(hiv, all, context);
+
+		Assert.assertThat(alive, contains(2, 6, 7));
+		Assert.assertThat(female, contains(7, 8));
+		Assert.assertThat(inHiv, contains(2, 7));
+		Assert.assertThat(alive.and(female).and(inHiv), contains(7));
+	}
 }
\ No newline at end of file
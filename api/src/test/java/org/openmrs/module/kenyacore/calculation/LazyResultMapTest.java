@@ -0,0 +1,107 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.calculation.result.CalculationResult;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.calculation.result.SimpleResult;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link LazyResultMap}
+ */
+public class LazyResultMapTest {
+
+	/**
+	 * @see LazyResultMap#get(Object)
+	 */
+	@Test
+	public void get_shouldWrapValuesOnlyWhenAccessed() {
+		LazyResultMap map = createMap();
+
+		Assert.assertThat(map.size(), is(3));
+		Assert.assertThat(map.containsKey(3), is(true));
+		Assert.assertThat(map.getPendingCount(), is(2));
+
+		Assert.assertThat(map.get(1).getValue(), is((Object) "a"));
+		Assert.assertThat(map.get(2), sameInstance((CalculationResult) BooleanResult.TRUE));
+		Assert.assertThat(map.get(3), is(nullValue()));
+		Assert.assertThat(map.getPendingCount(), is(0));
+	}
+
+	/**
+	 * @see LazyResultMap#put(Integer, org.openmrs.calculation.result.CalculationResult)
+	 */
+	@Test
+	public void put_shouldReplacePendingValue() {
+		LazyResultMap map = createMap();
+		SimpleResult result = new SimpleResult("b", null);
+
+		Assert.assertThat(map.put(1, result).getValue(), is((Object) "a"));
+		Assert.assertThat(map.get(1), sameInstance((CalculationResult) result));
+		Assert.assertThat(map.getPendingCount(), is(1));
+	}
+
+	/**
+	 * @see LazyResultMap#entrySet()
+	 */
+	@Test
+	public void entrySet_shouldWrapAllValues() {
+		LazyResultMap map = createMap();
+
+		CalculationResultMap copy = new CalculationResultMap();
+		for (Map.Entry<Integer, CalculationResult> entry : map.entrySet()) {
+			copy.put(entry.getKey(), entry.getValue());
+		}
+
+		Assert.assertThat(map.getPendingCount(), is(0));
+		Assert.assertThat(copy.get(1).getValue(), is((Object) "a"));
+		Assert.assertThat(copy.get(2).getValue(), is((Object) Boolean.TRUE));
+		Assert.assertThat(copy.containsKey(3), is(true));
+	}
+
+	/**
+	 * @see LazyResultMap#copy()
+	 */
+	@Test
+	public void copy_shouldNotWrapPendingValues() {
+		LazyResultMap map = createMap();
+		map.get(1);
+
+		LazyResultMap copy = map.copy();
+		Assert.assertThat(copy.getPendingCount(), is(1));
+		Assert.assertThat(copy.get(1), sameInstance(map.get(1)));
+		Assert.assertThat(copy.get(2).getValue(), is((Object) Boolean.TRUE));
+		Assert.assertThat(map.getPendingCount(), is(1));
+
+		copy.remove(1);
+		Assert.assertThat(map.containsKey(1), is(true));
+	}
+
+	private static LazyResultMap createMap() {
+		Map<Integer, Object> data = new HashMap<Integer, Object>();
+		data.put(1, "a");
+		data.put(2, Boolean.TRUE);
+		data.put(4, "not in cohort");
+		return new LazyResultMap(data, Arrays.asList(1, 2, 3), null, null);
+	}
+}
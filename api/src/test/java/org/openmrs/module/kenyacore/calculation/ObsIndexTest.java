@@ -0,0 +1,107 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.patient.PatientCalculationService;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.calculation.result.ListResult;
+import org.openmrs.module.kenyacore.test.StandardTestData;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.module.metadatadeploy.MetadataUtils;
+import org.openmrs.module.reporting.common.TimeQualifier;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link ObsIndex}
+ */
+public class ObsIndexTest extends BaseModuleContextSensitiveTest {
+
+	private List<Integer> cohort = Arrays.asList(2, 6, 7, 8, 999);
+
+	private PatientCalculationContext context;
+
+	private Concept weight;
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() {
+		context = Context.getService(PatientCalculationService.class).createCalculationContext();
+		context.setNow(TestUtils.date(2012, 6, 1));
+
+		weight = MetadataUtils.existing(Concept.class, StandardTestData._Concept.WEIGHT_KG);
+	}
+
+	/**
+	 * @see ObsIndex#forConcept(org.openmrs.Concept, java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void forConcept_shouldReuseIndexForSameConceptAndContext() {
+		ObsIndex index1 = ObsIndex.forConcept(weight, Arrays.asList(6, 7), context);
+		ObsIndex index2 = ObsIndex.forConcept(weight, cohort, context);
+
+		Assert.assertThat(index2, sameInstance(index1));
+	}
+
+	/**
+	 * @see ObsIndex#first(int, java.util.Date, java.util.Date)
+	 * @see ObsIndex#last(int, java.util.Date, java.util.Date)
+	 * @see ObsIndex#all(int, java.util.Date, java.util.Date)
+	 */
+	@Test
+	public void firstLastAndAll_shouldDeriveObsFromIndex() {
+		ObsIndex index = ObsIndex.forConcept(weight, cohort, context);
+
+		Assert.assertThat(index.first(6, null, null), nullValue());
+		Assert.assertThat(index.all(6, null, null), hasSize(0));
+
+		Assert.assertThat(index.first(7, null, null).getId(), is(7));
+		Assert.assertThat(index.last(7, null, null).getId(), is(16));
+		Assert.assertThat(index.all(7, null, null), hasSize(3));
+
+		Assert.assertThat(index.first(7, TestUtils.date(2008, 8, 15), null).getId(), is(10));
+		Assert.assertThat(index.last(7, null, TestUtils.date(2008, 8, 15)).getId(), is(10));
+	}
+
+	/**
+	 * @see ObsIndex#evaluate(org.openmrs.module.reporting.common.TimeQualifier, java.util.Date, java.util.Date, java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void evaluate_shouldReturnResultsForAllPatients() {
+		ObsIndex index = ObsIndex.forConcept(weight, cohort, context);
+
+		CalculationResultMap lastObss = index.evaluate(TimeQualifier.LAST, null, null, cohort, context);
+		Assert.assertThat(lastObss.keySet(), containsInAnyOrder(2, 6, 7, 8, 999));
+		Assert.assertThat(lastObss.get(6), nullValue());
+		Assert.assertThat(((Obs) lastObss.get(7).getValue()).getId(), is(16));
+
+		CalculationResultMap allObss = index.evaluate(TimeQualifier.ANY, null, null, cohort, context);
+		Assert.assertThat(((ListResult) allObss.get(6)).getValues(), hasSize(0));
+		Assert.assertThat(((ListResult) allObss.get(7)).getValues(), hasSize(3));
+	}
+}
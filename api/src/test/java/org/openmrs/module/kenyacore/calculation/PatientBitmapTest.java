@@ -0,0 +1,138 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Cohort;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link PatientBitmap}
+ */
+public class PatientBitmapTest {
+
+	/**
+	 * @see PatientBitmap#add(int)
+	 * @see PatientBitmap#contains(int)
+	 */
+	@Test
+	public void addAndContains() {
+		PatientBitmap bitmap = new PatientBitmap();
+		Assert.assertThat(bitmap, empty());
+
+		Assert.assertThat(bitmap.add(300000), is(true));
+		Assert.assertThat(bitmap.add(5), is(true));
+		Assert.assertThat(bitmap.add(5), is(false));
+		Assert.assertThat(bitmap.add(65536), is(true));
+
+		Assert.assertThat(bitmap.size(), is(3));
+		Assert.assertThat(bitmap.contains(65536), is(true));
+		Assert.assertThat(bitmap.contains(65535), is(false));
+		Assert.assertThat(bitmap, contains(5, 65536, 300000));
+	}
+
+	/**
+	 * @see PatientBitmap#and(PatientBitmap)
+	 * @see PatientBitmap#or(PatientBitmap)
+	 * @see PatientBitmap#andNot(PatientBitmap)
+	 */
+	@Test
+	public void setOperations() {
+		PatientBitmap bitmap1 = PatientBitmap.of(1, 3, 5, 70000, 200000);
+		PatientBitmap bitmap2 = PatientBitmap.of(3, 4, 5, 70000, 140000);
+
+		PatientBitmap and = bitmap1.and(bitmap2);
+		Assert.assertThat(and, contains(3, 5, 70000));
+		Assert.assertThat(and.size(), is(3));
+
+		PatientBitmap or = bitmap1.or(bitmap2);
+		Assert.assertThat(or, contains(1, 3, 4, 5, 70000, 140000, 200000));
+		Assert.assertThat(or.size(), is(7));
+
+		PatientBitmap andNot = bitmap1.andNot(bitmap2);
+		Assert.assertThat(andNot, contains(1, 200000));
+		Assert.assertThat(andNot.size(), is(2));
+
+		// Operands are not modified
+		Assert.assertThat(bitmap1, contains(1, 3, 5, 70000, 200000));
+	}
+
+	/**
+	 * @see PatientBitmap#of(org.openmrs.Cohort)
+	 * @see PatientBitmap#of(java.util.Collection)
+	 * @see PatientBitmap#toCohort()
+	 */
+	@Test
+	public void conversions() {
+		PatientBitmap bitmap = PatientBitmap.of(new Cohort(Arrays.asList(8, 6, 7)));
+
+		Assert.assertThat(bitmap, contains(6, 7, 8));
+		Assert.assertThat(bitmap.toCohort().getMemberIds(), containsInAnyOrder(6, 7, 8));
+		Assert.assertThat(PatientBitmap.of(Arrays.asList(2, 1, 2)), contains(1, 2));
+	}
+
+	/**
+	 * @see PatientBitmap#retainAll(java.util.Collection)
+	 * @see PatientBitmap#removeAll(java.util.Collection)
+	 * @see PatientBitmap#addAll(java.util.Collection)
+	 */
+	@Test
+	public void bulkModifications() {
+		PatientBitmap bitmap = PatientBitmap.of(1, 3, 5, 70000, 200000);
+
+		Assert.assertThat(bitmap.retainAll(PatientBitmap.of(3, 5, 70000, 140000)), is(true));
+		Assert.assertThat(bitmap, contains(3, 5, 70000));
+		Assert.assertThat(bitmap.retainAll(new HashSet<Integer>(Arrays.asList(3, 5, 70000))), is(false));
+
+		Assert.assertThat(bitmap.removeAll(Arrays.asList(5, 6)), is(true));
+		Assert.assertThat(bitmap, contains(3, 70000));
+		Assert.assertThat(bitmap.size(), is(2));
+
+		Assert.assertThat(bitmap.addAll(PatientBitmap.of(2, 3)), is(true));
+		Assert.assertThat(bitmap, contains(2, 3, 70000));
+
+		bitmap.clear();
+		Assert.assertThat(bitmap, empty());
+	}
+
+	/**
+	 * @see PatientBitmap#remove(int)
+	 */
+	@Test
+	public void remove() {
+		PatientBitmap bitmap = PatientBitmap.of(1, 3, 70000);
+
+		Assert.assertThat(bitmap.remove(70000), is(true));
+		Assert.assertThat(bitmap.remove(70000), is(false));
+		Assert.assertThat(bitmap.remove((Object) 3), is(true));
+		Assert.assertThat(bitmap, contains(1));
+
+		// Removing through the iterator
+		bitmap = PatientBitmap.of(1, 2, 3, 4);
+		for (Iterator<Integer> it = bitmap.iterator(); it.hasNext(); ) {
+			if (it.next() % 2 == 0) {
+				it.remove();
+			}
+		}
+		Assert.assertThat(bitmap, contains(1, 3));
+		Assert.assertThat(bitmap.size(), is(2));
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Obs;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.kenyacore.test.TestFlagCalculation;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link PatientFlagCache}
+ */
+public class PatientFlagCacheTest extends BaseModuleContextSensitiveTest {
+
+	@Autowired
+	private CalculationManager calculationManager;
+
+	@Autowired
+	private PatientFlagCache flagCache;
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() {
+		calculationManager.refresh();
+		flagCache.clear();
+	}
+
+	/**
+	 * @see PatientFlagCache#getFlags(Integer)
+	 */
+	@Test
+	public void getFlags_shouldEvaluateFlagsOnlyOnce() {
+		int evaluations = TestFlagCalculation.getEvaluations();
+
+		List<PatientFlagCalculation> flags = flagCache.getFlags(7);
+		Assert.assertThat(flags, hasItem(instanceOf(TestFlagCalculation.class)));
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations + 1));
+
+		flagCache.getFlags(7);
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations + 1));
+	}
+
+	/**
+	 * @see PatientFlagCache#invalidate(Integer, org.openmrs.Concept)
+	 */
+	@Test
+	public void invalidate_shouldOnlyInvalidateFlagsWhichDependOnConcept() {
+		flagCache.getFlags(7);
+		int evaluations = TestFlagCalculation.getEvaluations();
+
+		// CD4 count isn't a dependency of the test flag
+		flagCache.invalidate(7, Context.getConceptService().getConcept(5497));
+		flagCache.getFlags(7);
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations));
+
+		// Weight is a dependency of the test flag
+		flagCache.invalidate(7, Context.getConceptService().getConceptByUuid(TestFlagCalculation.WEIGHT_CONCEPT_UUID));
+		flagCache.getFlags(7);
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations + 1));
+	}
+
+	/**
+	 * @see PatientFlagCache#invalidate(Integer)
+	 */
+	@Test
+	public void invalidate_shouldInvalidateAllFlagsForPatient() {
+		flagCache.getFlags(7);
+		flagCache.getFlags(8);
+		int evaluations = TestFlagCalculation.getEvaluations();
+
+		flagCache.invalidate(7);
+		flagCache.getFlags(7);
+		flagCache.getFlags(8);
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations + 1));
+	}
+
+	/**
+	 * @see PatientFlagCache#isCached(Integer)
+	 */
+	@Test
+	public void isCached_shouldReturnTrueOnlyForRequestedPatients() {
+		Assert.assertThat(flagCache.isCached(7), is(false));
+
+		flagCache.getFlags(7);
+		Assert.assertThat(flagCache.isCached(7), is(true));
+		Assert.assertThat(flagCache.isCached(8), is(false));
+	}
+
+	/**
+	 * @see FlagInvalidationAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)
+	 */
+	@Test
+	public void advice_shouldOnlyInvalidateFlagsAfterCommit() throws Throwable {
+		flagCache.getFlags(7);
+		int evaluations = TestFlagCalculation.getEvaluations();
+
+		Obs obs = new Obs();
+		obs.setPerson(TestUtils.getPatient(7));
+		obs.setConcept(Context.getConceptService().getConceptByUuid(TestFlagCalculation.WEIGHT_CONCEPT_UUID));
+
+		new FlagInvalidationAdvice().afterReturning(obs, getClass().getMethod("saveObs", Obs.class), new Object[] { obs }, null);
+		flagCache.getFlags(7);
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations));
+
+		commit();
+		flagCache.getFlags(7);
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations + 1));
+	}
+
+	/**
+	 * @see FlagInvalidationAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)
+	 */
+	@Test
+	public void advice_shouldInvalidateAllFlagsWhenVisitIsSaved() throws Throwable {
+		flagCache.getFlags(7);
+		int evaluations = TestFlagCalculation.getEvaluations();
+
+		Visit visit = new Visit();
+		visit.setPatient(TestUtils.getPatient(7));
+
+		new FlagInvalidationAdvice().afterReturning(visit, getClass().getMethod("saveVisit", Visit.class), new Object[] { visit }, null);
+		commit();
+		flagCache.getFlags(7);
+		Assert.assertThat(TestFlagCalculation.getEvaluations(), is(evaluations + 1));
+	}
+
+	/**
+	 * Dummy service method used to test the advice
+	 * @param obs the obs
+	 */
+	public void saveObs(Obs obs) {
+	}
+
+	/**
+	 * Dummy service method used to test the advice
+	 * @param visit the visit
+	 */
+	public void saveVisit(Visit visit) {
+	}
+
+	/**
+	 * Runs the after commit callbacks registered with the test transaction, which is never committed
+	 */
+	private void commit() {
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			synchronization.afterCommit();
+		}
+	}
+}
@@ -0,0 +1,335 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openmrs.Obs;
+import org.openmrs.Relationship;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.patient.PatientCalculation;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.patient.PatientCalculationService;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.calculation.result.ObsResult;
+import org.openmrs.calculation.result.SimpleResult;
+import org.openmrs.module.kenyacore.report.cohort.definition.CalculationCohortDefinition;
+import org.openmrs.module.kenyacore.report.cohort.evaluator.CalculationCohortDefinitionEvaluator;
+import org.openmrs.module.kenyacore.test.ReportingTestUtils;
+import org.openmrs.module.kenyacore.test.TestEligibilityCalculation;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link PersistentResultCache}
+ */
+public class PersistentResultCacheTest extends BaseModuleContextSensitiveTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private List<Integer> cohort = Arrays.asList(2, 6, 7);
+
+	private Map<String, Object> params = Collections.<String, Object>singletonMap("test", 123);
+
+	private TestEligibilityCalculation calculation = new TestEligibilityCalculation();
+
+	private PatientCalculationContext calculationContext;
+
+	private PersistentResultCache cache;
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() throws Exception {
+		calculationContext = Context.getService(PatientCalculationService.class).createCalculationContext();
+
+		cache = PersistentResultCache.getInstance();
+		cache.setDirectory(folder.newFolder("resultcache"));
+	}
+
+	/**
+	 * Cleanup after each test
+	 */
+	@After
+	public void cleanup() {
+		cache.setDirectory(null);
+	}
+
+	/**
+	 * @see PersistentResultCache#getResults(org.openmrs.calculation.patient.PatientCalculation, java.util.Map, java.util.Date, java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void getResults_shouldReturnResultsStoredOnSameDay() {
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31, 8, 0, 0), cohort, createResults(), cache.getGeneration());
+
+		CalculationResultMap stored = cache.getResults(calculation, params, TestUtils.date(2012, 1, 31, 17, 0, 0), cohort, calculationContext);
+
+		Assert.assertThat(stored.keySet(), containsInAnyOrder(2, 6, 7));
+		Assert.assertThat(stored.get(2), instanceOf(BooleanResult.class));
+		Assert.assertThat((Boolean) stored.get(2).getValue(), is(true));
+		Assert.assertThat((Date) stored.get(6).getValue(), is(TestUtils.date(2012, 1, 15)));
+		Assert.assertThat(stored.get(7), nullValue());
+
+		// Different day, parameters or patients
+		Assert.assertThat(cache.getResults(calculation, params, TestUtils.date(2012, 2, 1), cohort, calculationContext), nullValue());
+		Assert.assertThat(cache.getResults(calculation, null, TestUtils.date(2012, 1, 31), cohort, calculationContext), nullValue());
+		Assert.assertThat(cache.getResults(calculation, params, TestUtils.date(2012, 1, 31), Arrays.asList(2, 6), calculationContext), nullValue());
+	}
+
+	/**
+	 * @see PersistentResultCache#getResults(org.openmrs.calculation.patient.PatientCalculation, java.util.Map, java.util.Date, java.util.Collection, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Test
+	public void getResults_shouldReturnResultsStoredBeforeRestart() throws Exception {
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, createResults(), cache.getGeneration());
+
+		PersistentResultCache reloaded = new PersistentResultCache();
+		reloaded.setDirectory(cache.getDirectory());
+
+		Assert.assertThat(reloaded.size(), is(1));
+		Assert.assertThat((Boolean) reloaded.getResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, calculationContext).get(2).getValue(), is(true));
+	}
+
+	/**
+	 * @see PersistentResultCache#putResults(org.openmrs.calculation.patient.PatientCalculation, java.util.Map, java.util.Date, java.util.Collection, org.openmrs.calculation.result.CalculationResultMap, long)
+	 */
+	@Test
+	public void putResults_shouldNotStoreResultsWhichCantBeStored() {
+		CalculationResultMap results = createResults();
+		results.put(7, new ObsResult(new Obs(), calculation, calculationContext));
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, results, cache.getGeneration());
+
+		Assert.assertThat(cache.size(), is(0));
+	}
+
+	/**
+	 * @see PersistentResultCache#invalidate(Integer, java.util.Date)
+	 */
+	@Test
+	public void invalidate_shouldRemoveEntriesForPatientOnOrAfterDate() {
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, createResults(), cache.getGeneration());
+
+		cache.invalidate(999, null);
+		cache.invalidate(6, TestUtils.date(2012, 2, 1));
+		Assert.assertThat(cache.size(), is(1));
+
+		cache.invalidate(6, TestUtils.date(2012, 1, 31, 12, 0, 0));
+		Assert.assertThat(cache.size(), is(0));
+	}
+
+	/**
+	 * @see PersistentResultCache#invalidate(Integer, java.util.Date)
+	 */
+	@Test
+	public void invalidate_shouldBeTriggeredByAdvice() throws Throwable {
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, createResults(), cache.getGeneration());
+
+		Obs obs = new Obs();
+		obs.setPerson(TestUtils.getPatient(6));
+		obs.setObsDatetime(TestUtils.date(2012, 1, 10));
+
+		new ResultCacheInvalidationAdvice().afterReturning(obs, Obs.class.getMethod("toString"), new Object[] { obs }, null);
+		commit();
+		Assert.assertThat(cache.size(), is(1));
+
+		// Results are only invalidated once the transaction commits
+		new ResultCacheInvalidationAdvice().afterReturning(obs, getClass().getMethod("saveObs", Obs.class), new Object[] { obs }, null);
+		Assert.assertThat(cache.size(), is(1));
+
+		commit();
+		Assert.assertThat(cache.size(), is(0));
+	}
+
+	/**
+	 * @see ResultCacheInvalidationAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)
+	 */
+	@Test
+	public void invalidate_shouldIgnoreDateOfEditedObs() throws Throwable {
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, createResults(), cache.getGeneration());
+
+		// Obs has been moved after the stored day, and saving it returned the new obs which replaced it
+		Obs obs = new Obs();
+		obs.setPerson(TestUtils.getPatient(6));
+		obs.setObsDatetime(TestUtils.date(2012, 2, 15));
+		Obs replacement = new Obs();
+
+		new ResultCacheInvalidationAdvice().afterReturning(replacement, getClass().getMethod("saveObs", Obs.class), new Object[] { obs }, null);
+		commit();
+		Assert.assertThat(cache.size(), is(0));
+	}
+
+	/**
+	 * @see ResultCacheInvalidationAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)
+	 */
+	@Test
+	public void invalidate_shouldBeTriggeredByVisitsAndRelationships() throws Throwable {
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, createResults(), cache.getGeneration());
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), Arrays.asList(7), createResults(), cache.getGeneration());
+
+		Visit visit = new Visit();
+		visit.setPatient(TestUtils.getPatient(6));
+
+		new ResultCacheInvalidationAdvice().afterReturning(visit, getClass().getMethod("saveVisit", Visit.class), new Object[] { visit }, null);
+		commit();
+		Assert.assertThat(cache.size(), is(1));
+
+		Relationship relationship = new Relationship();
+		relationship.setPersonA(TestUtils.getPatient(8));
+		relationship.setPersonB(TestUtils.getPatient(7));
+
+		new ResultCacheInvalidationAdvice().afterReturning(relationship, getClass().getMethod("saveRelationship", Relationship.class), new Object[] { relationship }, null);
+		commit();
+		Assert.assertThat(cache.size(), is(0));
+	}
+
+	/**
+	 * @see PersistentResultCache#putResults(org.openmrs.calculation.patient.PatientCalculation, java.util.Map, java.util.Date, java.util.Collection, org.openmrs.calculation.result.CalculationResultMap, long)
+	 */
+	@Test
+	public void putResults_shouldNotStoreResultsOfPatientsInvalidatedDuringEvaluation() {
+		long generation = cache.getGeneration();
+
+		cache.invalidate(999, null);
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, createResults(), generation);
+		Assert.assertThat(cache.size(), is(1));
+
+		cache.invalidate(6, TestUtils.date(2012, 2, 1));
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 30), cohort, createResults(), generation);
+		Assert.assertThat(cache.size(), is(1));
+	}
+
+	/**
+	 * @see PersistentResultCache#putResults(org.openmrs.calculation.patient.PatientCalculation, java.util.Map, java.util.Date, java.util.Collection, org.openmrs.calculation.result.CalculationResultMap, long)
+	 */
+	@Test
+	public void putResults_shouldNotStoreResultsOfCalculationsWithState() {
+		PatientCalculation stateful = new CalculationGraphTest.StatefulCalculation();
+		cache.putResults(stateful, params, TestUtils.date(2012, 1, 31), cohort, createResults(), cache.getGeneration());
+
+		Assert.assertThat(cache.size(), is(0));
+		Assert.assertThat(cache.getResults(stateful, params, TestUtils.date(2012, 1, 31), cohort, calculationContext), nullValue());
+	}
+
+	/**
+	 * @see PersistentResultCache#putResults(org.openmrs.calculation.patient.PatientCalculation, java.util.Map, java.util.Date, java.util.Collection, org.openmrs.calculation.result.CalculationResultMap, long)
+	 */
+	@Test
+	public void putResults_shouldShareIdsOfEntriesWithSamePatients() {
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 30), cohort, createResults(), cache.getGeneration());
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, createResults(), cache.getGeneration());
+		Assert.assertThat(cache.size(), is(2));
+		Assert.assertThat(cache.getCohortCount(), is(1));
+
+		cache.invalidate(6, TestUtils.date(2012, 1, 31, 12, 0, 0));
+		Assert.assertThat(cache.size(), is(1));
+		Assert.assertThat(cache.getCohortCount(), is(1));
+
+		cache.invalidate(6, null);
+		Assert.assertThat(cache.size(), is(0));
+		Assert.assertThat(cache.getCohortCount(), is(0));
+	}
+
+	/**
+	 * @see PersistentResultCache#putResults(org.openmrs.calculation.patient.PatientCalculation, java.util.Map, java.util.Date, java.util.Collection, org.openmrs.calculation.result.CalculationResultMap, long)
+	 */
+	@Test
+	public void putResults_shouldReplaceEntryWithSameKey() {
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, createResults(), cache.getGeneration());
+		cache.putResults(calculation, params, TestUtils.date(2012, 1, 31), cohort, createResults(), cache.getGeneration());
+
+		Assert.assertThat(cache.size(), is(1));
+		Assert.assertThat(cache.getDirectory().listFiles().length, is(1));
+	}
+
+	/**
+	 * @see CalculationCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldReuseResultsFromPreviousRunWhenEnabled() throws Exception {
+		TestUtils.saveGlobalProperty(PersistentResultCache.GP_ENABLED, "true");
+
+		CalculationCohortDefinition cd = new CalculationCohortDefinition(calculation);
+
+		// Each report run has its own evaluation context
+		int evaluations = TestEligibilityCalculation.getEvaluations();
+		EvaluatedCohort first = new CalculationCohortDefinitionEvaluator().evaluate(cd, createContext());
+		EvaluatedCohort second = new CalculationCohortDefinitionEvaluator().evaluate(cd, createContext());
+
+		Assert.assertThat(first.getMemberIds(), containsInAnyOrder(7, 8));
+		Assert.assertThat(second.getMemberIds(), containsInAnyOrder(7, 8));
+		Assert.assertThat(TestEligibilityCalculation.getEvaluations(), is(evaluations + 1));
+	}
+
+	/**
+	 * Dummy service method used to test the advice
+	 * @param obs the obs
+	 */
+	public void saveObs(Obs obs) {
+	}
+
+	/**
+	 * Dummy service method used to test the advice
+	 * @param visit the visit
+	 */
+	public void saveVisit(Visit visit) {
+	}
+
+	/**
+	 * Dummy service method used to test the advice
+	 * @param relationship the relationship
+	 */
+	public void saveRelationship(Relationship relationship) {
+	}
+
+	/**
+	 * Runs the after commit callbacks registered with the test transaction, which is never committed
+	 */
+	private void commit() {
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			synchronization.afterCommit();
+		}
+	}
+
+	private EvaluationContext createContext() {
+		return ReportingTestUtils.reportingContext(Arrays.asList(2, 6, 7, 8), TestUtils.date(2012, 1, 1), TestUtils.date(2012, 1, 31));
+	}
+
+	private CalculationResultMap createResults() {
+		CalculationResultMap results = new CalculationResultMap();
+		results.put(2, new BooleanResult(true, calculation, calculationContext));
+		results.put(6, new SimpleResult(TestUtils.date(2012, 1, 15), calculation, calculationContext));
+		results.put(7, null);
+		return results;
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.calculation.patient.PatientCalculation;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.test.TestCalculation;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link ReportResultCache}
+ */
+public class ReportResultCacheTest {
+
+	private Date onDate = new Date();
+
+	/**
+	 * @see ReportResultCache#get(org.openmrs.calculation.patient.PatientCalculation, java.util.Map, java.util.Date, java.util.Collection)
+	 */
+	@Test
+	public void get_shouldShareResultsOfStatelessCalculationsByClass() {
+		ReportResultCache cache = ReportResultCache.forContext(new EvaluationContext());
+
+		cache.put(new TestCalculation(), null, onDate, Arrays.asList(1, 2, 3), createResults(1, 2, 3));
+
+		CalculationResultMap results = cache.get(new TestCalculation(), null, onDate, Arrays.asList(2, 3));
+		Assert.assertThat(results.keySet(), containsInAnyOrder(2, 3));
+
+		// Not if the calculation hasn't been evaluated on all of the patients
+		Assert.assertThat(cache.get(new TestCalculation(), null, onDate, Arrays.asList(3, 4)), nullValue());
+	}
+
+	/**
+	 * @see ReportResultCache#get(org.openmrs.calculation.patient.PatientCalculation, java.util.Map, java.util.Date, java.util.Collection)
+	 */
+	@Test
+	public void get_shouldIdentifyCalculationsWithStateByInstance() {
+		ReportResultCache cache = ReportResultCache.forContext(new EvaluationContext());
+
+		PatientCalculation calculation = new CalculationGraphTest.StatefulCalculation();
+		cache.put(calculation, null, onDate, Arrays.asList(1, 2), createResults(1, 2));
+
+		Assert.assertThat(cache.get(calculation, null, onDate, Arrays.asList(1, 2)), notNullValue());
+		Assert.assertThat(cache.get(new CalculationGraphTest.StatefulCalculation(), null, onDate, Arrays.asList(1, 2)), nullValue());
+	}
+
+	/**
+	 * @see ReportResultCache#get(org.openmrs.calculation.patient.PatientCalculation, java.util.Map, java.util.Date, java.util.Collection)
+	 */
+	@Test
+	public void get_shouldIdentifyConfigurableCalculationsByInstance() {
+		ReportResultCache cache = ReportResultCache.forContext(new EvaluationContext());
+
+		PatientCalculation calculation = new CalculationUtilsTest.TestCalculation();
+		cache.put(calculation, null, onDate, Arrays.asList(1, 2), createResults(1, 2));
+
+		Assert.assertThat(cache.get(calculation, null, onDate, Arrays.asList(1, 2)), notNullValue());
+		Assert.assertThat(cache.get(new CalculationUtilsTest.TestCalculation(), null, onDate, Arrays.asList(1, 2)), nullValue());
+	}
+
+	private CalculationResultMap createResults(Integer... ptIds) {
+		CalculationResultMap results = new CalculationResultMap();
+		for (Integer ptId : ptIds) {
+			results.put(ptId, BooleanResult.valueOf(true));
+		}
+		return results;
+	}
+}
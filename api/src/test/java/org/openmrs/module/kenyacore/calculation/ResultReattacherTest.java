@@ -0,0 +1,103 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.calculation;
+
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Obs;
+import org.openmrs.api.context.Context;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.calculation.result.ListResult;
+import org.openmrs.calculation.result.SimpleResult;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link ResultReattacher}
+ */
+public class ResultReattacherTest extends BaseModuleContextSensitiveTest {
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	private ResultReattacher reattacher;
+
+	@Before
+	public void setup() {
+		reattacher = new ResultReattacher(sessionFactory.getCurrentSession());
+	}
+
+	/**
+	 * @see ResultReattacher#reattach(org.openmrs.calculation.result.CalculationResultMap)
+	 */
+	@Test
+	public void reattach_shouldReturnSameResultsIfTheyContainNoEntities() {
+		CalculationResultMap results = new CalculationResultMap();
+		results.put(2, new SimpleResult(123, null));
+		results.put(7, null);
+
+		Assert.assertThat(reattacher.reattach(results), sameInstance(results));
+	}
+
+	/**
+	 * @see ResultReattacher#reattach(org.openmrs.calculation.result.CalculationResultMap)
+	 */
+	@Test
+	public void reattach_shouldReplaceDetachedEntitiesWithAttachedInstances() {
+		Obs detached = Context.getObsService().getObs(16);
+		sessionFactory.getCurrentSession().evict(detached);
+
+		ListResult list = new ListResult();
+		list.add(new SimpleResult(detached, null));
+
+		CalculationResultMap results = new CalculationResultMap();
+		results.put(7, list);
+
+		CalculationResultMap reattached = reattacher.reattach(results);
+		List<SimpleResult> items = (List<SimpleResult>) reattached.get(7).getValue();
+		SimpleResult item = items.get(0);
+
+		Assert.assertThat(item.getValue(), not(sameInstance((Object) detached)));
+		Assert.assertThat(((Obs) item.getValue()).getId(), is(16));
+		Assert.assertThat(sessionFactory.getCurrentSession().contains(item.getValue()), is(true));
+	}
+
+	/**
+	 * @see ResultReattacher#reattach(org.openmrs.calculation.result.CalculationResultMap)
+	 */
+	@Test
+	public void reattach_shouldReturnNullIfResultTypeWithEntitiesCantBeRebuilt() {
+		CalculationResultMap results = new CalculationResultMap();
+		results.put(7, new TestObsResult(Context.getObsService().getObs(16)));
+
+		Assert.assertThat(reattacher.reattach(results), nullValue());
+	}
+
+	/**
+	 * Result type which the re-attacher doesn't know how to rebuild
+	 */
+	public static class TestObsResult extends SimpleResult {
+
+		public TestObsResult(Obs obs) {
+			super(obs, null);
+		}
+	}
+}
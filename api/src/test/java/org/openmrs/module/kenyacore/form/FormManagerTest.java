@@ -17,6 +17,7 @@ package org.openmrs.module.kenyacore.form;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Encounter;
 import org.openmrs.Patient;
 import org.openmrs.Visit;
 import org.openmrs.VisitType;
@@ -30,6 +31,10 @@ import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import static org.hamcrest.Matchers.*;
 
 /**
@@ -94,4 +99,37 @@ public class FormManagerTest extends BaseModuleContextSensitiveTest {
 
 		Assert.assertThat(formManager.getAllUncompletedFormsForVisit(testApp1, visit), contains(progressNoteForm));
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @see FormManager#getAllFormsForVisits(org.openmrs.module.appframework.domain.AppDescriptor, java.util.List)
+	 */
+	@Test
+	public void getAllFormsForVisits() {
+		VisitType initialHiv = MetadataUtils.existing(VisitType.class, StandardTestData._VisitType.INITIAL_HIV);
+		Visit visit1 = TestUtils.saveVisit(TestUtils.getPatient(6), initialHiv, TestUtils.date(2012, 1, 1, 9, 0, 0), TestUtils.date(2012, 1, 1, 11, 0, 0));
+		Visit visit2 = TestUtils.saveVisit(TestUtils.getPatient(7), initialHiv, TestUtils.date(2012, 1, 1, 9, 0, 0), TestUtils.date(2012, 1, 1, 11, 0, 0));
+
+		Map<Visit, List<FormDescriptor>> forms = formManager.getAllFormsForVisits(testApp1, Arrays.asList(visit1, visit2));
+
+		Assert.assertThat(forms.keySet(), contains(visit1, visit2));
+		Assert.assertThat(forms.get(visit1), is(formManager.getAllFormsForVisit(testApp1, visit1)));
+		Assert.assertThat(forms.get(visit2), is(formManager.getAllFormsForVisit(testApp1, visit2)));
+	}
+
+	/**
+	 * @see FormManager#getAllUncompletedFormsForVisits(org.openmrs.module.appframework.domain.AppDescriptor, java.util.List)
+	 */
+	@Test
+	public void getAllUncompletedFormsForVisits() {
+		Patient patient = TestUtils.getPatient(7);
+		VisitType initialHiv = MetadataUtils.existing(VisitType.class, StandardTestData._VisitType.INITIAL_HIV);
+		Encounter progressNote = TestUtils.saveEncounter(patient, progressNoteForm.getTarget(), TestUtils.date(2012, 1, 2, 10, 0, 0));
+		Visit visit1 = TestUtils.saveVisit(patient, initialHiv, TestUtils.date(2012, 1, 1, 9, 0, 0), TestUtils.date(2012, 1, 1, 11, 0, 0));
+		Visit visit2 = TestUtils.saveVisit(patient, initialHiv, TestUtils.date(2012, 1, 2, 9, 0, 0), TestUtils.date(2012, 1, 2, 11, 0, 0), progressNote);
+
+		Map<Visit, List<FormDescriptor>> forms = formManager.getAllUncompletedFormsForVisits(testApp1, Arrays.asList(visit1, visit2));
+
+		Assert.assertThat(forms.get(visit1), contains(progressNoteForm));
+		Assert.assertThat(forms.get(visit2), not(hasItem(progressNoteForm)));
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.program;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PatientProgram;
+import org.openmrs.Program;
+import org.openmrs.api.ProgramWorkflowService;
+import org.openmrs.module.kenyacore.test.StandardTestData;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.module.metadatadeploy.MetadataUtils;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.lang.reflect.Method;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link PatientEnrollmentCache}
+ */
+public class PatientEnrollmentCacheTest extends BaseModuleContextSensitiveTest {
+
+	@Autowired
+	private PatientEnrollmentCache enrollmentCache;
+
+	private Program hivProgram;
+
+	@Before
+	public void setup() {
+		enrollmentCache.clear();
+
+		hivProgram = MetadataUtils.existing(Program.class, StandardTestData._Program.HIV);
+	}
+
+	/**
+	 * @see PatientEnrollmentCache#getEnrollments(org.openmrs.Patient)
+	 */
+	@Test
+	public void getEnrollments_shouldCacheEnrollmentsForSession() {
+		Patient patient = TestUtils.getPatient(6);
+
+		Assert.assertThat(enrollmentCache.getEnrollments(patient), hasSize(0));
+
+		// Not seen until invalidated
+		PatientProgram enrollment = TestUtils.enrollInProgram(patient, hivProgram, TestUtils.date(2012, 1, 1));
+		Assert.assertThat(enrollmentCache.getEnrollments(patient), hasSize(0));
+
+		enrollmentCache.invalidate(patient.getPatientId());
+		Assert.assertThat(enrollmentCache.getEnrollments(patient), contains(enrollment));
+	}
+
+	/**
+	 * @see PatientEnrollmentCache#getEnrollments(org.openmrs.Patient)
+	 */
+	@Test
+	public void getEnrollments_shouldReturnCopiesOfCachedList() {
+		Patient patient = TestUtils.getPatient(6);
+		TestUtils.enrollInProgram(patient, hivProgram, TestUtils.date(2012, 1, 1));
+
+		enrollmentCache.getEnrollments(patient).clear();
+
+		Assert.assertThat(enrollmentCache.getEnrollments(patient), hasSize(1));
+	}
+
+	/**
+	 * @see EnrollmentCacheAdvice#afterReturning(Object, java.lang.reflect.Method, Object[], Object)
+	 */
+	@Test
+	public void advice_shouldInvalidatePatientWhenEnrollmentSaved() throws Throwable {
+		Patient patient = TestUtils.getPatient(6);
+		Assert.assertThat(enrollmentCache.getEnrollments(patient), hasSize(0));
+
+		PatientProgram enrollment = TestUtils.enrollInProgram(patient, hivProgram, TestUtils.date(2012, 1, 1));
+
+		Method saveMethod = ProgramWorkflowService.class.getMethod("savePatientProgram", PatientProgram.class);
+		new EnrollmentCacheAdvice().afterReturning(enrollment, saveMethod, new Object[] { enrollment }, null);
+
+		Assert.assertThat(enrollmentCache.getEnrollments(patient), contains(enrollment));
+	}
+}
@@ -14,17 +14,25 @@
 
 package org.openmrs.module.kenyacore.program;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.Patient;
 import org.openmrs.Program;
+import org.openmrs.api.ProgramWorkflowService;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.kenyacore.test.StandardTestData;
+import org.openmrs.module.kenyacore.test.TestEligibilityCalculation;
 import org.openmrs.module.metadatadeploy.MetadataUtils;
 import org.openmrs.module.kenyacore.test.TestUtils;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import static org.hamcrest.Matchers.*;
 
 /**
@@ -35,9 +43,19 @@ public class ProgramManagerTest extends BaseModuleContextSensitiveTest {
 	@Autowired
 	private ProgramManager programManager;
 
+	private EnrollmentCacheAdvice enrollmentCacheAdvice = new EnrollmentCacheAdvice();
+
 	@Before
 	public void setup() throws Exception {
 		programManager.refresh();
+
+		// Module advice isn't applied in tests so add the enrollment cache advice manually
+		Context.addAdvice(ProgramWorkflowService.class, enrollmentCacheAdvice);
+	}
+
+	@After
+	public void cleanup() {
+		Context.removeAdvice(ProgramWorkflowService.class, enrollmentCacheAdvice);
 	}
 
 	@Test
@@ -61,4 +79,27 @@ public class ProgramManagerTest extends BaseModuleContextSensitiveTest {
 		TestUtils.enrollInProgram(patient, hivProgram.getTarget(), TestUtils.date(2012, 1, 1));
 		Assert.assertThat(programManager.getPatientPrograms(patient), contains(hivProgram));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void getPatientEligiblePrograms() {
+		ProgramDescriptor hivProgram = programManager.getProgramDescriptor(MetadataUtils.existing(Program.class, StandardTestData._Program.HIV));
+
+		Assert.assertThat(programManager.getPatientEligiblePrograms(TestUtils.getPatient(6)), hasSize(0));
+		Assert.assertThat(programManager.getPatientEligiblePrograms(TestUtils.getPatient(7)), contains(hivProgram));
+	}
+
+	@Test
+	public void getPatientsEligiblePrograms_shouldEvaluateEachCalculationOnceForCohort() {
+		ProgramDescriptor hivProgram = programManager.getProgramDescriptor(MetadataUtils.existing(Program.class, StandardTestData._Program.HIV));
+		int evaluations = TestEligibilityCalculation.getEvaluations();
+
+		Map<Integer, List<ProgramDescriptor>> eligible = programManager.getPatientsEligiblePrograms(Arrays.asList(2, 6, 7, 8));
+
+		Assert.assertThat(TestEligibilityCalculation.getEvaluations(), is(evaluations + 1));
+		Assert.assertThat(eligible.keySet(), contains(2, 6, 7, 8));
+		Assert.assertThat(eligible.get(2), hasSize(0));
+		Assert.assertThat(eligible.get(6), hasSize(0));
+		Assert.assertThat(eligible.get(7), contains(hivProgram));
+		Assert.assertThat(eligible.get(8), contains(hivProgram));
+	}
+}
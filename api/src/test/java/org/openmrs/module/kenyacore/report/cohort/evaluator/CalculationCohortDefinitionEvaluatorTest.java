@@ -0,0 +1,97 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.report.cohort.evaluator;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.kenyacore.CoreUtils;
+import org.openmrs.module.kenyacore.report.cohort.definition.CalculationCohortDefinition;
+import org.openmrs.module.kenyacore.test.ReportingTestUtils;
+import org.openmrs.module.kenyacore.test.TestEligibilityCalculation;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link CalculationCohortDefinitionEvaluator}
+ */
+public class CalculationCohortDefinitionEvaluatorTest extends BaseModuleContextSensitiveTest {
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	private EvaluationContext context;
+
+	private CalculationCohortDefinitionEvaluator evaluator;
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() throws Exception {
+		context = ReportingTestUtils.reportingContext(Arrays.asList(2, 6, 7, 8), TestUtils.date(2012, 1, 1), TestUtils.date(2012, 1, 31));
+		evaluator = new CalculationCohortDefinitionEvaluator();
+	}
+
+	/**
+	 * @see CalculationCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldEvaluateAllPatientsInBatchesIfThereIsNoBaseCohort() throws EvaluationException {
+		CalculationCohortDefinition cd = new CalculationCohortDefinition(new TestEligibilityCalculation());
+		context.setBaseCohort(null);
+
+		EvaluatedCohort unbatched = evaluator.evaluate(cd, context);
+
+		CoreUtils.setGlobalProperty(CalculationCohortDefinitionEvaluator.GP_BATCH_SIZE, "2");
+		int evaluations = TestEligibilityCalculation.getEvaluations();
+		EvaluatedCohort batched = evaluator.evaluate(cd, context);
+
+		int allPatients = Context.getPatientSetService().getAllPatients().size();
+		Assert.assertThat(batched.getMemberIds(), is(unbatched.getMemberIds()));
+		Assert.assertThat(TestEligibilityCalculation.getEvaluations() - evaluations, is((allPatients + 1) / 2));
+	}
+
+	/**
+	 * @see CalculationCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldNotDetachEntitiesLoadedBeforeBatchEvaluation() throws EvaluationException {
+		CoreUtils.setGlobalProperty(CalculationCohortDefinitionEvaluator.GP_BATCH_SIZE, "3");
+
+		Session session = sessionFactory.getCurrentSession();
+		Patient patient = Context.getPatientService().getPatient(2);
+		Concept concept = Context.getConceptService().getConcept(5089);
+
+		EvaluatedCohort evaluated = evaluator.evaluate(new CalculationCohortDefinition(new TestEligibilityCalculation()), context);
+
+		Assert.assertThat(evaluated.getMemberIds(), containsInAnyOrder(7, 8));
+		Assert.assertThat(session.contains(patient), is(true));
+		Assert.assertThat(session.contains(concept), is(true));
+	}
+}
@@ -14,6 +14,7 @@
 
 package org.openmrs.module.kenyacore.report.cohort.evaluator;
 
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -24,6 +25,7 @@ import org.openmrs.calculation.patient.PatientCalculation;
 import org.openmrs.calculation.patient.PatientCalculationContext;
 import org.openmrs.calculation.result.CalculationResultMap;
 import org.openmrs.calculation.result.SimpleResult;
+import org.openmrs.module.kenyacore.CoreUtils;
 import org.openmrs.module.kenyacore.report.cohort.definition.DateCalculationCohortDefinition;
 import org.openmrs.module.kenyacore.test.ReportingTestUtils;
 import org.openmrs.module.kenyacore.test.TestUtils;
@@ -36,6 +38,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
 
+import static org.hamcrest.Matchers.*;
+
 /**
  * Tests for {@link org.openmrs.module.kenyacore.report.cohort.evaluator.DateCalculationCohortDefinitionEvaluator}
  */
@@ -66,12 +70,34 @@ public class DateCalculationCohortDefinitionEvaluatorTest extends BaseModuleCont
 	}
 
 	/**
-	 * Test calculation which returns a date for each patient based on their id, i.e. 2012-01-{id}
+	 * Tests evaluation in batches
+	 */
+	@Test
+	public void evaluate_shouldEvaluateInBatchesIfBatchSizeIsSet() throws EvaluationException {
+		CoreUtils.setGlobalProperty(CalculationCohortDefinitionEvaluator.GP_BATCH_SIZE, "3");
+
+		DateCalculationCohortDefinition cohortDefinition = new DateCalculationCohortDefinition(new TestDateCalculation());
+		cohortDefinition.setOnOrAfter(TestUtils.date(2012, 1, 6));
+		cohortDefinition.setOnOrBefore(TestUtils.date(2012, 1, 8));
+
+		EvaluatedCohort evaluated = evaluator.evaluate(cohortDefinition, context);
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(6, 7, 8), evaluated);
+		Assert.assertThat(((TestDateCalculation) cohortDefinition.getCalculation()).evaluations, is(2));
+	}
+
+	/**
+	 * Test calculation which returns a date for each patient based on their id, i.e. 2012-01-{id}, and counts its
+	 * evaluations
 	 */
 	public class TestDateCalculation implements PatientCalculation {
 
+		protected int evaluations = 0;
+
 		@Override
 		public CalculationResultMap evaluate(Collection<Integer> cohort, Map<String, Object> params, PatientCalculationContext context) {
+			evaluations++;
+
 			CalculationResultMap ret = new CalculationResultMap();
 			for (Integer ptId :  cohort) {
 				ret.put(ptId, new SimpleResult(TestUtils.date(2012, 1, ptId), this, context));
@@ -0,0 +1,236 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.report.cohort.evaluator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.ConceptDescription;
+import org.openmrs.ConceptName;
+import org.openmrs.EncounterType;
+import org.openmrs.Location;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.kenyacore.report.cohort.definition.DateObsValueBetweenCohortDefinition;
+import org.openmrs.module.kenyacore.test.ReportingTestUtils;
+import org.openmrs.module.kenyacore.test.StandardTestData;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.module.metadatadeploy.MetadataUtils;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Tests for {@link DateObsValueBetweenCohortDefinitionEvaluator}
+ */
+public class DateObsValueBetweenCohortDefinitionEvaluatorTest extends BaseModuleContextSensitiveTest {
+
+	private DateObsValueBetweenCohortDefinitionEvaluator evaluator;
+
+	private DateObsValueBetweenCohortDefinition cohortDefinition;
+
+	private Concept groupingConcept;
+
+	private Location xanadu;
+
+	private EncounterType emergency;
+
+	@Before
+	public void setup() throws Exception {
+		Concept dateConcept = saveConcept("Test date", "Date", false);
+		groupingConcept = saveConcept("Test group", "N/A", true);
+		xanadu = MetadataUtils.existing(Location.class, StandardTestData._Location.XANADU);
+		emergency = MetadataUtils.existing(EncounterType.class, StandardTestData._EncounterType.EMERGENCY);
+
+		// Patient #2 has a value in January
+		TestUtils.saveObs(TestUtils.getPatient(2), dateConcept, TestUtils.date(2012, 1, 10), TestUtils.date(2012, 1, 1));
+
+		// Patient #6 has a value in March
+		TestUtils.saveObs(TestUtils.getPatient(6), dateConcept, TestUtils.date(2012, 3, 1), TestUtils.date(2012, 1, 1));
+
+		// Patient #7 has a value in January, recorded at Xanadu in an emergency encounter
+		Obs obs7 = newObs(TestUtils.getPatient(7), dateConcept, TestUtils.date(2012, 1, 20));
+		obs7.setLocation(xanadu);
+		TestUtils.saveEncounter(TestUtils.getPatient(7), emergency, TestUtils.date(2012, 1, 1), obs7);
+
+		// Patient #8 has a value in January, in an obs group
+		Obs obs8 = newObs(TestUtils.getPatient(8), dateConcept, TestUtils.date(2012, 1, 15));
+		Obs group8 = new Obs(TestUtils.getPatient(8), groupingConcept, TestUtils.date(2012, 1, 1), null);
+		group8.addGroupMember(obs8);
+		Context.getObsService().saveObs(group8, null);
+
+		cohortDefinition = new DateObsValueBetweenCohortDefinition();
+		cohortDefinition.setQuestion(dateConcept);
+
+		evaluator = new DateObsValueBetweenCohortDefinitionEvaluator();
+	}
+
+	/**
+	 * @see DateObsValueBetweenCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 * @verifies test any with many properties specified
+	 */
+	@Test
+	public void evaluate_shouldTestAnyWithManyPropertiesSpecified() throws EvaluationException {
+		cohortDefinition.setOnOrAfter(TestUtils.date(2012, 1, 1));
+		cohortDefinition.setOnOrBefore(TestUtils.date(2012, 1, 31));
+		cohortDefinition.setLocationList(Arrays.asList(Context.getLocationService().getLocation(1), xanadu));
+		cohortDefinition.setEncounterTypeList(Collections.singletonList(emergency));
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(7), evaluator.evaluate(cohortDefinition, new EvaluationContext()));
+	}
+
+	/**
+	 * @see DateObsValueBetweenCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 * @verifies find nobody if no patients match
+	 */
+	@Test
+	public void evaluate_shouldFindNobodyIfNoPatientsMatch() throws EvaluationException {
+		cohortDefinition.setOnOrAfter(TestUtils.date(2000, 1, 1));
+		cohortDefinition.setOnOrBefore(TestUtils.date(2000, 12, 31));
+
+		ReportingTestUtils.assertCohortEquals(Collections.<Integer>emptyList(), evaluator.evaluate(cohortDefinition, new EvaluationContext()));
+	}
+
+	/**
+	 * @see DateObsValueBetweenCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldFilterByQuestionOnly() throws EvaluationException {
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(2, 6, 7, 8), evaluator.evaluate(cohortDefinition, new EvaluationContext()));
+	}
+
+	/**
+	 * @see DateObsValueBetweenCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldFilterByValueOnOrAfter() throws EvaluationException {
+		cohortDefinition.setOnOrAfter(TestUtils.date(2012, 1, 15));
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(6, 7, 8), evaluator.evaluate(cohortDefinition, new EvaluationContext()));
+	}
+
+	/**
+	 * @see DateObsValueBetweenCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldFilterByValueOnOrBefore() throws EvaluationException {
+		cohortDefinition.setOnOrBefore(TestUtils.date(2012, 1, 15));
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(2, 8), evaluator.evaluate(cohortDefinition, new EvaluationContext()));
+	}
+
+	/**
+	 * @see DateObsValueBetweenCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldFilterByGroupingConcept() throws EvaluationException {
+		cohortDefinition.setGroupingConcept(groupingConcept);
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(8), evaluator.evaluate(cohortDefinition, new EvaluationContext()));
+	}
+
+	/**
+	 * @see DateObsValueBetweenCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldFilterByLocation() throws EvaluationException {
+		cohortDefinition.setLocationList(Collections.singletonList(xanadu));
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(7), evaluator.evaluate(cohortDefinition, new EvaluationContext()));
+	}
+
+	/**
+	 * @see DateObsValueBetweenCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldFilterByEncounterType() throws EvaluationException {
+		cohortDefinition.setEncounterTypeList(Collections.singletonList(emergency));
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(7), evaluator.evaluate(cohortDefinition, new EvaluationContext()));
+	}
+
+	/**
+	 * @see DateObsValueBetweenCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldGiveIntersectionWithBaseCohort() throws EvaluationException {
+		cohortDefinition.setOnOrAfter(TestUtils.date(2012, 1, 1));
+		cohortDefinition.setOnOrBefore(TestUtils.date(2012, 1, 31));
+
+		EvaluatedCohort withoutBase = evaluator.evaluate(cohortDefinition, new EvaluationContext());
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(2, 7, 8), withoutBase);
+
+		EvaluationContext context = ReportingTestUtils.reportingContext(Arrays.asList(2, 6, 7), TestUtils.date(2012, 1, 1), TestUtils.date(2012, 1, 31));
+		EvaluatedCohort withBase = evaluator.evaluate(cohortDefinition, context);
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(2, 7), withBase);
+	}
+
+	/**
+	 * @see DateObsValueBetweenCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldQueryLargeBaseCohortsInBatches() throws EvaluationException {
+		List<Integer> largeCohort = new ArrayList<Integer>();
+		for (int ptId = 1; ptId <= DateObsValueBetweenCohortDefinitionEvaluator.QUERY_BATCH_SIZE * 2 + 1; ptId++) {
+			largeCohort.add(ptId);
+		}
+
+		EvaluationContext context = ReportingTestUtils.reportingContext(largeCohort, TestUtils.date(2012, 1, 1), TestUtils.date(2012, 1, 31));
+		EvaluatedCohort withBase = evaluator.evaluate(cohortDefinition, context);
+		EvaluatedCohort withoutBase = evaluator.evaluate(cohortDefinition, new EvaluationContext());
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(2, 6, 7, 8), withBase);
+		ReportingTestUtils.assertCohortEquals(withoutBase.getMemberIds(), withBase);
+	}
+
+	/**
+	 * Creates and saves a concept
+	 * @param name the name
+	 * @param datatype the datatype name
+	 * @param set whether the concept is a set
+	 * @return the concept
+	 */
+	private Concept saveConcept(String name, String datatype, boolean set) {
+		Concept concept = new Concept();
+		concept.addName(new ConceptName(name, Locale.ENGLISH));
+		concept.addDescription(new ConceptDescription(name, Locale.ENGLISH));
+		concept.setDatatype(Context.getConceptService().getConceptDatatypeByName(datatype));
+		concept.setConceptClass(Context.getConceptService().getConceptClassByName("Misc"));
+		concept.setSet(set);
+		return Context.getConceptService().saveConcept(concept);
+	}
+
+	/**
+	 * Creates an unsaved datetime obs
+	 * @param patient the patient
+	 * @param concept the concept
+	 * @param value the value
+	 * @return the obs
+	 */
+	private Obs newObs(Patient patient, Concept concept, Date value) {
+		Obs obs = new Obs(patient, concept, TestUtils.date(2012, 1, 1), null);
+		obs.setValueDatetime(value);
+		return obs;
+	}
+}
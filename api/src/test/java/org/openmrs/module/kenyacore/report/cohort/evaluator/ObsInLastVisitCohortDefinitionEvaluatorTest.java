@@ -0,0 +1,116 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.report.cohort.evaluator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.VisitType;
+import org.openmrs.module.kenyacore.report.cohort.definition.ObsInLastVisitCohortDefinition;
+import org.openmrs.module.kenyacore.test.ReportingTestUtils;
+import org.openmrs.module.kenyacore.test.StandardTestData;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.module.metadatadeploy.MetadataUtils;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link ObsInLastVisitCohortDefinitionEvaluator}
+ */
+public class ObsInLastVisitCohortDefinitionEvaluatorTest extends BaseModuleContextSensitiveTest {
+
+	private EvaluationContext context;
+
+	private ObsInLastVisitCohortDefinitionEvaluator evaluator;
+
+	private ObsInLastVisitCohortDefinition cohortDefinition;
+
+	@Before
+	public void setup() throws Exception {
+		VisitType initial = MetadataUtils.existing(VisitType.class, StandardTestData._VisitType.INITIAL_HIV);
+		Concept weight = MetadataUtils.existing(Concept.class, StandardTestData._Concept.WEIGHT_KG);
+
+		// Patient #2 has weight in an earlier visit only
+		TestUtils.saveVisit(TestUtils.getPatient(2), initial, TestUtils.date(2012, 1, 1, 9, 0, 0), TestUtils.date(2012, 1, 1, 11, 0, 0));
+		TestUtils.saveVisit(TestUtils.getPatient(2), initial, TestUtils.date(2012, 1, 5, 9, 0, 0), TestUtils.date(2012, 1, 5, 11, 0, 0));
+		TestUtils.saveObs(TestUtils.getPatient(2), weight, 50.0, TestUtils.date(2012, 1, 1, 10, 0, 0));
+
+		// Patient #6 has weight after the end of their last visit
+		TestUtils.saveVisit(TestUtils.getPatient(6), initial, TestUtils.date(2012, 1, 5, 9, 0, 0), TestUtils.date(2012, 1, 5, 11, 0, 0));
+		TestUtils.saveObs(TestUtils.getPatient(6), weight, 50.0, TestUtils.date(2012, 1, 5, 12, 0, 0));
+
+		// Patient #7 has weight in their last visit
+		TestUtils.saveVisit(TestUtils.getPatient(7), initial, TestUtils.date(2012, 1, 1, 9, 0, 0), TestUtils.date(2012, 1, 1, 11, 0, 0));
+		TestUtils.saveVisit(TestUtils.getPatient(7), initial, TestUtils.date(2012, 1, 5, 9, 0, 0), TestUtils.date(2012, 1, 5, 11, 0, 0));
+		TestUtils.saveObs(TestUtils.getPatient(7), weight, 50.0, TestUtils.date(2012, 1, 5, 10, 0, 0));
+
+		// Patient #8 has weight in an open visit
+		TestUtils.saveVisit(TestUtils.getPatient(8), initial, TestUtils.date(2012, 1, 5, 9, 0, 0), null);
+		TestUtils.saveObs(TestUtils.getPatient(8), weight, 50.0, TestUtils.date(2012, 1, 6, 10, 0, 0));
+
+		cohortDefinition = new ObsInLastVisitCohortDefinition();
+		cohortDefinition.setQuestion(weight);
+		cohortDefinition.setOnOrBefore(TestUtils.date(2012, 1, 31));
+
+		context = ReportingTestUtils.reportingContext(Arrays.asList(2, 6, 7, 8), TestUtils.date(2012, 1, 1), TestUtils.date(2012, 1, 31));
+		evaluator = new ObsInLastVisitCohortDefinitionEvaluator();
+	}
+
+	/**
+	 * @see ObsInLastVisitCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldFindPatientsWithObsInLastVisit() throws EvaluationException {
+		EvaluatedCohort evaluated = evaluator.evaluate(cohortDefinition, context);
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(7, 8), evaluated);
+	}
+
+	/**
+	 * @see ObsInLastVisitCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldGiveSameResultWithoutSetBasedQuery() throws EvaluationException {
+		TestUtils.saveGlobalProperty(ObsInLastVisitCohortDefinitionEvaluator.GP_SET_BASED, "false");
+
+		EvaluatedCohort evaluated = evaluator.evaluate(cohortDefinition, context);
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(7, 8), evaluated);
+	}
+
+	/**
+	 * @see ObsInLastVisitCohortDefinitionEvaluator#evaluate(org.openmrs.module.reporting.cohort.definition.CohortDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldResolveLastVisitsWithSameStartByLowestId() throws EvaluationException {
+		VisitType initial = MetadataUtils.existing(VisitType.class, StandardTestData._VisitType.INITIAL_HIV);
+		Concept weight = MetadataUtils.existing(Concept.class, StandardTestData._Concept.WEIGHT_KG);
+
+		// Patient #2 now has two last visits which start at the same time, with weight only in the one with the higher id
+		TestUtils.saveVisit(TestUtils.getPatient(2), initial, TestUtils.date(2012, 1, 10, 9, 0, 0), TestUtils.date(2012, 1, 10, 9, 30, 0));
+		TestUtils.saveVisit(TestUtils.getPatient(2), initial, TestUtils.date(2012, 1, 10, 9, 0, 0), TestUtils.date(2012, 1, 10, 11, 0, 0));
+		TestUtils.saveObs(TestUtils.getPatient(2), weight, 50.0, TestUtils.date(2012, 1, 10, 10, 0, 0));
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(7, 8), evaluator.evaluate(cohortDefinition, context));
+
+		TestUtils.saveGlobalProperty(ObsInLastVisitCohortDefinitionEvaluator.GP_SET_BASED, "false");
+
+		ReportingTestUtils.assertCohortEquals(Arrays.asList(7, 8), evaluator.evaluate(cohortDefinition, context));
+	}
+}
@@ -14,26 +14,40 @@
 
 package org.openmrs.module.kenyacore.report.data.patient.evaluator;
 
+import org.hibernate.SessionFactory;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmrs.Concept;
+import org.openmrs.Obs;
 import org.openmrs.calculation.parameter.ParameterDefinitionSet;
 import org.openmrs.calculation.patient.PatientCalculation;
 import org.openmrs.calculation.patient.PatientCalculationContext;
 import org.openmrs.calculation.result.CalculationResult;
 import org.openmrs.calculation.result.CalculationResultMap;
 import org.openmrs.calculation.result.SimpleResult;
+import org.openmrs.module.kenyacore.calculation.Calculations;
+import org.openmrs.module.kenyacore.calculation.StatelessCalculation;
+import org.openmrs.module.kenyacore.report.cohort.definition.CalculationCohortDefinition;
+import org.openmrs.module.kenyacore.report.cohort.evaluator.CalculationCohortDefinitionEvaluator;
 import org.openmrs.module.kenyacore.test.ReportingTestUtils;
+import org.openmrs.module.kenyacore.test.StandardTestData;
+import org.openmrs.module.kenyacore.test.TestEligibilityCalculation;
 import org.openmrs.module.kenyacore.test.TestUtils;
 import org.openmrs.module.kenyacore.report.data.patient.definition.CalculationDataDefinition;
+import org.openmrs.module.metadatadeploy.MetadataUtils;
+import org.openmrs.module.reporting.cohort.EvaluatedCohort;
 import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
 import org.openmrs.module.reporting.evaluation.EvaluationContext;
 import org.openmrs.module.reporting.evaluation.EvaluationException;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.hamcrest.Matchers.*;
@@ -43,6 +57,9 @@ import static org.hamcrest.Matchers.*;
  */
 public class CalculationDataEvaluatorTest extends BaseModuleContextSensitiveTest {
 
+	@Autowired
+	private SessionFactory sessionFactory;
+
 	private EvaluationContext context;
 
 	private CalculationDataEvaluator evaluator;
@@ -73,6 +90,81 @@ public class CalculationDataEvaluatorTest extends BaseModuleContextSensitiveTest
 		Assert.assertThat((Integer)((CalculationResult) data.getData().get(6)).getValue(), is(123));
 	}
 
+	/**
+	 * @see CalculationDataEvaluator#calculateInParallel(java.util.List, org.openmrs.module.kenyacore.report.data.patient.definition.CalculationDataDefinition, java.util.Date, int)
+	 */
+	@Test
+	public void calculateInParallel_shouldGiveSameResultsAsSerialEvaluation() throws EvaluationException {
+		CalculationDataDefinition def = new CalculationDataDefinition("test", new TestCalculation());
+		def.addCalculationParameter("test", 123);
+
+		List<Integer> patientIds = new ArrayList<Integer>();
+		for (int p = 1; p <= 250; ++p) {
+			patientIds.add(p);
+		}
+
+		CalculationResultMap serial = evaluator.calculate(patientIds, def, TestUtils.date(2012, 1, 31));
+		CalculationResultMap parallel = evaluator.calculateInParallel(patientIds, def, TestUtils.date(2012, 1, 31), 2);
+
+		Assert.assertThat(parallel.keySet(), is(serial.keySet()));
+		Assert.assertThat((Integer) parallel.get(250).getValue(), is(123));
+	}
+
+	/**
+	 * @see CalculationDataEvaluator#calculateInParallel(java.util.List, org.openmrs.module.kenyacore.report.data.patient.definition.CalculationDataDefinition, java.util.Date, int)
+	 */
+	@Test
+	public void calculateInParallel_shouldReattachEntitiesToCurrentSession() throws EvaluationException {
+		CalculationDataDefinition def = new CalculationDataDefinition("test", new TestLastWeightCalculation());
+
+		List<Integer> patientIds = new ArrayList<Integer>();
+		for (int p = 1; p <= 250; ++p) {
+			patientIds.add(p);
+		}
+
+		CalculationResultMap parallel = evaluator.calculateInParallel(patientIds, def, TestUtils.date(2012, 1, 31), 2);
+
+		Assert.assertThat(parallel.get(6), nullValue());
+
+		Obs obs = (Obs) parallel.get(7).getValue();
+		Assert.assertThat(obs.getId(), is(16));
+		Assert.assertThat(sessionFactory.getCurrentSession().contains(obs), is(true));
+
+		// Lazy loaded properties should be accessible after the worker sessions have closed
+		Assert.assertThat(obs.getConcept().getConceptId(), is(5089));
+		Assert.assertThat(obs.getPerson().getPersonName(), notNullValue());
+	}
+
+	/**
+	 * @see CalculationDataEvaluator#evaluate(org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_shouldShareResultsWithinReportEvaluation() throws EvaluationException {
+		CalculationCohortDefinition cd = new CalculationCohortDefinition(new TestEligibilityCalculation());
+		CalculationDataDefinition def1 = new CalculationDataDefinition("test1", new TestEligibilityCalculation());
+		CalculationDataDefinition def2 = new CalculationDataDefinition("test2", new TestEligibilityCalculation());
+
+		int evaluations = TestEligibilityCalculation.getEvaluations();
+
+		// Row filter is evaluated on all patients and columns on the patients who pass
+		EvaluatedCohort rows = new CalculationCohortDefinitionEvaluator().evaluate(cd, context);
+		EvaluationContext columnContext = context.shallowCopy();
+		columnContext.setBaseCohort(rows);
+
+		EvaluatedPatientData data1 = evaluator.evaluate(def1, columnContext);
+		EvaluatedPatientData data2 = evaluator.evaluate(def2, columnContext);
+
+		Assert.assertThat(rows.getMemberIds(), containsInAnyOrder(7, 8));
+		Assert.assertThat(data1.getData().keySet(), containsInAnyOrder(7, 8));
+		Assert.assertThat((Boolean) ((CalculationResult) data2.getData().get(7)).getValue(), is(true));
+		Assert.assertThat(TestEligibilityCalculation.getEvaluations(), is(evaluations + 1));
+
+		// Parameters are part of the key
+		def2.addCalculationParameter("test", 123);
+		evaluator.evaluate(def2, columnContext);
+		Assert.assertThat(TestEligibilityCalculation.getEvaluations(), is(evaluations + 2));
+	}
+
 	/**
 	 * Test calculation which returns the value of the test parameter for each patient
 	 */
@@ -92,4 +184,22 @@ public class CalculationDataEvaluatorTest extends BaseModuleContextSensitiveTest
 			return null;
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Test calculation which returns the last weight obs of each patient
+	 */
+	@StatelessCalculation
+	public static class TestLastWeightCalculation implements PatientCalculation {
+
+		@Override
+		public CalculationResultMap evaluate(Collection<Integer> cohort, Map<String, Object> params, PatientCalculationContext context) {
+			Concept weight = MetadataUtils.existing(Concept.class, StandardTestData._Concept.WEIGHT_KG);
+			return Calculations.lastObs(weight, cohort, context);
+		}
+
+		@Override
+		public ParameterDefinitionSet getParameterDefinitionSet() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.report.data.patient.evaluator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.module.kenyacore.calculation.DemographicsSnapshot;
+import org.openmrs.module.kenyacore.report.data.patient.definition.DemographicsDataDefinition;
+import org.openmrs.module.kenyacore.test.ReportingTestUtils;
+import org.openmrs.module.kenyacore.test.TestUtils;
+import org.openmrs.module.reporting.common.Age;
+import org.openmrs.module.reporting.data.patient.EvaluatedPatientData;
+import org.openmrs.module.reporting.evaluation.EvaluationContext;
+import org.openmrs.module.reporting.evaluation.EvaluationException;
+import org.openmrs.test.BaseModuleContextSensitiveTest;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Tests for {@link DemographicsDataEvaluator}
+ */
+public class DemographicsDataEvaluatorTest extends BaseModuleContextSensitiveTest {
+
+	private EvaluationContext context;
+
+	private DemographicsDataEvaluator evaluator;
+
+	/**
+	 * Setup each test
+	 */
+	@Before
+	public void setup() {
+		DemographicsSnapshot.getInstance().clear();
+
+		context = ReportingTestUtils.reportingContext(Arrays.asList(2, 6, 7, 8, 999), TestUtils.date(2012, 1, 1), TestUtils.date(2012, 6, 1));
+		evaluator = new DemographicsDataEvaluator();
+	}
+
+	/**
+	 * @see DemographicsDataEvaluator#evaluate(org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_age() throws EvaluationException {
+		EvaluatedPatientData data = evaluator.evaluate(new DemographicsDataDefinition(DemographicsDataDefinition.Field.AGE), context);
+
+		Age patient6Age = (Age) data.getData().get(6);
+		Assert.assertThat(patient6Age.getFullYears(), is(5));
+		Assert.assertThat(patient6Age.getCurrentDate(), is(TestUtils.date(2012, 6, 1)));
+		Assert.assertThat(data.getData().containsKey(999), is(false));
+
+		// Check with effective date
+		DemographicsDataDefinition def = new DemographicsDataDefinition(DemographicsDataDefinition.Field.AGE);
+		def.setEffectiveDate(TestUtils.date(2010, 6, 1));
+		data = evaluator.evaluate(def, context);
+
+		Assert.assertThat(((Age) data.getData().get(6)).getFullYears(), is(3));
+	}
+
+	/**
+	 * @see DemographicsDataEvaluator#evaluate(org.openmrs.module.reporting.data.patient.definition.PatientDataDefinition, org.openmrs.module.reporting.evaluation.EvaluationContext)
+	 */
+	@Test
+	public void evaluate_gender() throws EvaluationException {
+		EvaluatedPatientData data = evaluator.evaluate(new DemographicsDataDefinition(DemographicsDataDefinition.Field.GENDER), context);
+
+		Assert.assertThat((String) data.getData().get(6), is("M"));
+		Assert.assertThat((String) data.getData().get(7), is("F"));
+		Assert.assertThat(data.getData().containsKey(999), is(false));
+	}
+}
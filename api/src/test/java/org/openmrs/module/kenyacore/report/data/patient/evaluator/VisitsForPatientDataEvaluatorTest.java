@@ -120,5 +120,19 @@ public class VisitsForPatientDataEvaluatorTest extends BaseModuleContextSensitiv
 		def.setWhich(TimeQualifier.LAST);
 		EvaluatedPatientData data = evaluator.evaluate(def, context);
 		Assert.assertThat((Visit) data.getData().get(7), is(visitP7b));
+		Assert.assertThat(data.getData().get(8), nullValue());
+
+		// Check with before date
+		def.setStartedOnOrBefore(TestUtils.date(2012, 1, 31));
+
+		data = evaluator.evaluate(def, context);
+		Assert.assertThat((Visit) data.getData().get(7), is(visitP7a));
+
+		// Check with after date which excludes all visits
+		def.setStartedOnOrBefore(null);
+		def.setStartedOnOrAfter(TestUtils.date(2012, 3, 1));
+
+		data = evaluator.evaluate(def, context);
+		Assert.assertThat(data.getData().get(7), nullValue());
 	}
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.test;
+
+import org.junit.Ignore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records how many times test calculations have been evaluated, so that stateless test calculations don't need to keep
+ * any state of their own. Safe to use from concurrent evaluations.
+ */
+@Ignore
+public class EvaluationCounter {
+
+	private static final ConcurrentMap<Class<?>, AtomicInteger> counts = new ConcurrentHashMap<Class<?>, AtomicInteger>();
+
+	/**
+	 * Records an evaluation of the given calculation class
+	 * @param calculationClass the calculation class
+	 */
+	public static void increment(Class<?> calculationClass) {
+		AtomicInteger count = counts.get(calculationClass);
+		if (count == null) {
+			counts.putIfAbsent(calculationClass, new AtomicInteger());
+			count = counts.get(calculationClass);
+		}
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of recorded evaluations of the given calculation class
+	 * @param calculationClass the calculation class
+	 * @return the number of evaluations
+	 */
+	public static int get(Class<?> calculationClass) {
+		AtomicInteger count = counts.get(calculationClass);
+		return count != null ? count.get() : 0;
+	}
+}
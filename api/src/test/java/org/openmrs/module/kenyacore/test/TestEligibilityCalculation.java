@@ -0,0 +1,59 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.kenyacore.test;
+
+import org.junit.Ignore;
+import org.openmrs.calculation.patient.PatientCalculationContext;
+import org.openmrs.calculation.result.CalculationResultMap;
+import org.openmrs.module.kenyacore.calculation.AbstractPatientCalculation;
+import org.openmrs.module.kenyacore.calculation.BooleanResult;
+import org.openmrs.module.kenyacore.calculation.Filters;
+import org.openmrs.module.kenyacore.calculation.StatelessCalculation;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dummy stateless eligibility calculation for testing which passes for female patients and records its evaluations in {@link EvaluationCounter}
+ */
+@Ignore
+@StatelessCalculation
+public class TestEligibilityCalculation extends AbstractPatientCalculation {
+
+	/**
+	 * @see org.openmrs.calculation.patient.PatientCalculation#evaluate(java.util.Collection, java.util.Map, org.openmrs.calculation.patient.PatientCalculationContext)
+	 */
+	@Override
+	public CalculationResultMap evaluate(Collection<Integer> cohort, Map<String, Object> parameterValues, PatientCalculationContext context) {
+		EvaluationCounter.increment(getClass());
+
+		Set<Integer> female = Filters.female(cohort, context);
+
+		CalculationResultMap ret = new CalculationResultMap();
+		for (int ptId : cohort) {
+			ret.put(ptId, BooleanResult.valueOf(female.contains(ptId)));
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the number of times this calculation has been evaluated
+	 * @return the number of evaluations
+	 */
+	public static int getEvaluations() {
+		return EvaluationCounter.get(TestEligibilityCalculation.class);
+	}
+}